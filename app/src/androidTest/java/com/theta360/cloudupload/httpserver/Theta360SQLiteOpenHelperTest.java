@@ -0,0 +1,161 @@
+package com.theta360.cloudupload.httpserver;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Migrate a populated version 1 database through each upgrade.
+ */
+@RunWith(AndroidJUnit4.class)
+public class Theta360SQLiteOpenHelperTest {
+    private static final String DB = "migration_test.db";
+    private static final String CREATED_DB = "migration_test_created.db";
+    private static final int UNIQUE_INDEX_VERSION = 7;
+    private static final String[] TABLES = {"theta360_setting", "auth_information", "uploaded_photo",
+            "file_fingerprint", "uploaded_preview"};
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DB);
+        context.deleteDatabase(CREATED_DB);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DB);
+        context.deleteDatabase(CREATED_DB);
+    }
+
+    @Test
+    public void onUpgrade_keepsDataThroughEachVersion() {
+        createVersion1();
+
+        for (int version = 2; version <= Theta360SQLiteOpenHelper.DB_VERSION; version++) {
+            Theta360SQLiteOpenHelper helper = new Theta360SQLiteOpenHelper(context, DB, version);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(version, db.getVersion());
+            // The duplicated row is merged when the unique index is added
+            assertEquals("version " + version, version < UNIQUE_INDEX_VERSION ? 3 : 2, count(db, "uploaded_photo"));
+            assertEquals("version " + version, 1, count(db, "auth_information"));
+            assertEquals("version " + version, 1, count(db, "theta360_setting"));
+            helper.close();
+        }
+
+        Theta360SQLiteOpenHelper helper = new Theta360SQLiteOpenHelper(context, DB, Theta360SQLiteOpenHelper.DB_VERSION);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try (Cursor cursor = db.rawQuery("select is_upload_movie, queue_policy, upload_quality from theta360_setting", null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+            assertEquals("fifo", cursor.getString(1));
+            assertEquals(0, cursor.getInt(2));
+        }
+        try (Cursor cursor = db.rawQuery("select refresh_token from auth_information where api_type = 'google'", null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("token", cursor.getString(0));
+        }
+
+        ContentValues values = createUploadedPhoto("/DCIM/100RICOH/R0010001.JPG", "2018:01:01 00:00:00");
+        try {
+            db.insertOrThrow("uploaded_photo", null, values);
+            fail("duplicated upload history");
+        } catch (SQLiteConstraintException e) {
+            // expected
+        }
+        values.put("content_hash", "hash");
+        db.insertWithOnConflict("uploaded_photo", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        assertEquals(2, count(db, "uploaded_photo"));
+        helper.close();
+    }
+
+    @Test
+    public void onUpgrade_matchesCreatedSchema() {
+        createVersion1();
+        Theta360SQLiteOpenHelper upgraded = new Theta360SQLiteOpenHelper(context, DB, Theta360SQLiteOpenHelper.DB_VERSION);
+        Theta360SQLiteOpenHelper created = new Theta360SQLiteOpenHelper(context, CREATED_DB, Theta360SQLiteOpenHelper.DB_VERSION);
+        SQLiteDatabase upgradedDb = upgraded.getReadableDatabase();
+        SQLiteDatabase createdDb = created.getReadableDatabase();
+        for (String table : TABLES) {
+            assertEquals(table, getColumns(createdDb, table), getColumns(upgradedDb, table));
+        }
+        assertEquals(getIndexes(createdDb), getIndexes(upgradedDb));
+        upgraded.close();
+        created.close();
+    }
+
+    /**
+     * Schema and data of the first release
+     */
+    private void createVersion1() {
+        SQLiteDatabase db = context.openOrCreateDatabase(DB, Context.MODE_PRIVATE, null);
+        db.execSQL("create table theta360_setting (no_operation_timeout_minute INTEGER, status TEXT, is_upload_movie INTEGER);");
+        db.execSQL("create table auth_information(refresh_token TEXT, user_id TEXT, api_type TEXT);");
+        db.execSQL("create table uploaded_photo(path TEXT, datetime TEXT, user_id TEXT, api_type TEXT);");
+        db.execSQL("insert into theta360_setting values (5, 'on', 1);");
+        db.execSQL("insert into auth_information values ('token', 'user', 'google');");
+        for (String path : new String[]{"/DCIM/100RICOH/R0010001.JPG", "/DCIM/100RICOH/R0010002.JPG",
+                "/DCIM/100RICOH/R0010001.JPG"}) {
+            ContentValues values = createUploadedPhoto(path, "2018:01:01 00:00:00");
+            values.remove("content_hash");
+            db.insert("uploaded_photo", null, values);
+        }
+        db.setVersion(1);
+        db.close();
+    }
+
+    private static ContentValues createUploadedPhoto(String path, String datetime) {
+        ContentValues values = new ContentValues();
+        values.put("path", path);
+        values.put("datetime", datetime);
+        values.put("user_id", "user");
+        values.put("api_type", "google");
+        values.put("content_hash", (String) null);
+        return values;
+    }
+
+    private static int count(SQLiteDatabase db, String table) {
+        try (Cursor cursor = db.rawQuery("select count(*) from " + table, null)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static List<String> getColumns(SQLiteDatabase db, String table) {
+        List<String> columnList = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("pragma table_info(" + table + ")", null)) {
+            while (cursor.moveToNext()) {
+                columnList.add(cursor.getString(cursor.getColumnIndex("name")) + " "
+                        + cursor.getString(cursor.getColumnIndex("type")) + " "
+                        + cursor.getString(cursor.getColumnIndex("dflt_value")));
+            }
+        }
+        return columnList;
+    }
+
+    private static List<String> getIndexes(SQLiteDatabase db) {
+        List<String> indexList = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("select name, sql from sqlite_master where type = 'index' and sql is not null order by name", null)) {
+            while (cursor.moveToNext()) {
+                indexList.add(cursor.getString(0) + " " + cursor.getString(1));
+            }
+        }
+        return indexList;
+    }
+}
@@ -0,0 +1,104 @@
+package com.theta360.cloudupload.httpserver;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Inserts per second into uploaded_photo, one auto-committed insert per photo in rollback journal mode (before)
+ * and grouped transactions in WAL mode (after). The result is in logcat with the tag UploadHistoryBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UploadHistoryBenchmarkTest {
+    private static final String TAG = "UploadHistoryBenchmark";
+    private static final String DB = "benchmark_test.db";
+    private static final int COUNT = 500;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DB);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DB);
+    }
+
+    @Test
+    public void groupedWalInsertsAreFaster() {
+        double beforePerSec = measureAutoCommit();
+        context.deleteDatabase(DB);
+        double afterPerSec = measureGrouped();
+        Log.i(TAG, String.format("%d inserts: auto-commit %.0f/s, grouped WAL %.0f/s (x%.1f)",
+                COUNT, beforePerSec, afterPerSec, afterPerSec / beforePerSec));
+        assertTrue(afterPerSec > beforePerSec);
+    }
+
+    private double measureAutoCommit() {
+        Theta360SQLiteOpenHelper helper = new Theta360SQLiteOpenHelper(context, DB, Theta360SQLiteOpenHelper.DB_VERSION);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.disableWriteAheadLogging();
+        long startNSec = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            db.insertWithOnConflict("uploaded_photo", null, createValues(i), SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        long elapsedNSec = System.nanoTime() - startNSec;
+        helper.close();
+        return COUNT * 1e9 / elapsedNSec;
+    }
+
+    private double measureGrouped() {
+        Theta360SQLiteOpenHelper helper = new Theta360SQLiteOpenHelper(context, DB, Theta360SQLiteOpenHelper.DB_VERSION);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        assertTrue(db.isWriteAheadLoggingEnabled());
+        GroupCommitter<ContentValues> committer = new GroupCommitter<>(new GroupCommitter.Sink<ContentValues>() {
+            @Override
+            public void commit(List<ContentValues> group) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (ContentValues values : group) {
+                        db.insertWithOnConflict("uploaded_photo", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }, 32, 2000);
+        long startNSec = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            committer.add(createValues(i));
+        }
+        committer.close();
+        long elapsedNSec = System.nanoTime() - startNSec;
+        assertEquals(COUNT, committer.getCommittedCount());
+        helper.close();
+        return COUNT * 1e9 / elapsedNSec;
+    }
+
+    private static ContentValues createValues(int i) {
+        ContentValues values = new ContentValues();
+        values.put("path", "/storage/emulated/0/DCIM/100RICOH/R" + (10000000 + i) + ".JPG");
+        values.put("datetime", "2018:01:01 00:00:00");
+        values.put("user_id", "user");
+        values.put("api_type", "google");
+        values.put("content_hash", "hash" + i);
+        values.put("size", 4 * 1024 * 1024);
+        return values;
+    }
+}
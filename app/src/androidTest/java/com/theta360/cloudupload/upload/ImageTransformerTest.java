@@ -0,0 +1,116 @@
+package com.theta360.cloudupload.upload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transform a photo while the next video is read ahead, as an upload session does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageTransformerTest {
+    private static final int READ_AHEAD_SIZE = 256 * 1024;
+    private static final int PHOTO_WIDTH = 2048;
+    private static final int PHOTO_HEIGHT = 1024;
+    // The bitmap of the photo is twice the budget
+    private static final long MEMORY_BUDGET = 4 * 1024 * 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "image_transformer_test");
+        deleteAll(directory);
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(directory);
+    }
+
+    @Test
+    public void photoThenVideo_transformsWhileVideoIsPrefetched() throws Exception {
+        File photo = createPhoto(new File(directory, "R0010001.JPG"));
+        File video = new File(directory, "R0010002.MP4");
+        try (OutputStream os = new FileOutputStream(video)) {
+            os.write(new byte[2 * READ_AHEAD_SIZE]);
+        }
+        List<File> fileList = Arrays.asList(photo, video);
+
+        MemoryGovernor governor = new MemoryGovernor(MEMORY_BUDGET);
+        FilePrefetcher prefetcher = new FilePrefetcher(Arrays.asList(video), READ_AHEAD_SIZE, READ_AHEAD_SIZE, governor);
+        prefetcher.start();
+        while (governor.getReservedBytes(MemoryGovernor.Stage.PREFETCH) == 0) {
+            Thread.sleep(10);
+        }
+        // Keep the original quality, so only the budget limits the size
+        final ImageTransformer transformer = new ImageTransformer(fileList, new File(directory, "transform"), 0, 50, governor, 1);
+        transformer.start();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<File> future = executor.submit(() -> transformer.take(photo));
+        File transformedFile = future.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertNotNull(transformedFile);
+        assertEquals(0, governor.getReservedBytes(MemoryGovernor.Stage.TRANSFORM));
+        assertTrue(governor.getMaxReservedBytes() <= MEMORY_BUDGET + READ_AHEAD_SIZE);
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(transformedFile.getAbsolutePath(), bounds);
+        assertEquals(PHOTO_WIDTH / 2, bounds.outWidth);
+        assertEquals(PHOTO_HEIGHT / 2, bounds.outHeight);
+        transformedFile.delete();
+
+        PhotoFileStream stream = prefetcher.take(video);
+        assertNotNull(stream);
+        stream.close();
+        transformer.close();
+        prefetcher.close();
+        assertEquals(0, governor.getReservedBytes());
+    }
+
+    private static File createPhoto(File file) throws Exception {
+        int[] pixels = new int[PHOTO_WIDTH * PHOTO_HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            // Noise, so that the photo is not smaller at a lower quality only
+            pixels[i] = 0xff000000 | (int) (i * 2654435761L);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        try (OutputStream os = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+        } finally {
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
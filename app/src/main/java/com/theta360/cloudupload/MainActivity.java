@@ -17,12 +17,9 @@
 package com.theta360.cloudupload;
 
 import android.annotation.SuppressLint;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.icu.text.DateFormat;
 import android.icu.text.SimpleDateFormat;
@@ -33,7 +30,7 @@ import android.view.WindowManager;
 import com.theta360.cloudupload.Util.LogUtilDebugTree;
 import com.theta360.cloudupload.httpserver.AndroidWebServer;
 import com.theta360.cloudupload.httpserver.ErrorType;
-import com.theta360.cloudupload.httpserver.Theta360SQLiteOpenHelper;
+import com.theta360.cloudupload.httpserver.Theta360Database;
 import com.theta360.cloudupload.receiver.ChangeLedReceiver;
 import com.theta360.cloudupload.receiver.FinishApplicationReceiver;
 import com.theta360.cloudupload.receiver.SpecifiedResultReceiver;
@@ -444,26 +441,11 @@ public class MainActivity extends PluginActivity {
 
                     synchronized (lock) {
                         // Check setting
-                        Theta360SQLiteOpenHelper hlpr = new Theta360SQLiteOpenHelper(con);
-                        SQLiteDatabase dbObject = hlpr.getWritableDatabase();
-                        Cursor cursor = dbObject.query("theta360_setting", null, null, null, null, null, null, null);
-
                         try {
-                            if (cursor.moveToNext()) {
-                                noOperationTimeoutMSec = cursor.getInt(cursor.getColumnIndex("no_operation_timeout_minute")) * 60 * 1000;
-                                Timber.d("noOperationTimeoutMSec : " + noOperationTimeoutMSec);
-
-                            } else {
-                                // Create new record if DB is empty.
-                                ContentValues values = new ContentValues();
-                                values.put("no_operation_timeout_minute", AndroidWebServer.TIMEOUT_DEFAULT_MINUTE);
-                                values.put("status", "");
-
-                                long num = dbObject.insert("theta360_setting", null, values);
-                                if (num != 1) {
-                                    throw new SQLiteException("[setting data] initialize database error");
-                                }
-                            }
+                            // The record is created with the default if DB is empty
+                            noOperationTimeoutMSec = Theta360Database.getInstance(con)
+                                    .getNoOperationTimeoutMinute(AndroidWebServer.TIMEOUT_DEFAULT_MINUTE) * 60 * 1000;
+                            Timber.d("noOperationTimeoutMSec : " + noOperationTimeoutMSec);
                             // Reset auto stop timer
                             if (!shutDownTimer.getIsUploading()) {
                                 shutDownTimer.reset(false, noOperationTimeoutMSec);
@@ -472,9 +454,6 @@ public class MainActivity extends PluginActivity {
                         } catch (Exception e) {
                             e.printStackTrace();
                             throw new SQLiteException("[setting data] Unexpected exception");
-                        } finally {
-                            cursor.close();
-                            dbObject.close();
                         }
                     }
                 }
@@ -22,42 +22,77 @@ import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.media.ExifInterface;
 import android.net.wifi.WifiManager;
 import android.os.Environment;
-import android.util.Base64;
 import android.util.Log;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.theta360.cloudupload.net.CommitStage;
+import com.theta360.cloudupload.net.GoogleDataApi;
+import com.theta360.cloudupload.net.ProviderCapabilities;
 import com.theta360.cloudupload.net.UploadPhotoApi;
 import com.theta360.cloudupload.net.UploadPhotoApiCallback;
-import com.theta360.cloudupload.net.UploadPhotoApiFactory;
+import com.theta360.cloudupload.net.UploadProviderRegistry;
+import com.theta360.cloudupload.net.WebDavApi;
 import com.theta360.cloudupload.receiver.ChangeLedReceiver;
 import com.theta360.cloudupload.receiver.FinishApplicationReceiver;
 import com.theta360.cloudupload.receiver.SpecifiedResultReceiver;
 import com.theta360.cloudupload.receiver.UploadStatusReceiver;
 import com.theta360.cloudupload.settingdata.SettingData;
+import com.theta360.cloudupload.upload.BufferPool;
+import com.theta360.cloudupload.upload.MemoryGovernor;
+import com.theta360.cloudupload.upload.PhotoFileStream;
+import com.theta360.cloudupload.upload.UploadProgress;
+import com.theta360.cloudupload.upload.FanOutReader;
+import com.theta360.cloudupload.upload.FilePrefetcher;
+import com.theta360.cloudupload.upload.ImageTransformer;
+import com.theta360.cloudupload.upload.ThumbnailMaker;
 import org.json.JSONException;
 import org.json.JSONObject;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import javax.net.ssl.HttpsURLConnection;
 import timber.log.Timber;
@@ -75,9 +110,61 @@ public class AndroidWebServer extends Activity {
     public static final int UPLOAD_TIMEOUT_MSEC = 60000;
     private final int UPLOAD_RETRY_WAIT_MSEC = 30000;
     private final int REFRESH_COUNT_MAX = 3;
+    private final int FAN_OUT_BUFFER_SIZE = 4 * 1024 * 1024;
+    private final int READ_AHEAD_SIZE = 1024 * 1024;
+    private final long READ_AHEAD_MEMORY_BUDGET = 8 * 1024 * 1024;
+    private final int MIN_FAN_OUT_BUFFER_SIZE = 256 * 1024;
+    private final long MEMORY_BUDGET = 32 * 1024 * 1024;
+    private final int TRANSFORM_AHEAD_COUNT = 2;
+    private final String TRANSFORM_DIRECTORY = "transform";
+    private final int PREVIEW_MAX_DIMENSION = 1024;
+    private final int PREVIEW_QUALITY = 70;
+    private final String PREVIEW_DIRECTORY = "preview";
+    private final String PREVIEW_SUFFIX = "_preview";
+    private final long DEFAULT_THROUGHPUT_BYTES_PER_SEC = 1024 * 1024;
+    private final long EVENT_INTERVAL_MSEC = 250;
+    private final long EVENT_HEARTBEAT_MSEC = 15 * 1000;
+    private final String EVENT_STREAM_MIME = "text/event-stream";
+    private final int HTTP_MAX_THREADS = 8;
+    private final int HTTP_MAX_QUEUED = 16;
+    private final long HTTP_THREAD_KEEP_ALIVE_MSEC = 30 * 1000;
+    private final int HTTP_SOCKET_TIMEOUT_MSEC = 5 * 1000;
+    // Event viewers hold a thread each, so they may use only half of the threads
+    private final int MAX_EVENT_VIEWERS = HTTP_MAX_THREADS / 2;
+    private final String ASSET_CACHE_CONTROL = "public, max-age=86400";
+    private final String[] TEMPLATE_SLOT_NAMES = {"JS_INJECTION", "IS_LOGGED_IN", "GOOGLE_PHOTO_USER_CODE",
+            "GOOGLE_PHOTO_CODE_AUTH_URL", "AUTH_JOB_ID", "NO_OPERATION_TIMEOUT_MINUTE"};
+    // Longer than the connect and read timeouts of the request
+    private final long AUTH_JOB_TIMEOUT_MSEC = 30 * 1000;
+    private final long AUTH_JOB_MAX_WAIT_MSEC = 20 * 1000;
+    private final int QUEUE_PAGE_SIZE = 100;
+    private final String THUMBNAIL_DIRECTORY = "thumbnail";
+    private final long THUMBNAIL_CACHE_BYTES = 16 * 1024 * 1024;
+    private final int THUMBNAIL_MAX_DIMENSION = 320;
+    private final int THUMBNAIL_QUALITY = 75;
+    private final String THUMBNAIL_CACHE_CONTROL = "private, max-age=86400";
+    private final int MAX_DOWNLOADS = HTTP_MAX_THREADS - MAX_EVENT_VIEWERS - 1;
+    private final int DOWNLOAD_BUFFER_SIZE = 256 * 1024;
+    private final String DOWNLOAD_RETRY_AFTER_SEC = "2";
+    private final String ZIP_DATE_PATTERN = "\\d{4}-\\d{2}-\\d{2}";
+    private final String ZIP_FILE_NAME = "photos.zip";
+    private final int HISTORY_GROUP_SIZE = 32;
+    private final long HISTORY_GROUP_DELAY_MSEC = 2000;
+    private final NanoHTTPD.Response.IStatus SERVICE_UNAVAILABLE = new NanoHTTPD.Response.IStatus() {
+        @Override
+        public String getDescription() {
+            return "503 Service Unavailable";
+        }
+
+        @Override
+        public int getRequestStatus() {
+            return 503;
+        }
+    };
 
-    private Theta360SQLiteOpenHelper helper;
-    private SQLiteDatabase dbObject;
+    private Theta360Database database;
+    private GroupCommitter<ContentValues> uploadedPhotoCommitter;
+    private FingerprintCache fingerprintCache;
 
     private static final int PORT = 8888;
     private SimpleHttpd server;
@@ -88,20 +175,51 @@ public class AndroidWebServer extends Activity {
     private final Object lock = new Object();
     private Boolean requested;
     private UploadPhotoApi uploadPhotoApi;
-    private boolean isReady = false;
+    private volatile boolean isReady = false;
     private String userId = null;
     private String refreshToken = null;
 
-    private List<PhotoInformation> uploadedPhotoList;
+    private volatile List<UploadDestination> uploadDestinationList = new ArrayList<>();
     private List<PhotoInformation> uploadingPhotoList;
-    private PhotoInformation uploadingPhoto;
-    private Boolean isSucceedUpload;
-    private int errorCode;
     private List<PhotoInformation> specifiedPhotoList;
     private String errorType;
     private boolean isUploading = false;
-    private int uploadAllNumber;
-    private int uploadCurrentNumber;
+    private final AtomicInteger uploadAllNumber = new AtomicInteger();
+    private final AtomicInteger uploadCurrentNumber = new AtomicInteger();
+    private final AtomicLong uploadAllBytes = new AtomicLong();
+    // Files of the running or the last session
+    private volatile UploadQueue uploadQueue;
+    private final UploadProgress uploadProgress = new UploadProgress();
+    private final AtomicLong transformSavedBytes = new AtomicLong();
+    private volatile long uploadStartMSec;
+    private volatile int previewAllNumber;
+    private final AtomicInteger previewUploadedNumber = new AtomicInteger();
+    private final AtomicInteger downloadCount = new AtomicInteger();
+    private volatile long timeToPreviewsMSec = -1;
+    // Measured in the last session, for the deadline queue policy
+    private volatile long lastThroughputBytesPerSec = DEFAULT_THROUGHPUT_BYTES_PER_SEC;
+    private final AtomicLong storageReadBytes = new AtomicLong();
+    // The read ahead budget must fit in it, so that an upload that misses the read ahead can open its file
+    private final MemoryGovernor memoryGovernor = new MemoryGovernor(Math.max(READ_AHEAD_MEMORY_BUDGET + READ_AHEAD_SIZE,
+            Math.min(Runtime.getRuntime().maxMemory() / 4, MEMORY_BUDGET)), BufferPool.getSharedPool());
+    private final Gson gson = new Gson();
+    private StaticAssetCache assetCache;
+    private ThumbnailCache thumbnailCache;
+    private final Map<String, HtmlTemplate> templateMap = new ConcurrentHashMap<>();
+    // Settings read from the DB, cleared when the settings are changed
+    private volatile SettingData settingDataCache;
+    // Connections of the settings page run below the priority of the uploads
+    private final BoundedAsyncRunner httpRunner = new BoundedAsyncRunner("http", HTTP_MAX_THREADS, HTTP_MAX_QUEUED,
+            HTTP_THREAD_KEEP_ALIVE_MSEC, Thread.NORM_PRIORITY - 1);
+    private volatile String ledState = "";
+    private volatile AuthJob authJob;
+    // Pushes the upload status to the browsers connected to /events
+    private final EventBroadcaster eventBroadcaster = new EventBroadcaster(new Callable<String>() {
+        @Override
+        public String call() {
+            return gson.toJson(getUploadStatus());
+        }
+    }, EVENT_INTERVAL_MSEC, EVENT_HEARTBEAT_MSEC);
 
     public AndroidWebServer(Context context) {
         con = context;
@@ -125,20 +243,46 @@ public class AndroidWebServer extends Activity {
 
         Timber.i("Launch server with IP [" + formattedIpAddress + "].");
 
+        long installedMSec = System.currentTimeMillis();
+        try {
+            installedMSec = con.getPackageManager().getPackageInfo(con.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        final AssetManager assetManager = con.getAssets();
+        assetCache = new StaticAssetCache(new StaticAssetCache.AssetSource() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                return assetManager.open(name);
+            }
+        }, installedMSec);
+        final ThumbnailMaker thumbnailMaker = new ThumbnailMaker(THUMBNAIL_MAX_DIMENSION, THUMBNAIL_QUALITY, memoryGovernor);
+        thumbnailCache = new ThumbnailCache(new File(con.getCacheDir(), THUMBNAIL_DIRECTORY), THUMBNAIL_CACHE_BYTES,
+                new ThumbnailCache.ThumbnailSource() {
+                    @Override
+                    public byte[] make(File file) throws IOException, InterruptedException {
+                        return thumbnailMaker.make(file);
+                    }
+                });
+
         try {
             server = new SimpleHttpd();
-            server.start();
+            server.start(HTTP_SOCKET_TIMEOUT_MSEC);
             Log.i("AndroidWebServerActivity", "Start server");
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        helper = new Theta360SQLiteOpenHelper(con);
-
         clearRequested();
 
-        dbObject = helper.getWritableDatabase();
-        uploadedPhotoList = new ArrayList();
+        database = Theta360Database.getInstance(con);
+        fingerprintCache = new FingerprintCache(database);
+        uploadedPhotoCommitter = new GroupCommitter<>(new GroupCommitter.Sink<ContentValues>() {
+            @Override
+            public void commit(List<ContentValues> group) {
+                database.writeUploadedPhotos(group);
+            }
+        }, HISTORY_GROUP_SIZE, HISTORY_GROUP_DELAY_MSEC);
         updateUploadInfo();
     }
 
@@ -148,10 +292,17 @@ public class AndroidWebServer extends Activity {
      * Discard
      */
     public void destroy() {
+        eventBroadcaster.close();
         if (server != null) {
             server.stop();
             Log.i("AndroidWebServerActivity", "Stop server");
         }
+        httpRunner.shutdown();
+        if (uploadedPhotoCommitter != null) {
+            uploadedPhotoCommitter.close();
+            Timber.i("wrote " + uploadedPhotoCommitter.getCommittedCount() + " upload records in "
+                    + uploadedPhotoCommitter.getGroupCount() + " transactions");
+        }
     }
 
     /**
@@ -239,12 +390,6 @@ public class AndroidWebServer extends Activity {
                 updateUploadInfo();
                 if (isReady) {
                     if (server.uploadFileService == null) {
-                        int refreshCount = 0;
-                        boolean refreshResult = false;
-                        while(!refreshResult && refreshCount < REFRESH_COUNT_MAX) {
-                            refreshResult = server.hasRefreshToken();
-                            refreshCount++;
-                        }
                         server.startUploadFile();
                     } else {
                         server.uploadFileService.shutdownNow();
@@ -267,25 +412,21 @@ public class AndroidWebServer extends Activity {
 
     private void setSpecifiedPhotoList(List<String> photoList) {
         specifiedPhotoList = new ArrayList();
+        boolean isUploadMovie = server.readSettingData().getIsUploadMovie();
         PhotoInformation photoInformation;
         for (String path : photoList) {
-            if (!(path.endsWith(".JPG") || path.endsWith(".jpg") || path.endsWith(".jpeg"))) {
+            if (!PhotoInformation.isUploadTarget(path, isUploadMovie)) {
                 continue;
             }
             if (!(new File(path).isFile())) {
                 continue;
             }
 
-            try {
-                ExifInterface exifInterface = new ExifInterface(path);
-                String datetime = exifInterface.getAttribute(ExifInterface.TAG_DATETIME);
-                photoInformation = new PhotoInformation();
-                photoInformation.setPath(path);
-                photoInformation.setDatetime(datetime);
-                specifiedPhotoList.add(photoInformation);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // The date time is parsed from the header when the file is uploaded
+            photoInformation = new PhotoInformation();
+            photoInformation.setPath(path);
+            photoInformation.setDatetime(fingerprintCache.getCachedDatetime(new File(path)));
+            specifiedPhotoList.add(photoInformation);
         }
     }
 
@@ -308,15 +449,10 @@ public class AndroidWebServer extends Activity {
         public void run() {
             errorType = "";
             updateUploadInfo();
-            if (refreshToken == null || refreshToken.isEmpty()) {
+            if (uploadDestinationList.isEmpty()) {
                 errorType = ErrorType.NOT_SETTINGS.getType();
             } else {
-                int refreshCount = 0;
-                boolean refreshResult = false;
-                while(!refreshResult && refreshCount < REFRESH_COUNT_MAX) {
-                    refreshResult = server.hasRefreshToken();
-                    refreshCount++;
-                }
+                server.refreshAccessTokens();
                 server.hasUploadFile();
             }
             Intent intent = new Intent(SpecifiedResultReceiver.SPECIFED_RESULT);
@@ -353,51 +489,203 @@ public class AndroidWebServer extends Activity {
         return new ByteArrayInputStream(str.getBytes("utf-8"));
     }
 
+    /**
+     * Get the status of the upload for /check_uploading and /events
+     *
+     * @return Status to convert to JSON
+     */
+    private Map<String, Object> getUploadStatus() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        if (isUploading) {
+            map.put("isUploading", 1);
+            map.put("current", uploadCurrentNumber.get());
+            map.put("all", uploadAllNumber.get());
+            map.put("uploadedBytes", uploadProgress.getUploadedBytes());
+            map.put("allBytes", uploadAllBytes.get());
+            map.put("savedBytes", transformSavedBytes.get());
+            map.put("progress", getProgressStatus());
+        } else {
+            map.put("isUploading", 0);
+            map.put("current", 0);
+            map.put("all", 0);
+            map.put("uploadedBytes", 0);
+            map.put("allBytes", 0);
+            map.put("savedBytes", 0);
+        }
+        map.put("led", ledState);
+        map.put("errorType", errorType);
+        AuthJob job = authJob;
+        if (job != null) {
+            map.put("auth", job.toMap());
+        }
+        map.put("previews", getPreviewStatus());
+        map.put("memory", getMemoryStatus());
+        map.put("connections", getConnectionStatus());
+        return map;
+    }
+
+    /**
+     * Get the connections of the HTTP server
+     *
+     * @return Numbers of the connections being handled, waiting and closed because the queue was full
+     */
+    private Map<String, Object> getConnectionStatus() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("active", httpRunner.getActiveCount());
+        map.put("queued", httpRunner.getQueuedCount());
+        map.put("rejected", httpRunner.getRejectedCount());
+        map.put("maxThreads", httpRunner.getMaxThreads());
+        map.put("eventViewers", eventBroadcaster.getSubscriberCount());
+        return map;
+    }
+
+    /**
+     * Get the throughput and the files being uploaded
+     *
+     * @return Throughput in bytes per second, estimated seconds remaining, and bytes sent by file
+     */
+    private Map<String, Object> getProgressStatus() {
+        uploadProgress.sample(System.currentTimeMillis());
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("bytesPerSec", uploadProgress.getBytesPerSec());
+        map.put("ewmaBytesPerSec", uploadProgress.getEwmaBytesPerSec());
+        map.put("etaSec", uploadProgress.getEtaSec());
+        List<Map<String, Object>> fileList = new ArrayList<>();
+        for (UploadProgress.FileProgress fileProgress : uploadProgress.getFileList()) {
+            Map<String, Object> fileMap = new LinkedHashMap<>();
+            fileMap.put("name", fileProgress.getName());
+            fileMap.put("uploadedBytes", fileProgress.getUploadedBytes());
+            fileMap.put("size", fileProgress.getSize());
+            fileList.add(fileMap);
+        }
+        map.put("files", fileList);
+        return map;
+    }
+
+    /**
+     * Get the progress of the previews uploaded before the originals
+     *
+     * @return Numbers of previews, and the time from the start of the upload until all previews were uploaded,
+     * or -1 until then
+     */
+    private Map<String, Object> getPreviewStatus() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("all", previewAllNumber);
+        map.put("uploaded", previewUploadedNumber.get());
+        map.put("timeToPreviewsMSec", timeToPreviewsMSec);
+        return map;
+    }
+
+    /**
+     * Get the memory reserved by each stage of the upload pipeline
+     *
+     * @return Number of bytes by stage, with the budget and the number of waiting stages
+     */
+    private Map<String, Object> getMemoryStatus() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("budget", memoryGovernor.getBudget());
+        map.put("reserved", memoryGovernor.getReservedBytes());
+        map.put("pooled", BufferPool.getSharedPool().getPooledBytes());
+        for (MemoryGovernor.Stage stage : MemoryGovernor.Stage.values()) {
+            map.put(stage.getName(), memoryGovernor.getReservedBytes(stage));
+        }
+        map.put("maxReserved", memoryGovernor.getMaxReservedBytes());
+        map.put("waiting", memoryGovernor.getWaitingCount());
+        return map;
+    }
+
     private void updateUploadInfo() {
-        // Confirm whether the upload destination authentication information is stored in the DB
-        Cursor cursor = dbObject.query("auth_information", null, null, null, null, null, null, null);
+        // Confirm whether the upload destination authentication information is stored in the DB.
+        // Every destination with a refresh token receives the photos.
+        Cursor cursor = database.queryAuthInformation();
         try {
-            if (cursor.moveToNext()) {
-                refreshToken = cursor.getString(cursor.getColumnIndex("refresh_token"));
-                userId = cursor.getString(cursor.getColumnIndex("user_id"));
+            if (cursor.getCount() == 0) {
+                // Create a record if there is no record in DB
+                database.insertEmptyAuthInformation();
+            }
+
+            List<UploadDestination> destinationList = new ArrayList<>();
+            String currentApiType = uploadPhotoApi == null ? null : uploadPhotoApi.getApiType();
+            boolean isCurrentFound = false;
+            while (cursor.moveToNext()) {
+                String rowRefreshToken = cursor.getString(cursor.getColumnIndex("refresh_token"));
+                String rowUserId = cursor.getString(cursor.getColumnIndex("user_id"));
                 String apiType = cursor.getString(cursor.getColumnIndex("api_type"));
-                if (!apiType.isEmpty() && (uploadPhotoApi == null || !uploadPhotoApi.getApiType().equals(apiType))) {
-                    uploadPhotoApi = UploadPhotoApiFactory.createUploadPhotoApi(con, apiType);
+                if (apiType == null || apiType.isEmpty()) {
+                    continue;
+                }
+
+                // The destination being set up on the setting page is shown on the page
+                if (apiType.equals(currentApiType) || (!isCurrentFound && uploadPhotoApi == null)) {
+                    if (uploadPhotoApi == null) {
+                        uploadPhotoApi = UploadProviderRegistry.createUploadPhotoApi(con, apiType);
+                    }
+                    refreshToken = rowRefreshToken;
+                    userId = rowUserId;
+                    isCurrentFound = true;
+                }
+
+                if (rowRefreshToken == null || rowRefreshToken.isEmpty()) {
+                    continue;
+                }
+                UploadDestination destination = findUploadDestination(apiType);
+                if (destination == null || !rowRefreshToken.equals(destination.getRefreshToken())
+                        || !rowUserId.equals(destination.getUserId())) {
+                    UploadPhotoApi api = UploadProviderRegistry.createUploadPhotoApi(con, apiType);
+                    if (api == null) {
+                        continue;
+                    }
+                    destination = new UploadDestination(api, rowRefreshToken, rowUserId);
                     // Update list of uploaded photos
-                    updateUploadedPhotoList();
+                    updateUploadedPhotoList(destination);
                 }
-            } else {
-                // Create a record if there is no record in DB
-                ContentValues values;
-                values = new ContentValues();
-                values.put("refresh_token", "");
-                values.put("user_id", "");
-                values.put("api_type", "");
-                dbObject.insert("auth_information", null, values);
+                destinationList.add(destination);
             }
+            uploadDestinationList = destinationList;
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
             cursor.close();
         }
 
-        if (refreshToken != null && !refreshToken.isEmpty()) {
-            isReady = true;
-        } else {
-            isReady = false;
+        isReady = !uploadDestinationList.isEmpty();
+    }
+
+    private UploadDestination findUploadDestination(String apiType) {
+        for (UploadDestination destination : uploadDestinationList) {
+            if (destination.getApiType().equals(apiType)) {
+                return destination;
+            }
         }
+        return null;
     }
 
-    private void updateUploadedPhotoList() {
-        Cursor cursor = dbObject.query("uploaded_photo", null, "api_type = ?", new String[]{uploadPhotoApi.getApiType()}, null, null, null, null);
-        uploadedPhotoList = new ArrayList();
+    private void updateUploadedPhotoList(UploadDestination destination) {
+        updateUploadedPreviewList(destination);
+        Cursor cursor = database.queryUploadedPhotos(destination.getApiType());
         try {
             while (cursor.moveToNext()) {
                 PhotoInformation uploadedPhoto = new PhotoInformation();
                 uploadedPhoto.setPath(cursor.getString(cursor.getColumnIndex("path")));
                 uploadedPhoto.setDatetime(cursor.getString(cursor.getColumnIndex("datetime")));
                 uploadedPhoto.setUserId(cursor.getString(cursor.getColumnIndex("user_id")));
-                uploadedPhotoList.add(uploadedPhoto);
+                uploadedPhoto.setContentHash(cursor.getString(cursor.getColumnIndex("content_hash")));
+                uploadedPhoto.setSize(cursor.getLong(cursor.getColumnIndex("size")));
+                destination.addUploadedPhoto(uploadedPhoto);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new SQLiteException("[select data] Unexpected exception");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void updateUploadedPreviewList(UploadDestination destination) {
+        Cursor cursor = database.queryUploadedPreviewPaths(destination.getApiType(), destination.getUserId());
+        try {
+            while (cursor.moveToNext()) {
+                destination.addUploadedPreview(cursor.getString(0));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -410,40 +698,53 @@ public class AndroidWebServer extends Activity {
     private void changeReadyLed() {
         Intent intent = new Intent(ChangeLedReceiver.CHANGE_READY_LED);
         con.sendBroadcast(intent);
+        changeLedState("ready");
     }
 
     private void changeTransferringLed() {
         Intent intent = new Intent(ChangeLedReceiver.CHANGE_TRANSFERRING_LED);
         con.sendBroadcast(intent);
+        changeLedState("transferring");
     }
 
     private void changeStopTransferringLed() {
         Intent intent = new Intent(ChangeLedReceiver.CHANGE_STOP_TRANSFERRING_LED);
         con.sendBroadcast(intent);
+        changeLedState("stopTransferring");
     }
 
     private void changeErrorLed() {
         Intent intent = new Intent(ChangeLedReceiver.CHANGE_ERROR_LED);
         con.sendBroadcast(intent);
+        changeLedState("error");
+    }
+
+    private void changeLedState(String state) {
+        ledState = state;
+        eventBroadcaster.notifyChanged();
     }
 
     private void notificationStartUpload() {
         isUploading = true;
         Intent intent = new Intent(UploadStatusReceiver.UPLOAD_START);
         con.sendBroadcast(intent);
+        eventBroadcaster.notifyChanged();
     }
 
     private void notificationEndUpload() {
+        // The history is on storage before anything reacts to the end, such as shutting down
+        uploadedPhotoCommitter.flush();
         isUploading = false;
         Intent intent = new Intent(UploadStatusReceiver.UPLOAD_END);
         con.sendBroadcast(intent);
+        eventBroadcaster.notifyChanged();
     }
 
     /**
      * HTTP communication implementation class
      *
      */
-    private class SimpleHttpd extends NanoHTTPD implements UploadPhotoApiCallback {
+    private class SimpleHttpd extends NanoHTTPD {
         private final Logger LOG = Logger.getLogger(SimpleHttpd.class.getName());
         private ExecutorService uploadFileService = null;
         private ExecutorService pollingGetTokenService = null;
@@ -453,6 +754,16 @@ public class AndroidWebServer extends Activity {
          */
         public SimpleHttpd() throws IOException {
             super(PORT);
+            setAsyncRunner(httpRunner);
+        }
+
+        /**
+         * Static assets are compressed in advance, pages are sent with a fixed length, and events
+         * must not be held back by a compressor, so responses are never compressed on the fly
+         */
+        @Override
+        protected boolean useGzipWhenAccepted(Response r) {
+            return false;
         }
 
         /**
@@ -485,29 +796,57 @@ public class AndroidWebServer extends Activity {
             Map<String, String> params = session.getParms();
 
             if (params.get("google_auth") != null) {
+                uploadPhotoApi = UploadProviderRegistry.createUploadPhotoApi(con, GoogleDataApi.API_TYPE);
+                refreshToken = null;
+                userId = null;
                 updateUploadInfo();
                 if (isReady) {
                     changeReadyLed();
                 }
-                try {
-                    // Start upload destination authentication
-                    uploadPhotoApi = UploadPhotoApiFactory.createUploadPhotoApi(con, UploadPhotoApiFactory.GOOGLE_PHOTO);
-                    doAuthorization();
-                    uri = "/google_auth.html";
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new SQLiteException("[update data] unexpected exception");
-                }
+                // Start upload destination authentication, and the page waits for the code
+                startAuthorization();
+                uri = "/google_auth.html";
             } else if (params.get("timeout_page") != null) {
                 uri = "/timeout.html";
             } else if (params.get("no_operation_timeout_minute") != null) {
                 ContentValues values = new ContentValues();
                 values.put("no_operation_timeout_minute", params.get("no_operation_timeout_minute"));
-                dbObject.update("theta360_setting", values, null, null);
+                updateSettingDb(values);
                 requested = true;
+            } else if (params.get("upload_max_dimension") != null || params.get("upload_quality") != null) {
+                // Upload smaller copies of the photos. 0 uploads the originals.
+                ContentValues values = new ContentValues();
+                try {
+                    if (params.get("upload_max_dimension") != null) {
+                        values.put("upload_max_dimension", Math.max(0, Integer.parseInt(params.get("upload_max_dimension"))));
+                    }
+                    if (params.get("upload_quality") != null) {
+                        values.put("upload_quality", Math.max(0, Math.min(100, Integer.parseInt(params.get("upload_quality")))));
+                    }
+                    updateSettingDb(values);
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            } else if (params.get("is_preview_first") != null) {
+                ContentValues values = new ContentValues();
+                values.put("is_preview_first", "1".equals(params.get("is_preview_first")) ? 1 : 0);
+                updateSettingDb(values);
+            } else if (params.get("queue_policy") != null || params.get("queue_deadline_minute") != null) {
+                ContentValues values = new ContentValues();
+                try {
+                    if (params.get("queue_policy") != null) {
+                        values.put("queue_policy", UploadQueuePolicy.getPolicy(params.get("queue_policy")).getName());
+                    }
+                    if (params.get("queue_deadline_minute") != null) {
+                        values.put("queue_deadline_minute", Math.max(0, Integer.parseInt(params.get("queue_deadline_minute"))));
+                    }
+                    updateSettingDb(values);
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
             }
 
-            return serveFile(uri);
+            return serveFile(uri, session.getHeaders(), params);
         }
 
         private void startPollingGetToken() {
@@ -565,37 +904,74 @@ public class AndroidWebServer extends Activity {
         private class UploadFile implements Runnable {
             @Override
             public void run() {
+                refreshAccessTokens();
                 if (!hasUploadFile()) {
                     changeErrorLed();
                 }
             }
         }
 
-        private void doAuthorization() {
-            uploadPhotoApi.setCallback(this);
-            uploadPhotoApi.startRequestCode();
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
+        /**
+         * Check access to the WebDAV server in the background, replacing the job that is running.
+         * The server becomes the destination on the setting page only if the check succeeds.
+         *
+         * @return Job that ends when the check is done
+         */
+        private AuthJob startWebDavCheck() {
+            // Both the token and the user information requests may take the timeout
+            final AuthJob job = new AuthJob(UUID.randomUUID().toString(), AUTH_JOB_TIMEOUT_MSEC * 2);
+            AuthJob previousJob = authJob;
+            authJob = job;
+            if (previousJob != null) {
+                previousJob.fail("cancelled");
+            }
+            eventBroadcaster.notifyChanged();
+
+            ExecutorService service = Executors.newSingleThreadExecutor();
+            try {
+                service.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        UploadPhotoApi api = UploadProviderRegistry.createUploadPhotoApi(con, WebDavApi.API_TYPE);
+                        if (!hasAccessToken(api) || !hasUserinfo(api)) {
+                            job.fail("unauthorized");
+                        } else if (job.getState() == AuthJob.State.RUNNING) {
+                            uploadPhotoApi = api;
+                            refreshToken = api.getRefreshToken();
+                            userId = api.getUserId();
+                            changeReadyLed();
+                            updateAuthDb();
+                            job.succeed();
+                        }
+                        eventBroadcaster.notifyChanged();
+                    }
+                });
+            } finally {
+                service.shutdown();
             }
+            return job;
         }
 
-        private boolean hasAccessToken() {
-            // Get a token
-            uploadPhotoApi.setCallback(this);
-            uploadPhotoApi.startRequestToken();
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
+        /**
+         * Request a device code in the background, replacing the job that is running
+         *
+         * @return Job that receives the code
+         */
+        private AuthJob startAuthorization() {
+            AuthJob job = new AuthJob(UUID.randomUUID().toString(), AUTH_JOB_TIMEOUT_MSEC);
+            AuthJob previousJob = authJob;
+            authJob = job;
+            if (previousJob != null) {
+                previousJob.fail("cancelled");
             }
+            uploadPhotoApi.setCallback(new AuthJobCallback(uploadPhotoApi, job));
+            uploadPhotoApi.startRequestCode();
+            eventBroadcaster.notifyChanged();
+            return job;
+        }
 
-            if (uploadPhotoApi.getAccessToken() == null || uploadPhotoApi.getAccessToken().isEmpty()) {
+        private boolean hasAccessToken() {
+            if (!hasAccessToken(uploadPhotoApi)) {
                 return false;
             }
             changeReadyLed();
@@ -603,63 +979,142 @@ public class AndroidWebServer extends Activity {
             return true;
         }
 
-        private boolean hasRefreshToken() {
-            uploadPhotoApi.setRefreshToken(refreshToken);
-            uploadPhotoApi.setCallback(this);
-            uploadPhotoApi.startRefreshToken();
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
+        private boolean hasAccessToken(UploadPhotoApi api) {
+            // Get a token
+            ApiCallback callback = new ApiCallback(api);
+            api.setCallback(callback);
+            api.startRequestToken();
+            if (!callback.await(AUTH_JOB_TIMEOUT_MSEC)) {
+                return false;
             }
 
-            if (uploadPhotoApi.getAccessToken() == null || uploadPhotoApi.getAccessToken().isEmpty()) {
+            if (api.getAccessToken() == null || api.getAccessToken().isEmpty()) {
                 return false;
             }
             return true;
         }
 
-        private boolean hasUserinfo() {
-            uploadPhotoApi.setCallback(this);
-            uploadPhotoApi.startRequestUserinfo();
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
+        /**
+         * Get the access tokens of all upload destinations
+         */
+        private void refreshAccessTokens() {
+            for (UploadDestination destination : uploadDestinationList) {
+                int refreshCount = 0;
+                boolean refreshResult = false;
+                while(!refreshResult && refreshCount < REFRESH_COUNT_MAX) {
+                    refreshResult = hasRefreshToken(destination);
+                    refreshCount++;
                 }
             }
+        }
+
+        private boolean hasRefreshToken(UploadDestination destination) {
+            UploadPhotoApi api = destination.getUploadPhotoApi();
+            api.setRefreshToken(destination.getRefreshToken());
+            ApiCallback callback = new ApiCallback(api);
+            api.setCallback(callback);
+            api.startRefreshToken();
+            if (!callback.await(AUTH_JOB_TIMEOUT_MSEC)) {
+                return false;
+            }
+
+            if (api.getAccessToken() == null || api.getAccessToken().isEmpty()) {
+                return false;
+            }
+            return true;
+        }
 
-            if (uploadPhotoApi.getUserId() == null || uploadPhotoApi.getUserId().isEmpty()) {
+        private boolean hasUserinfo() {
+            if (!hasUserinfo(uploadPhotoApi)) {
                 return false;
             }
             userId = uploadPhotoApi.getUserId();
             return true;
         }
 
+        private boolean hasUserinfo(UploadPhotoApi api) {
+            ApiCallback callback = new ApiCallback(api);
+            api.setCallback(callback);
+            api.startRequestUserinfo();
+            if (!callback.await(AUTH_JOB_TIMEOUT_MSEC)) {
+                return false;
+            }
+            if (api.getUserId() == null || api.getUserId().isEmpty()) {
+                return false;
+            }
+            return true;
+        }
+
         private boolean hasUploadFile() {
             notificationStartUpload();
             changeTransferringLed();
-            uploadPhotoApi.setUserId(userId);
             boolean result = true;
+
+            List<UploadDestination> destinationList = new ArrayList<>();
+            for (UploadDestination destination : uploadDestinationList) {
+                UploadPhotoApi api = destination.getUploadPhotoApi();
+                if (api.getAccessToken() == null || api.getAccessToken().isEmpty()) {
+                    Timber.e("Access token is empty : " + destination.getApiType());
+                    result = false;
+                    continue;
+                }
+                api.setUserId(destination.getUserId());
+                destinationList.add(destination);
+            }
+
+            SettingData settingData = readSettingData();
+            UploadQueuePolicy queuePolicy = UploadQueuePolicy.getPolicy(settingData.getQueuePolicy());
+            Set<String> specifiedPathSet = new HashSet<>();
             if (specifiedPhotoList == null || specifiedPhotoList.size() == 0) {
-                uploadingPhotoList = getPhotoList(DCIM_PATH);
-                uploadingPhotoList.addAll(getPhotoList(PICTURES_PATH));
+                uploadingPhotoList = getPhotoList(DCIM_PATH, destinationList, settingData.getIsUploadMovie());
+                uploadingPhotoList.addAll(getPhotoList(PICTURES_PATH, destinationList, settingData.getIsUploadMovie()));
             } else {
                 uploadingPhotoList = new ArrayList();
                 for (PhotoInformation photoInformation : specifiedPhotoList) {
                     photoInformation.setUserId(userId);
                     uploadingPhotoList.add(photoInformation);
+                    specifiedPathSet.add(photoInformation.getPath());
+                }
+                if (queuePolicy == UploadQueuePolicy.SPECIFIED_FIRST) {
+                    // The specified photos go first, and the other photos follow in the same session
+                    List<PhotoInformation> photoList = getPhotoList(DCIM_PATH, destinationList, settingData.getIsUploadMovie());
+                    photoList.addAll(getPhotoList(PICTURES_PATH, destinationList, settingData.getIsUploadMovie()));
+                    for (PhotoInformation photoInformation : photoList) {
+                        if (!specifiedPathSet.contains(photoInformation.getPath())) {
+                            uploadingPhotoList.add(photoInformation);
+                        }
+                    }
                 }
             }
-            uploadAllNumber = uploadingPhotoList.size();
-            uploadCurrentNumber = 0;
-            Timber.i("uploading " + uploadAllNumber + " files");
-
-            if (uploadPhotoApi.getAccessToken() == null || uploadPhotoApi.getAccessToken().isEmpty()) {
-                Timber.e("Access token is empty");
+            for (PhotoInformation photoInformation : uploadingPhotoList) {
+                photoInformation.setSize(new File(photoInformation.getPath()).length());
+            }
+            long deadlineBytes = Long.MAX_VALUE;
+            if (settingData.getQueueDeadlineMinute() > 0) {
+                deadlineBytes = settingData.getQueueDeadlineMinute() * 60L * lastThroughputBytesPerSec;
+            }
+            uploadingPhotoList = queuePolicy.order(uploadingPhotoList, specifiedPathSet, deadlineBytes);
+            Timber.i("queue policy : " + queuePolicy.getName());
+            final UploadQueue queue = new UploadQueue(uploadingPhotoList);
+            uploadQueue = queue;
+            uploadAllNumber.set(uploadingPhotoList.size());
+            uploadCurrentNumber.set(0);
+            uploadStartMSec = System.currentTimeMillis();
+            previewAllNumber = 0;
+            previewUploadedNumber.set(0);
+            timeToPreviewsMSec = -1;
+            long allBytes = 0;
+            for (PhotoInformation photoInformation : uploadingPhotoList) {
+                allBytes += photoInformation.getSize();
+            }
+            uploadAllBytes.set(allBytes);
+            transformSavedBytes.set(0);
+            storageReadBytes.set(0);
+            uploadProgress.start(allBytes, System.currentTimeMillis());
+            Timber.i("uploading " + uploadAllNumber.get() + " files to " + destinationList.size() + " destinations");
+
+            if (destinationList.isEmpty()) {
+                queue.close();
                 changeReadyLed();
                 uploadingPhotoList = null;
                 specifiedPhotoList = null;
@@ -668,75 +1123,100 @@ public class AndroidWebServer extends Activity {
                 return false;
             }
 
-            boolean isNotAuthorization = false;
-            SettingData settingData = readSettingData();
-            int timeoutMSec = settingData.getNoOperationTimeoutMinute() * 60 * 1000;
-            try {
-                boolean isFirst = true;
-                for (PhotoInformation photoInformation : uploadingPhotoList) {
-                    if (isFirst) {
-                        isFirst = false;
-                    } else {
-                        uploadCurrentNumber++;
-                    }
-                    uploadingPhoto = photoInformation;
-                    isSucceedUpload = null;
-                    try {
-                        File file = new File(photoInformation.getPath());
-                        byte[] byteArray = new byte[(int) file.length()];
-                        FileInputStream fis = new FileInputStream(file);
-                        fis.read(byteArray);
-                        fis.close();
-                        String encodedData = Base64.encodeToString(byteArray, Base64.DEFAULT);
-
-                        uploadPhotoApi.setUploadData(encodedData);
-                        uploadPhotoApi.setUploadDataName(file.getName());
-                        uploadPhotoApi.startUploadFile();
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        result = false;
-                        continue;
-                    }
+            // The number of parallel uploads is limited by the destination that allows the fewest,
+            // because a photo is sent to all destinations from one read
+            int concurrentUploads = Integer.MAX_VALUE;
+            for (UploadDestination destination : destinationList) {
+                ProviderCapabilities capabilities = destination.getUploadPhotoApi().getCapabilities();
+                Timber.i(destination.getApiType() + " : concurrency=" + capabilities.getMaxConcurrency()
+                        + " batchCommit=" + capabilities.getMaxBatchSize()
+                        + " resumable=" + capabilities.isResumable() + " multipart=" + capabilities.isMultipart());
+                concurrentUploads = Math.min(concurrentUploads, capabilities.getMaxConcurrency());
+                destination.getUploadPhotoApi().getTransportStage().beginUploadSession();
+            }
 
-                    long startUploadingMSec = System.currentTimeMillis();
-                    while (true) {
-                        if (isSucceedUpload == null) {
-                            if (Thread.interrupted()) {
-                                throw new InterruptedException("");
-                            }
-                            continue;
-                        } else if (isSucceedUpload) {
-                            break;
-                        } else {
-                            if (errorCode == HttpsURLConnection.HTTP_BAD_REQUEST ||
-                                    errorCode == HttpsURLConnection.HTTP_FORBIDDEN) {
-                                errorType = ErrorType.BAD_SETTINGS.getType();
-                                isNotAuthorization = true;
-                            } else {
-                                if (timeoutMSec > 0 && System.currentTimeMillis() - startUploadingMSec > timeoutMSec) {
-                                    errorType = ErrorType.TIMEOUT.getType();
-                                    break;
-                                }
-                                changeStopTransferringLed();
-                                Thread.sleep(UPLOAD_RETRY_WAIT_MSEC);
-                                changeTransferringLed();
-                                uploadPhotoApi.startUploadFile();
-                                continue;
-                            }
-                        }
-                        break;
+            Set<UploadDestination> rejectedDestinationSet = Collections.newSetFromMap(new ConcurrentHashMap<UploadDestination, Boolean>());
+            int timeoutMSec = settingData.getNoOperationTimeoutMinute() * 60 * 1000;
+            ExecutorService uploadWorkerService = Executors.newFixedThreadPool(concurrentUploads);
+            ExecutorService fanOutService = null;
+            if (destinationList.size() > 1) {
+                fanOutService = Executors.newFixedThreadPool(concurrentUploads * destinationList.size());
+            }
+            if (settingData.getIsPreviewFirst()) {
+                uploadPreviews(destinationList, uploadWorkerService, rejectedDestinationSet);
+            }
+            List<File> fileList = new ArrayList<>();
+            for (PhotoInformation photoInformation : uploadingPhotoList) {
+                fileList.add(new File(photoInformation.getPath()));
+            }
+            ImageTransformer transformer = null;
+            FilePrefetcher prefetcher;
+            if (ImageTransformer.isEnabled(settingData.getUploadMaxDimension(), settingData.getUploadQuality())) {
+                // The transform waits for nothing but the queue, so that a photo moved to the front is made first
+                transformer = new ImageTransformer(queue, new File(con.getCacheDir(), TRANSFORM_DIRECTORY),
+                        settingData.getUploadMaxDimension(), settingData.getUploadQuality(), memoryGovernor, TRANSFORM_AHEAD_COUNT);
+                transformer.start();
+                // Photos are read by the transform, so only the other files are read ahead
+                List<File> prefetchList = new ArrayList<>();
+                for (File file : fileList) {
+                    if (!ImageTransformer.isTarget(file)) {
+                        prefetchList.add(file);
                     }
-                    if (isNotAuthorization) {
+                }
+                prefetcher = new FilePrefetcher(prefetchList, READ_AHEAD_SIZE, READ_AHEAD_MEMORY_BUDGET, memoryGovernor);
+            } else {
+                prefetcher = new FilePrefetcher(queue, READ_AHEAD_SIZE, READ_AHEAD_MEMORY_BUDGET, memoryGovernor);
+            }
+            prefetcher.start();
+            queue.setListener(new QueueListener(prefetcher, transformer));
+            try {
+                List<Future<Boolean>> uploadResultList = new ArrayList<>();
+                for (int i = 0; i < concurrentUploads; i++) {
+                    uploadResultList.add(uploadWorkerService.submit(
+                            new QueueWorker(queue, destinationList, timeoutMSec, rejectedDestinationSet, fanOutService, prefetcher, transformer)));
+                }
+                for (Future<Boolean> uploadResult : uploadResultList) {
+                    if (!uploadResult.get()) {
                         result = false;
-                        break;
                     }
                 }
-                uploadCurrentNumber++;
                 // Wait 3 seconds + alpha for 3 seconds to flash the LED in the upload completed state
                 Thread.sleep(3200);
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                result = false;
             } catch (InterruptedException e){
                 Thread.currentThread().interrupt();
+            } finally {
+                queue.close();
+                uploadWorkerService.shutdownNow();
+                if (fanOutService != null) {
+                    fanOutService.shutdownNow();
+                }
+                // Commit the last batches even if the session was stopped, since their files were already sent
+                if (!commitPendingBatches(destinationList, uploadWorkerService, fanOutService)) {
+                    result = false;
+                }
+                prefetcher.close();
+                Timber.i("read ahead " + prefetcher.getHitCount() + " files, missed " + prefetcher.getMissCount()
+                        + " files, max " + prefetcher.getMaxUsedBytes() + " bytes");
+                if (transformer != null) {
+                    transformer.close();
+                    Timber.i("made " + transformer.getTransformedCount() + " smaller copies, saved " + transformSavedBytes.get() + " bytes of upload");
+                }
+                for (UploadDestination destination : destinationList) {
+                    destination.getUploadPhotoApi().getTransportStage().endUploadSession();
+                }
+            }
+            long elapsedMSec = System.currentTimeMillis() - uploadStartMSec;
+            if (uploadProgress.getSentBytes() > 0 && elapsedMSec > 0) {
+                lastThroughputBytesPerSec = Math.max(1, uploadProgress.getSentBytes() * 1000 / elapsedMSec);
             }
+            Timber.i("read " + storageReadBytes.get() + " bytes from storage for " + uploadAllNumber.get() + " files");
+            BufferPool bufferPool = BufferPool.getSharedPool();
+            Timber.i("buffer pool : hit rate " + Math.round(bufferPool.getHitRate() * 100) + "% of " + bufferPool.getAcquireCount()
+                    + " buffers, max " + bufferPool.getHighWaterBytes() + " bytes in use, " + bufferPool.getPooledBytes() + " bytes pooled");
+            Timber.i("memory governor : max " + memoryGovernor.getMaxReservedBytes() + " of " + memoryGovernor.getBudget() + " bytes reserved");
             changeReadyLed();
             uploadingPhotoList = null;
             specifiedPhotoList = null;
@@ -746,46 +1226,720 @@ public class AndroidWebServer extends Activity {
             return result;
         }
 
-        private List<PhotoInformation> getPhotoList(String searchPath) {
-            List photoList = new ArrayList();
-
-            String path;
-            for (File file: new File(searchPath).listFiles()) {
-                path = file.getAbsolutePath();
-                if (file.isFile()) {
-                    if (!(path.endsWith(".JPG") || path.endsWith(".jpg") || path.endsWith(".jpeg"))) {
-                        continue;
-                    }
-                    try {
-                        ExifInterface exifInterface = new ExifInterface(path);
-                        String datetime = exifInterface.getAttribute(ExifInterface.TAG_DATETIME);
-                        PhotoInformation uploadingPhoto = new PhotoInformation();
-                        uploadingPhoto.setPath(path);
-                        uploadingPhoto.setDatetime(datetime);
-                        uploadingPhoto.setUserId(userId);
-                        if (!uploadedPhotoList.contains(uploadingPhoto)) {
-                            photoList.add(uploadingPhoto);
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else if (file.isDirectory()) {
-                    photoList.addAll(getPhotoList(path));
+        /**
+         * Wait until the upload workers stop, and commit the transferred files waiting for a batch
+         *
+         * @return true if all files were stored
+         */
+        private boolean commitPendingBatches(List<UploadDestination> destinationList, ExecutorService uploadWorkerService,
+                                             ExecutorService fanOutService) {
+            // The session may have been stopped by an interrupt, which would end the waits at once
+            boolean isInterrupted = Thread.interrupted();
+            try {
+                uploadWorkerService.awaitTermination(UPLOAD_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+                if (fanOutService != null) {
+                    fanOutService.awaitTermination(UPLOAD_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
                 }
+            } catch (InterruptedException e) {
+                isInterrupted = true;
             }
-
-            return photoList;
+            boolean result = true;
+            for (UploadDestination destination : destinationList) {
+                Map<String, UploadQueue.Item> batch = destination.takePendingCommits();
+                if (!batch.isEmpty() && !commitBatch(destination, batch)) {
+                    result = false;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
         }
 
         /**
-         * Sending files
-         *
-         * @param uri requested url
-         * @return resource
+         * Upload a small preview of every photo before the originals, so that all photos of a shoot
+         * can be seen soon after it ends. A preview that fails is not retried, since the original follows.
          */
-        private Response serveFile(String uri) {
-
-            if (uri.equals("/login")) {
+        private void uploadPreviews(List<UploadDestination> destinationList, ExecutorService uploadWorkerService,
+                                    Set<UploadDestination> rejectedDestinationSet) {
+            List<PhotoInformation> previewPhotoList = new ArrayList<>();
+            List<File> fileList = new ArrayList<>();
+            for (PhotoInformation photoInformation : uploadingPhotoList) {
+                File file = new File(photoInformation.getPath());
+                if (ImageTransformer.isTarget(file) && !getPreviewDestinationList(destinationList, photoInformation).isEmpty()) {
+                    previewPhotoList.add(photoInformation);
+                    fileList.add(file);
+                }
+            }
+            previewAllNumber = previewPhotoList.size();
+            if (previewPhotoList.isEmpty()) {
+                return;
+            }
+
+            ImageTransformer previewTransformer = new ImageTransformer(fileList, new File(con.getCacheDir(), PREVIEW_DIRECTORY),
+                    PREVIEW_MAX_DIMENSION, PREVIEW_QUALITY, memoryGovernor, TRANSFORM_AHEAD_COUNT);
+            previewTransformer.start();
+            try {
+                List<Future<?>> previewResultList = new ArrayList<>();
+                for (PhotoInformation photoInformation : previewPhotoList) {
+                    previewResultList.add(uploadWorkerService.submit(
+                            new PreviewWorker(photoInformation, destinationList, rejectedDestinationSet, previewTransformer)));
+                }
+                for (Future<?> previewResult : previewResultList) {
+                    previewResult.get();
+                }
+                timeToPreviewsMSec = System.currentTimeMillis() - uploadStartMSec;
+                Timber.i("uploaded " + previewUploadedNumber.get() + " of " + previewAllNumber + " previews in " + timeToPreviewsMSec + " msec");
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                previewTransformer.close();
+            }
+        }
+
+        /**
+         * Get the destinations that have neither the preview nor the original of the photo
+         */
+        private List<UploadDestination> getPreviewDestinationList(List<UploadDestination> destinationList, PhotoInformation photoInformation) {
+            List<UploadDestination> previewList = new ArrayList<>();
+            for (UploadDestination destination : destinationList) {
+                if (!destination.hasUploadedPreview(photoInformation.getPath()) && !destination.hasUploaded(photoInformation)) {
+                    previewList.add(destination);
+                }
+            }
+            return previewList;
+        }
+
+        /**
+         * Upload the preview of one photo, named after the photo such as R0010001_preview.JPG.
+         * The preview is committed at once, so that it is visible without waiting for a batch.
+         */
+        private class PreviewWorker implements Runnable {
+            private final PhotoInformation photoInformation;
+            private final List<UploadDestination> destinationList;
+            private final Set<UploadDestination> rejectedDestinationSet;
+            private final ImageTransformer transformer;
+
+            PreviewWorker(PhotoInformation photoInformation, List<UploadDestination> destinationList,
+                          Set<UploadDestination> rejectedDestinationSet, ImageTransformer transformer) {
+                this.photoInformation = photoInformation;
+                this.destinationList = destinationList;
+                this.rejectedDestinationSet = rejectedDestinationSet;
+                this.transformer = transformer;
+            }
+
+            @Override
+            public void run() {
+                File file = new File(photoInformation.getPath());
+                File previewFile;
+                try {
+                    previewFile = transformer.take(file);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (previewFile == null) {
+                    return;
+                }
+
+                try {
+                    boolean isUploaded = false;
+                    for (UploadDestination destination : getPreviewDestinationList(destinationList, photoInformation)) {
+                        if (rejectedDestinationSet.contains(destination)) {
+                            continue;
+                        }
+                        try (PhotoFileStream stream = PhotoFileStream.open(previewFile, 0, memoryGovernor, MemoryGovernor.Stage.READ)) {
+                            PhotoInformation preview = new PhotoInformation();
+                            String name = file.getName();
+                            int extensionIndex = name.lastIndexOf('.');
+                            preview.setPath(new File(file.getParent(),
+                                    name.substring(0, extensionIndex) + PREVIEW_SUFFIX + name.substring(extensionIndex)).getPath());
+                            // The preview has the EXIF of the photo, so the date is the shooting date
+                            String datetime = stream.getDatetime();
+                            preview.setDatetime(datetime != null ? datetime : PhotoFileStream.getModifiedDatetime(file));
+                            preview.setUserId(photoInformation.getUserId());
+
+                            UploadPhotoApi api = destination.getUploadPhotoApi();
+                            String uploadToken = api.getTransportStage().transfer(preview, stream, previewFile.length(), false);
+                            if (api.getCommitStage() != null) {
+                                commitFile(api.getCommitStage(), uploadToken);
+                            }
+                            Timber.i("succeeded upload preview : " + preview.getPath() + " to " + destination.getApiType());
+                            insertUploadedPreviewDb(destination, photoInformation, new File(preview.getPath()).getName());
+                            isUploaded = true;
+                        } catch (Exception ex) {
+                            Timber.i("failed upload preview : " + photoInformation.getPath() + " to " + destination.getApiType() + " by " + ex.getMessage());
+                        }
+                    }
+                    if (isUploaded) {
+                        previewUploadedNumber.incrementAndGet();
+                    }
+                } finally {
+                    previewFile.delete();
+                }
+            }
+        }
+
+        /**
+         * Upload the files of the queue one after another until the queue is finished
+         */
+        private class QueueWorker implements Callable<Boolean> {
+            private final UploadQueue queue;
+            private final List<UploadDestination> destinationList;
+            private final int timeoutMSec;
+            private final Set<UploadDestination> rejectedDestinationSet;
+            private final ExecutorService fanOutService;
+            private final FilePrefetcher prefetcher;
+            private final ImageTransformer transformer;
+
+            QueueWorker(UploadQueue queue, List<UploadDestination> destinationList, int timeoutMSec,
+                        Set<UploadDestination> rejectedDestinationSet, ExecutorService fanOutService, FilePrefetcher prefetcher,
+                        ImageTransformer transformer) {
+                this.queue = queue;
+                this.destinationList = destinationList;
+                this.timeoutMSec = timeoutMSec;
+                this.rejectedDestinationSet = rejectedDestinationSet;
+                this.fanOutService = fanOutService;
+                this.prefetcher = prefetcher;
+                this.transformer = transformer;
+            }
+
+            @Override
+            public Boolean call() throws InterruptedException {
+                boolean result = true;
+                UploadQueue.Item item;
+                while ((item = queue.take()) != null) {
+                    boolean isUploaded = false;
+                    try {
+                        isUploaded = new UploadWorker(item, destinationList, timeoutMSec, rejectedDestinationSet,
+                                fanOutService, prefetcher, transformer).call();
+                    } catch (InterruptedException ex) {
+                        if (!item.isCancelled()) {
+                            throw ex;
+                        }
+                    } finally {
+                        queue.finish(item, isUploaded);
+                    }
+                    if (!isUploaded && !item.isCancelled()) {
+                        result = false;
+                    }
+                }
+                return result;
+            }
+        }
+
+        /**
+         * Release what the stages working ahead hold for cancelled files, and count the files
+         * cancelled or retried in the session
+         */
+        private class QueueListener implements UploadQueue.Listener {
+            private final FilePrefetcher prefetcher;
+            private final ImageTransformer transformer;
+
+            QueueListener(FilePrefetcher prefetcher, ImageTransformer transformer) {
+                this.prefetcher = prefetcher;
+                this.transformer = transformer;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onCancelled(UploadQueue.Item item, boolean wasPending) {
+                File file = new File(item.getPhotoInformation().getPath());
+                if (transformer != null) {
+                    transformer.discard(file);
+                }
+                try {
+                    prefetcher.discard(file);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (wasPending) {
+                    // An uploading file is counted when its worker stops
+                    long size = item.getPhotoInformation().getSize();
+                    uploadAllNumber.decrementAndGet();
+                    uploadAllBytes.addAndGet(-size);
+                    uploadProgress.addAllBytes(-size);
+                }
+                eventBroadcaster.notifyChanged();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onRetried(UploadQueue.Item item) {
+                if (transformer != null) {
+                    transformer.reset(new File(item.getPhotoInformation().getPath()));
+                }
+                long size = item.getPhotoInformation().getSize();
+                uploadAllNumber.incrementAndGet();
+                uploadAllBytes.addAndGet(size);
+                uploadProgress.addAllBytes(size);
+                eventBroadcaster.notifyChanged();
+            }
+        }
+
+        /**
+         * Upload one photo to every destination that does not have it yet.
+         *
+         * The file is read once: EXIF is parsed from the header, and the content hash is computed
+         * from the same data that is sent. When there are several destinations, the data is shared
+         * through a bounded buffer. A destination that fails then retries alone, reading the
+         * file again, until it succeeds or the no-operation timeout elapses.
+         */
+        private class UploadWorker implements Callable<Boolean> {
+            private final UploadQueue.Item item;
+            private final PhotoInformation photoInformation;
+            private final List<UploadDestination> destinationList;
+            private final int timeoutMSec;
+            private final Set<UploadDestination> rejectedDestinationSet;
+            private final ExecutorService fanOutService;
+            private final FilePrefetcher prefetcher;
+            private final ImageTransformer transformer;
+            private PhotoFileStream prefetchedStream;
+            private File transformedFile;
+            private UploadProgress.FileProgress fileProgress;
+
+            UploadWorker(UploadQueue.Item item, List<UploadDestination> destinationList, int timeoutMSec,
+                         Set<UploadDestination> rejectedDestinationSet, ExecutorService fanOutService, FilePrefetcher prefetcher,
+                         ImageTransformer transformer) {
+                this.item = item;
+                this.photoInformation = item.getPhotoInformation();
+                this.destinationList = destinationList;
+                this.timeoutMSec = timeoutMSec;
+                this.rejectedDestinationSet = rejectedDestinationSet;
+                this.fanOutService = fanOutService;
+                this.prefetcher = prefetcher;
+                this.transformer = transformer;
+            }
+
+            @Override
+            public Boolean call() throws InterruptedException {
+                fileProgress = uploadProgress.startFile(new File(photoInformation.getPath()).getName(), photoInformation.getSize());
+                try {
+                    // Take the stream first, so that the read ahead memory is released even if not uploaded
+                    prefetchedStream = prefetcher.take(new File(photoInformation.getPath()));
+                    if (transformer != null) {
+                        transformedFile = transformer.take(new File(photoInformation.getPath()));
+                    }
+
+                    List<UploadDestination> pendingList = new ArrayList<>();
+                    for (UploadDestination destination : destinationList) {
+                        if (!destination.hasUploaded(photoInformation) && !rejectedDestinationSet.contains(destination)) {
+                            pendingList.add(destination);
+                        }
+                    }
+                    pendingList = skipUploadedContent(pendingList);
+                    fileProgress.setTransferBytes(getUploadLength() * pendingList.size());
+
+                    Map<UploadDestination, Exception> errorMap = new HashMap<>();
+                    if (!pendingList.isEmpty()) {
+                        errorMap = uploadFirstPass(pendingList);
+                    }
+
+                    boolean result = true;
+                    for (Map.Entry<UploadDestination, Exception> entry : errorMap.entrySet()) {
+                        if (!upload(entry.getKey(), entry.getValue())) {
+                            result = false;
+                        }
+                    }
+                    return result;
+                } finally {
+                    if (prefetchedStream != null) {
+                        closePhotoFile(prefetchedStream);
+                        prefetchedStream = null;
+                    }
+                    if (transformedFile != null) {
+                        transformSavedBytes.addAndGet(photoInformation.getSize() - transformedFile.length());
+                        transformedFile.delete();
+                        transformedFile = null;
+                    }
+                    uploadCurrentNumber.incrementAndGet();
+                    uploadProgress.finishFile(fileProgress);
+                }
+            }
+
+            /**
+             * Record the photo as uploaded to the destinations that already have the same content
+             * under another path or date
+             *
+             * @return Destinations to upload to
+             */
+            private List<UploadDestination> skipUploadedContent(List<UploadDestination> pendingList) {
+                File file = new File(photoInformation.getPath());
+                photoInformation.setSize(file.length());
+                String contentHash = fingerprintCache.getCachedHash(file);
+                List<UploadDestination> uploadList = new ArrayList<>();
+                for (UploadDestination destination : pendingList) {
+                    // Hash the file before uploading only if the destination has a file of the same size
+                    if (contentHash == null && destination.hasUploadedSize(file.length())) {
+                        try {
+                            contentHash = fingerprintCache.getHash(file);
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                    if (destination.hasUploadedContent(contentHash)) {
+                        Timber.i("skipped uploaded content : " + photoInformation.getPath() + " to " + destination.getApiType());
+                        photoInformation.setContentHash(contentHash);
+                        insertUploadedPhotoDb(destination, photoInformation);
+                    } else {
+                        uploadList.add(destination);
+                    }
+                }
+                if (contentHash != null) {
+                    photoInformation.setContentHash(contentHash);
+                }
+                return uploadList;
+            }
+
+            /**
+             * Upload to the destinations from one read of the file
+             *
+             * @return Destinations that failed, with the error
+             */
+            private Map<UploadDestination, Exception> uploadFirstPass(List<UploadDestination> pendingList) throws InterruptedException {
+                Map<UploadDestination, Exception> errorMap = new HashMap<>();
+                final PhotoFileStream source;
+                try {
+                    source = openPhotoFile();
+                } catch (IOException ex) {
+                    for (UploadDestination destination : pendingList) {
+                        errorMap.put(destination, ex);
+                    }
+                    return errorMap;
+                }
+
+                // The date time is known only now if the photo was not scanned before
+                List<UploadDestination> uploadList = new ArrayList<>();
+                for (UploadDestination destination : pendingList) {
+                    if (!destination.hasUploaded(photoInformation)) {
+                        uploadList.add(destination);
+                    }
+                }
+
+                final long length = getUploadLength();
+                final PhotoFileStream hashSource = getHashSource(source);
+                if (uploadList.size() <= 1 || fanOutService == null) {
+                    if (!uploadList.isEmpty()) {
+                        try {
+                            transferFile(uploadList.get(0), item, wrap(source), length, hashSource);
+                        } catch (Exception ex) {
+                            errorMap.put(uploadList.get(0), ex);
+                        }
+                    }
+                    for (int i = 1; i < uploadList.size(); i++) {
+                        errorMap.put(uploadList.get(i), null);
+                    }
+                    closePhotoFile(source);
+                    return errorMap;
+                }
+
+                // The file is already held, so use a small buffer instead of waiting for memory
+                int bufferSize = FAN_OUT_BUFFER_SIZE;
+                MemoryGovernor.Reservation reservation = memoryGovernor.tryReserve(MemoryGovernor.Stage.FAN_OUT,
+                        BufferPool.getClassSize(bufferSize));
+                if (reservation == null) {
+                    bufferSize = MIN_FAN_OUT_BUFFER_SIZE;
+                    reservation = memoryGovernor.reserveNow(MemoryGovernor.Stage.FAN_OUT, BufferPool.getClassSize(bufferSize));
+                }
+                try (FanOutReader reader = new FanOutReader(source, uploadList.size(), bufferSize)) {
+                    List<Future<Exception>> futureList = new ArrayList<>();
+                    for (int i = 0; i < uploadList.size(); i++) {
+                        final UploadDestination destination = uploadList.get(i);
+                        final InputStream inputStream = reader.getInputStream(i);
+                        futureList.add(fanOutService.submit(new Callable<Exception>() {
+                            @Override
+                            public Exception call() {
+                                try (InputStream is = inputStream) {
+                                    transferFile(destination, item, wrap(is), length, hashSource);
+                                    return null;
+                                } catch (Exception ex) {
+                                    return ex;
+                                }
+                            }
+                        }));
+                    }
+                    for (int i = 0; i < uploadList.size(); i++) {
+                        try {
+                            Exception error = futureList.get(i).get();
+                            if (error != null) {
+                                errorMap.put(uploadList.get(i), error);
+                            }
+                        } catch (ExecutionException ex) {
+                            errorMap.put(uploadList.get(i), ex);
+                        }
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    reservation.close();
+                }
+                closePhotoFile(source);
+                return errorMap;
+            }
+
+            /**
+             * Count the bytes sent, and stop sending when the file is cancelled
+             */
+            private InputStream wrap(InputStream in) {
+                return fileProgress.wrap(item.wrap(in));
+            }
+
+            /**
+             * Open the photo file, or use the stream read ahead, and set the date time parsed from its header
+             */
+            private PhotoFileStream openPhotoFile() throws IOException {
+                File file = new File(photoInformation.getPath());
+                PhotoFileStream stream = prefetchedStream;
+                prefetchedStream = null;
+                if (transformedFile != null) {
+                    // The smaller copy is sent in place of the file, with the same EXIF
+                    if (stream != null) {
+                        stream.close();
+                    }
+                    stream = PhotoFileStream.open(transformedFile, 0, memoryGovernor, MemoryGovernor.Stage.READ);
+                } else if (stream == null) {
+                    stream = PhotoFileStream.open(file, 0, memoryGovernor, MemoryGovernor.Stage.READ);
+                }
+                photoInformation.setSize(file.length());
+                if (photoInformation.getDatetime() == null || photoInformation.getDatetime().isEmpty()) {
+                    photoInformation.setDatetime(stream.getDatetime());
+                }
+                return stream;
+            }
+
+            /**
+             * Get the number of bytes to send, which is the size of the smaller copy if there is one
+             */
+            private long getUploadLength() {
+                return transformedFile != null ? transformedFile.length() : photoInformation.getSize();
+            }
+
+            /**
+             * Get the stream whose hash is the content hash of the file. The hash of a copy is not recorded.
+             */
+            private PhotoFileStream getHashSource(PhotoFileStream stream) {
+                return transformedFile != null ? null : stream;
+            }
+
+            private void closePhotoFile(PhotoFileStream stream) {
+                try {
+                    stream.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                long readBytes = stream.getStorageReadBytes();
+                storageReadBytes.addAndGet(readBytes);
+                Timber.i("read " + readBytes + " bytes from storage for " + photoInformation.getPath()
+                        + " (" + photoInformation.getSize() + " bytes)");
+            }
+
+            /**
+             * Upload to one destination, retrying until it succeeds or the no-operation timeout elapses
+             *
+             * @param destination Upload destination
+             * @param error Error of the previous attempt, or null if not attempted yet
+             */
+            private boolean upload(UploadDestination destination, Exception error) throws InterruptedException {
+                long startUploadingMSec = System.currentTimeMillis();
+                while (!rejectedDestinationSet.contains(destination)) {
+                    if (error != null) {
+                        Timber.i("failed upload file : " + photoInformation.getPath() + " to " + destination.getApiType() + " by " + error.getMessage());
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException("");
+                        }
+                        if (error instanceof FileNotFoundException) {
+                            return false;
+                        }
+
+                        int errorCode = 0;
+                        try {
+                            errorCode = Integer.parseInt(error.getMessage());
+                        } catch (NumberFormatException e) {
+                        }
+                        if (errorCode == HttpsURLConnection.HTTP_BAD_REQUEST ||
+                                errorCode == HttpsURLConnection.HTTP_UNAUTHORIZED ||
+                                errorCode == HttpsURLConnection.HTTP_FORBIDDEN) {
+                            errorType = ErrorType.BAD_SETTINGS.getType();
+                            rejectedDestinationSet.add(destination);
+                            return false;
+                        }
+                        // The server does not support the request, so sending the file again does not help
+                        if (errorCode == HttpsURLConnection.HTTP_NOT_IMPLEMENTED) {
+                            return false;
+                        }
+                        if (timeoutMSec > 0 && System.currentTimeMillis() - startUploadingMSec > timeoutMSec) {
+                            errorType = ErrorType.TIMEOUT.getType();
+                            return true;
+                        }
+                        changeStopTransferringLed();
+                        Thread.sleep(UPLOAD_RETRY_WAIT_MSEC);
+                        changeTransferringLed();
+                    }
+
+                    PhotoFileStream stream = null;
+                    try {
+                        stream = openPhotoFile();
+                        transferFile(destination, item, wrap(stream), getUploadLength(), getHashSource(stream));
+                        return true;
+                    } catch (Exception ex) {
+                        error = ex;
+                    } finally {
+                        if (stream != null) {
+                            closePhotoFile(stream);
+                        }
+                    }
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Send a file to a destination, and commit it in the way the provider supports.
+         * With batch commit, the file is recorded as uploaded when its batch is committed.
+         *
+         * @param item Queue item of the file
+         * @param hashSource Stream of the file that computes the content hash while the data is sent, or null
+         */
+        private void transferFile(UploadDestination destination, UploadQueue.Item item,
+                                  InputStream inputStream, long length, PhotoFileStream hashSource) throws Exception {
+            PhotoInformation photoInformation = item.getPhotoInformation();
+            UploadPhotoApi api = destination.getUploadPhotoApi();
+            ProviderCapabilities capabilities = api.getCapabilities();
+            String uploadToken = api.getTransportStage().transfer(photoInformation, inputStream, length,
+                    capabilities.isResumable());
+            String contentHash = hashSource != null ? hashSource.getHash() : null;
+            if (contentHash != null && photoInformation.getContentHash() == null) {
+                photoInformation.setContentHash(contentHash);
+                fingerprintCache.put(new File(photoInformation.getPath()), contentHash, photoInformation.getDatetime());
+            }
+            CommitStage commitStage = api.getCommitStage();
+            if (commitStage == null) {
+                Timber.i("succeeded upload file : " + photoInformation.getPath() + " to " + destination.getApiType());
+                insertUploadedPhotoDb(destination, photoInformation);
+                return;
+            }
+
+            if (!capabilities.isBatchCommit()) {
+                commitFile(commitStage, uploadToken);
+                Timber.i("succeeded upload file : " + photoInformation.getPath() + " to " + destination.getApiType());
+                insertUploadedPhotoDb(destination, photoInformation);
+                return;
+            }
+
+            item.addPendingCommit();
+            Map<String, UploadQueue.Item> batch = destination.addPendingCommit(uploadToken, item, capabilities.getMaxBatchSize());
+            if (batch != null) {
+                commitBatch(destination, batch);
+            }
+        }
+
+        /**
+         * Commit one transferred file
+         *
+         * @throws Exception The file was not stored
+         */
+        private void commitFile(CommitStage commitStage, String uploadToken) throws Exception {
+            if (!commitStage.commit(Collections.singletonList(uploadToken)).contains(uploadToken)) {
+                throw new Exception(String.valueOf(HttpURLConnection.HTTP_INTERNAL_ERROR));
+            }
+        }
+
+        /**
+         * Commit transferred files at once, and record the files that were stored.
+         * The other files fail in the queue, and are uploaded again in the next session.
+         *
+         * @param destination Upload destination
+         * @param batch Queue items of the transferred files by upload token
+         * @return true if all files were stored
+         */
+        private boolean commitBatch(UploadDestination destination, Map<String, UploadQueue.Item> batch) {
+            Set<String> committedTokenSet = Collections.emptySet();
+            try {
+                committedTokenSet = destination.getUploadPhotoApi().getCommitStage().commit(new ArrayList<>(batch.keySet()));
+            } catch (Exception ex) {
+                Timber.e("failed commit " + batch.size() + " files to " + destination.getApiType() + " by " + ex.getMessage());
+            }
+            for (Map.Entry<String, UploadQueue.Item> entry : batch.entrySet()) {
+                PhotoInformation photoInformation = entry.getValue().getPhotoInformation();
+                boolean isCommitted = committedTokenSet.contains(entry.getKey());
+                if (isCommitted) {
+                    Timber.i("succeeded upload file : " + photoInformation.getPath() + " to " + destination.getApiType());
+                    insertUploadedPhotoDb(destination, photoInformation);
+                } else {
+                    Timber.e("failed commit file : " + photoInformation.getPath() + " to " + destination.getApiType());
+                }
+                entry.getValue().finishCommit(isCommitted);
+            }
+            return committedTokenSet.containsAll(batch.keySet());
+        }
+
+        private boolean hasUploadedPath(List<UploadDestination> destinationList, String path) {
+            for (UploadDestination destination : destinationList) {
+                if (destination.hasUploadedPath(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private List<PhotoInformation> getPhotoList(String searchPath, List<UploadDestination> destinationList, boolean isUploadMovie) {
+            List photoList = new ArrayList();
+
+            String path;
+            for (File file: new File(searchPath).listFiles()) {
+                path = file.getAbsolutePath();
+                if (file.isFile()) {
+                    if (!PhotoInformation.isUploadTarget(path, isUploadMovie)) {
+                        continue;
+                    }
+                    try {
+                        PhotoInformation uploadingPhoto = new PhotoInformation();
+                        uploadingPhoto.setPath(path);
+                        uploadingPhoto.setUserId(userId);
+                        String datetime = fingerprintCache.getCachedDatetime(file);
+                        if (datetime == null && uploadingPhoto.isMovie()) {
+                            datetime = PhotoFileStream.getModifiedDatetime(file);
+                        } else if (datetime == null && hasUploadedPath(destinationList, path)) {
+                            // Photos uploaded before the date time was cached
+                            ExifInterface exifInterface = new ExifInterface(path);
+                            datetime = exifInterface.getAttribute(ExifInterface.TAG_DATETIME);
+                        }
+                        // Otherwise the date time is parsed from the header when the file is uploaded
+                        uploadingPhoto.setDatetime(datetime);
+                        for (UploadDestination destination : destinationList) {
+                            if (!destination.hasUploaded(uploadingPhoto)) {
+                                photoList.add(uploadingPhoto);
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                } else if (file.isDirectory()) {
+                    photoList.addAll(getPhotoList(path, destinationList, isUploadMovie));
+                }
+            }
+
+            return photoList;
+        }
+
+        /**
+         * Sending files
+         *
+         * @param uri requested url
+         * @param headers Request headers, in lower case
+         * @param params Request parameters
+         * @return resource
+         */
+        private Response serveFile(String uri, Map<String, String> headers, Map<String, String> params) {
+
+            if (uri.equals("/login")) {
                 if (!(pollingGetTokenService == null || pollingGetTokenService.isShutdown())) {
                     pollingGetTokenService.shutdownNow();
                 }
@@ -799,31 +1953,32 @@ public class AndroidWebServer extends Activity {
                 userId = "";
                 updateAuthDb();
 
-                doAuthorization();
-                InputStream destInputStream = null;
-                JSONObject data = new JSONObject();
+                AuthJob job = startAuthorization();
+                return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(job.toMap()));
+            } else if (uri.equals("/reacquire")) {
+                AuthJob job = startAuthorization();
+                return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(job.toMap()));
+            } else if (uri.equals("/webdav_auth")) {
+                AuthJob job = startWebDavCheck();
+                return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(job.toMap()));
+            } else if (uri.equals("/auth_job")) {
+                // Long poll: answer when the code arrives, or with the running state after the wait
+                AuthJob job = authJob;
+                if (job == null || !job.getId().equals(params.get("id"))) {
+                    return newFixedLengthResponse(NOT_FOUND, "text/plain", uri);
+                }
+                long waitMSec = 0;
                 try {
-                    data.put("user_code", uploadPhotoApi.getUserCode());
-                    data.put("google_auth_url", uploadPhotoApi.getRedirectUrl());
-                    destInputStream = stringToInputStream(data.toString());
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    waitMSec = Math.min(Long.parseLong(params.get("wait")) * 1000, AUTH_JOB_MAX_WAIT_MSEC);
+                } catch (NumberFormatException e) {
+                    // Answer at once
                 }
-
-                return newChunkedResponse(Status.OK, "text/html", destInputStream);
-            } else if (uri.equals("/reacquire")) {
-                doAuthorization();
-                InputStream destInputStream = null;
-                JSONObject data = new JSONObject();
                 try {
-                    data.put("user_code", uploadPhotoApi.getUserCode());
-                    data.put("google_auth_url", uploadPhotoApi.getRedirectUrl());
-                    destInputStream = stringToInputStream(data.toString());
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    job.await(waitMSec);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-
-                return newChunkedResponse(Status.OK, "text/html", destInputStream);
+                return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(job.toMap()));
             } else if (uri.equals("/check_logged_in")) {
                 InputStream destInputStream = null;
                 try {
@@ -846,12 +2001,7 @@ public class AndroidWebServer extends Activity {
             } else if (uri.equals("/upload")) {
                 if (isReady) {
                     if (uploadFileService == null) {
-                        int refreshCount = 0;
-                        boolean refreshResult = false;
-                        while(!refreshResult && refreshCount < REFRESH_COUNT_MAX) {
-                            refreshResult = hasRefreshToken();
-                            refreshCount++;
-                        }
+                        // The tokens are refreshed on the upload thread, so the request returns at once
                         startUploadFile();
                     } else {
                         uploadFileService.shutdownNow();
@@ -860,24 +2010,27 @@ public class AndroidWebServer extends Activity {
                 }
                 return newChunkedResponse(Status.OK, "text/html", null);
             } else if (uri.equals("/check_uploading")) {
-                InputStream destInputStream = null;
-                Map<String, Integer> map = new HashMap<>();
-                Gson gson = new Gson();
-                try {
-                    if (isUploading) {
-                        map.put("isUploading", 1);
-                        map.put("current", uploadCurrentNumber);
-                        map.put("all", uploadAllNumber);
-                    } else {
-                        map.put("isUploading", 0);
-                        map.put("current", 0);
-                        map.put("all", 0);
-                    }
-                    destInputStream = stringToInputStream(gson.toJson(map));
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
+                // Polled every few seconds, so a fixed length keeps the connection alive
+                return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(getUploadStatus()));
+            } else if (uri.equals("/events")) {
+                // The connection stays open, and the status is pushed when it changes
+                if (eventBroadcaster.getSubscriberCount() >= MAX_EVENT_VIEWERS) {
+                    // No Content stops EventSource from reconnecting, and the page polls /check_uploading instead
+                    return newFixedLengthResponse(Status.NO_CONTENT, EVENT_STREAM_MIME, "");
                 }
-                return newChunkedResponse(Status.OK, "text/html", destInputStream);
+                Response response = newChunkedResponse(Status.OK, EVENT_STREAM_MIME, eventBroadcaster.subscribe());
+                response.addHeader("Cache-Control", "no-cache");
+                return response;
+            } else if (uri.equals("/thumbnail")) {
+                return serveThumbnail(params.get("path"), headers);
+            } else if (uri.equals("/download")) {
+                return serveDownload(params.get("path"), headers);
+            } else if (uri.equals("/zip")) {
+                return serveZip(params);
+            } else if (uri.equals("/queue")) {
+                return serveQueueList(params);
+            } else if (uri.startsWith("/queue/")) {
+                return serveQueueChange(uri, params);
             } else if (uri.equals("/end")) {
                 Intent intent = new Intent(FinishApplicationReceiver.FINISH_APPLICATION);
                 con.sendBroadcast(intent);
@@ -888,300 +2041,736 @@ public class AndroidWebServer extends Activity {
             if (uri.substring(0, 1).equals("/")) {
                 filename = filename.substring(1);
             }
-
-            AssetManager as = con.getResources().getAssets();
-            InputStream fis = null;
-            try {
-                fis = as.open(filename);
-            } catch (Exception e) {
-
+            if (!uri.endsWith(".html") && !uri.endsWith(".htm")) {
+                return serveAsset(filename, headers);
             }
 
-            if (uri.endsWith(".ico")) {
-                return newChunkedResponse(Status.OK, "image/x-icon", fis);
-            } else if (uri.endsWith(".png") || uri.endsWith(".PNG")) {
-                return newChunkedResponse(Status.OK, "image/png", fis);
-            } else if (uri.endsWith(".js")) {
-                return newChunkedResponse(Status.OK, "application/javascript", fis);
-            } else if (uri.endsWith(".properties")) {
-                return newChunkedResponse(Status.OK, "text/html", fis);
-            } else if (uri.endsWith(".css")) {
-                return newChunkedResponse(Status.OK, "text/html", fis);
-            } else if (uri.endsWith(".html") || uri.endsWith(".htm")) {
-                if (uri.equals("/google_auth.html")) {
-                    String srcString = null;
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(fis))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        srcString = sb.toString();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            HtmlTemplate template = getTemplate(filename);
+            if (template == null) {
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", uri);
+            }
+            if (template.getSlotCount() == 0) {
+                return serveAsset(filename, headers);
+            }
 
-                    if (userId == null || userId.isEmpty()) {
-                        srcString = srcString.replaceFirst("#IS_LOGGED_IN#", "0");
+            Map<String, String> values = new HashMap<>();
+            if (uri.equals("/google_auth.html")) {
+                values.put("IS_LOGGED_IN", userId == null || userId.isEmpty() ? "0" : "1");
+                AuthJob job = authJob;
+                if (job != null) {
+                    values.put("AUTH_JOB_ID", job.getId());
+                    values.put("GOOGLE_PHOTO_USER_CODE", job.getUserCode());
+                    values.put("GOOGLE_PHOTO_CODE_AUTH_URL", job.getVerificationUrl());
+                }
+            } else if (uri.equals("/timeout.html")) {
+                SettingData settingData = readSettingData();
+                values.put("NO_OPERATION_TIMEOUT_MINUTE", String.valueOf(settingData.getNoOperationTimeoutMinute()));
+            } else {
+                // The destinations are read again when the authentication changes, so the page renders without the DB
+                SettingData settingData = readSettingData();
+
+                StringBuilder JSCode = new StringBuilder("$(function() {\n");
+                JSCode.append("$('#no_operation_timeout_minute_text').val('").append(settingData.getNoOperationTimeoutMinute()).append("');");
+                for (UploadDestination destination : uploadDestinationList) {
+                    if (WebDavApi.API_TYPE.equals(destination.getApiType())) {
+                        JSCode.append("$('#webdav_user_id').text('").append(destination.getUserId()).append("');");
                     } else {
-                        srcString = srcString.replaceFirst("#IS_LOGGED_IN#", "1");
-                    }
-                    srcString = srcString.replaceFirst("#GOOGLE_PHOTO_USER_CODE#", uploadPhotoApi.getUserCode());
-                    srcString = srcString.replaceFirst("#GOOGLE_PHOTO_CODE_AUTH_URL#", uploadPhotoApi.getRedirectUrl());
-                    try (InputStream destInputStream = new ByteArrayInputStream(srcString.getBytes("UTF-8"))) {
-                        return newChunkedResponse(Status.OK, "text/html", destInputStream);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        return newChunkedResponse(Status.OK, "text/html", fis);
+                        JSCode.append("$('#upload_user_id').text('").append(destination.getUserId()).append("');");
                     }
-                } else if (uri.equals("/timeout.html")) {
-                    SettingData settingData = readSettingData();
-                    String srcString = null;
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(fis))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        srcString = sb.toString();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                }
+                if (!isReady) {
+                    JSCode.append("$('#upload_btn').prop('disabled', true);");
+                }
+                JSCode.append("});");
+                values.put("JS_INJECTION", JSCode.toString());
+            }
+
+            byte[] page = template.render(values);
+            Response response = newFixedLengthResponse(Status.OK, StaticAssetCache.getMimeType(filename), new ByteArrayInputStream(page), page.length);
+            response.addHeader("Cache-Control", "no-cache");
+            return response;
+        }
+
+        /**
+         * List a page of the upload queue, such as /queue?state=failed&after=1200&limit=100.
+         * The next page starts after the ID given as "next", and is found without reading the items before it.
+         *
+         * @param params Request parameters
+         * @return Items in JSON
+         */
+        private Response serveQueueList(Map<String, String> params) {
+            UploadQueue.State state = null;
+            long afterId = 0;
+            int limit = QUEUE_PAGE_SIZE;
+            try {
+                if (params.get("state") != null) {
+                    state = UploadQueue.State.getState(params.get("state"));
+                    if (state == null) {
+                        return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, "unknown state");
                     }
+                }
+                if (params.get("after") != null) {
+                    afterId = Long.parseLong(params.get("after"));
+                }
+                if (params.get("limit") != null) {
+                    limit = Integer.parseInt(params.get("limit"));
+                }
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            }
 
-                    srcString = srcString.replaceFirst("#NO_OPERATION_TIMEOUT_MINUTE#", String.valueOf(settingData.getNoOperationTimeoutMinute()));
-                    try (InputStream destInputStream = new ByteArrayInputStream(srcString.getBytes("UTF-8"))) {
-                        return newChunkedResponse(Status.OK, "text/html", destInputStream);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        return newChunkedResponse(Status.OK, "text/html", fis);
+            UploadQueue queue = uploadQueue;
+            List<UploadQueue.Item> itemList = new ArrayList<>();
+            if (queue != null) {
+                itemList = queue.list(state, afterId, limit);
+            }
+            // The items are written one by one, without building a tree of the whole page
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+                writer.beginObject();
+                writer.name("active").value(queue != null && !queue.isClosed());
+                writer.name("items").beginArray();
+                for (UploadQueue.Item item : itemList) {
+                    PhotoInformation photoInformation = item.getPhotoInformation();
+                    writer.beginObject();
+                    writer.name("id").value(item.getId());
+                    writer.name("name").value(new File(photoInformation.getPath()).getName());
+                    writer.name("path").value(photoInformation.getPath());
+                    writer.name("size").value(photoInformation.getSize());
+                    writer.name("state").value(item.getState().getName());
+                    if (ImageTransformer.isTarget(new File(photoInformation.getPath()))) {
+                        writer.name("thumbnail").value("/thumbnail?path=" + URLEncoder.encode(photoInformation.getPath(), "UTF-8"));
                     }
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.name("next");
+                if (!itemList.isEmpty() && itemList.size() == Math.min(limit, UploadQueue.MAX_PAGE_SIZE)) {
+                    writer.value(itemList.get(itemList.size() - 1).getId());
                 } else {
-                    updateUploadInfo();
-                    SettingData settingData = readSettingData();
+                    writer.nullValue();
+                }
+                writer.name("counts").beginObject();
+                for (UploadQueue.State countState : UploadQueue.State.values()) {
+                    writer.name(countState.getName()).value(queue == null ? 0 : queue.getCount(countState));
+                }
+                writer.endObject();
+                writer.endObject();
+            } catch (IOException e) {
+                return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+            }
+            byte[] data = os.toByteArray();
+            return newFixedLengthResponse(Status.OK, "application/json", new ByteArrayInputStream(data), data.length);
+        }
 
-                    String srcString = null;
-                    try {
-                        srcString = inputStreamToString(fis);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        /**
+         * Send the thumbnail of a photo in DCIM or Pictures, such as /thumbnail?path=/storage/emulated/0/DCIM/100RICOH/R0010001.JPG
+         *
+         * @param path Path of the photo
+         * @param headers Request headers, in lower case
+         * @return JPEG data
+         */
+        private Response serveThumbnail(String path, Map<String, String> headers) {
+            if (path == null) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, "path is required");
+            }
+            File file = new File(path);
+            if (!isMediaFile(file) || !ImageTransformer.isTarget(file)) {
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", path);
+            }
 
-                    String JSCode = "\\$(function() {\n"
-                            + "\\$('#no_operation_timeout_minute_text').val('" + settingData.getNoOperationTimeoutMinute() + "');";
-                    if (userId != null) {
-                        JSCode += "\\$('#upload_user_id').text('" + userId + "');";
-                    }
-                    if (!isReady) {
-                        JSCode += "\\$('#upload_btn').prop('disabled', true);";
-                    }
-                    JSCode += "});";
-                    String newSrcString = srcString.replaceFirst("#JS_INJECTION#", JSCode);
+            String etag = thumbnailCache.getEtag(file);
+            Response response;
+            if (etag.equals(headers.get("if-none-match"))) {
+                response = newFixedLengthResponse(Status.NOT_MODIFIED, "image/jpeg", "");
+            } else {
+                byte[] data;
+                try {
+                    data = thumbnailCache.get(file);
+                } catch (IOException e) {
+                    Timber.w(e, "Failed to make the thumbnail of " + path);
+                    return newFixedLengthResponse(NOT_FOUND, "text/plain", path);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return newFixedLengthResponse(Status.INTERNAL_ERROR, MIME_PLAINTEXT, "interrupted");
+                }
+                response = newFixedLengthResponse(Status.OK, "image/jpeg", new ByteArrayInputStream(data), data.length);
+            }
+            response.addHeader("ETag", etag);
+            response.addHeader("Cache-Control", THUMBNAIL_CACHE_CONTROL);
+            return response;
+        }
 
-                    InputStream destInputStream = null;
-                    try {
-                        destInputStream = stringToInputStream(newSrcString);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                    }
+        /**
+         * Send a photo or video in DCIM or Pictures, such as /download?path=/storage/emulated/0/DCIM/100RICOH/R0010001.JPG.
+         * A single Range is supported so that clients can resume or fetch parts in parallel,
+         * and the file is streamed from storage with a fixed Content-Length to keep the connection alive.
+         *
+         * @param path Path of the file
+         * @param headers Request headers, in lower case
+         * @return File data
+         */
+        private Response serveDownload(String path, Map<String, String> headers) {
+            if (path == null) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, "path is required");
+            }
+            File file = new File(path);
+            if (!isMediaFile(file) || !PhotoInformation.isUploadTarget(file.getName(), true)) {
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", path);
+            }
+
+            long fileLength = file.length();
+            String etag = "\"" + Long.toHexString(fileLength) + "-" + Long.toHexString(file.lastModified()) + "\"";
+            String lastModified = StaticAssetCache.formatHttpDate(file.lastModified());
+            String mimeType = PhotoInformation.isUploadTarget(file.getName(), false) ? "image/jpeg" : "video/mp4";
+            if (etag.equals(headers.get("if-none-match"))) {
+                Response response = newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
+                response.addHeader("ETag", etag);
+                return response;
+            }
+
+            // A range of a changed file is not sent
+            ByteRange range = ByteRange.parse(headers.get("range"), fileLength);
+            String ifRange = headers.get("if-range");
+            if (range != null && ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+                range = null;
+            }
+            if (range != null && !range.isSatisfiable()) {
+                Response response = newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+                response.addHeader("Content-Range", range.getContentRange());
+                return response;
+            }
 
-                    return newChunkedResponse(Status.OK, "text/html", destInputStream);
+            if (!acquireDownload()) {
+                return newTooManyDownloadsResponse();
+            }
+            InputStream inputStream;
+            try {
+                FileInputStream fileInputStream = new FileInputStream(file);
+                if (range != null) {
+                    fileInputStream.getChannel().position(range.getStart());
                 }
+                inputStream = new DownloadInputStream(new BufferedInputStream(fileInputStream, DOWNLOAD_BUFFER_SIZE));
+            } catch (IOException e) {
+                downloadCount.decrementAndGet();
+                Timber.w(e, "Failed to open " + path);
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", path);
+            }
+
+            Response response;
+            if (range != null) {
+                response = newFixedLengthResponse(Status.PARTIAL_CONTENT, mimeType, inputStream, range.getLength());
+                response.addHeader("Content-Range", range.getContentRange());
             } else {
-                return newFixedLengthResponse(NOT_FOUND, "text/plain", uri);
+                response = newFixedLengthResponse(Status.OK, mimeType, inputStream, fileLength);
             }
+            response.addHeader("Accept-Ranges", "bytes");
+            response.addHeader("ETag", etag);
+            response.addHeader("Last-Modified", lastModified);
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+            return response;
         }
 
         /**
-         * Read configuration data from DB and return
+         * Send photos in DCIM and Pictures as a ZIP archive, such as /zip?from=2024-01-01&to=2024-01-31&not_uploaded=true.
+         * from and to select the modified date (inclusive), not_uploaded selects the files that some destination
+         * has not received, and movie=true adds the videos.
+         * The archive is produced in STORE mode while it is sent, so nothing is written to storage.
+         *
+         * @param params Request parameters
+         * @return ZIP archive
          */
-        private SettingData readSettingData() {
-            SettingData settingData;
+        private Response serveZip(Map<String, String> params) {
+            String from = params.get("from");
+            String to = params.get("to");
+            if ((from != null && !from.matches(ZIP_DATE_PATTERN)) || (to != null && !to.matches(ZIP_DATE_PATTERN))) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, "from and to are yyyy-MM-dd");
+            }
+            boolean isUploadMovie = "true".equals(params.get("movie"));
+
+            List<File> fileList = new ArrayList<>();
+            addMediaFiles(new File(DCIM_PATH), isUploadMovie, fileList);
+            addMediaFiles(new File(PICTURES_PATH), isUploadMovie, fileList);
+            Collections.sort(fileList);
+            Set<String> notUploadedPathSet = null;
+            List<UploadDestination> destinationList = uploadDestinationList;
+            if ("true".equals(params.get("not_uploaded")) && !destinationList.isEmpty()) {
+                notUploadedPathSet = new HashSet<>();
+                List<PhotoInformation> photoList = getPhotoList(DCIM_PATH, destinationList, isUploadMovie);
+                photoList.addAll(getPhotoList(PICTURES_PATH, destinationList, isUploadMovie));
+                for (PhotoInformation photoInformation : photoList) {
+                    notUploadedPathSet.add(photoInformation.getPath());
+                }
+            }
 
-            Cursor cursor = dbObject.query("theta360_setting", null, null, null, null, null, null, null);
-            try {
-                settingData = new SettingData();
-                if (cursor.moveToNext()) {
-                    settingData.setNoOperationTimeoutMinute(cursor.getInt(cursor.getColumnIndex("no_operation_timeout_minute")));
-                    settingData.setStatus(cursor.getString(cursor.getColumnIndex("status")));
-                    settingData.setIsUploadMovie(cursor.getInt(cursor.getColumnIndex("is_upload_movie")));
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+            String rootPath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/";
+            Map<String, File> fileMap = new LinkedHashMap<>();
+            for (File file : fileList) {
+                String path = file.getAbsolutePath();
+                String date = dateFormat.format(new Date(file.lastModified()));
+                if ((from != null && date.compareTo(from) < 0) || (to != null && date.compareTo(to) > 0)
+                        || (notUploadedPathSet != null && !notUploadedPathSet.contains(path))) {
+                    continue;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new SQLiteException("[select data] Unexpected exception");
-            } finally {
-                cursor.close();
+                // DCIM/100RICOH/R0010001.JPG
+                fileMap.put(path.startsWith(rootPath) ? path.substring(rootPath.length()) : file.getName(), file);
             }
 
-            return settingData;
+            if (!acquireDownload()) {
+                return newTooManyDownloadsResponse();
+            }
+            Response response = newChunkedResponse(Status.OK, "application/zip",
+                    new DownloadInputStream(new ZipExportStream(fileMap, DOWNLOAD_BUFFER_SIZE)));
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + ZIP_FILE_NAME + "\"");
+            return response;
         }
 
-        private void updateAuthDb() {
-            try {
-                // Register authentication information in DB
-                ContentValues values = new ContentValues();
-                values.put("refresh_token", refreshToken);
-                values.put("user_id", userId);
-                values.put("api_type", uploadPhotoApi.getApiType());
-                dbObject.update("auth_information", values, null, null);
-                Timber.i("saved tokens to DB");
-            } catch (Exception ex) {
-                ex.printStackTrace();
+        private void addMediaFiles(File directory, boolean isUploadMovie, List<File> fileList) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    addMediaFiles(file, isUploadMovie, fileList);
+                } else if (file.isFile() && PhotoInformation.isUploadTarget(file.getAbsolutePath(), isUploadMovie)) {
+                    fileList.add(file);
+                }
             }
         }
 
         /**
-         * {@inheritDoc}
+         * Take a download slot, which DownloadInputStream frees.
+         * Threads are left for the settings page while large files are downloaded.
+         *
+         * @return false if too many downloads are running
          */
-        @Override
-        public void completedRequestCode(String result) {
-            try {
-                JSONObject json = new JSONObject(result);
-                uploadPhotoApi.setApiResult(json);
-                synchronized (lock) {
-                    lock.notify();
-                }
-            } catch (JSONException ex) {
-                ex.printStackTrace();
+        private boolean acquireDownload() {
+            if (downloadCount.incrementAndGet() > MAX_DOWNLOADS) {
+                downloadCount.decrementAndGet();
+                return false;
             }
+            return true;
+        }
+
+        private Response newTooManyDownloadsResponse() {
+            Response response = newFixedLengthResponse(SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "too many downloads");
+            response.addHeader("Retry-After", DOWNLOAD_RETRY_AFTER_SEC);
+            return response;
         }
 
         /**
-         * {@inheritDoc}
+         * Check that the file is a regular file in DCIM or Pictures, so that nothing else is sent
+         *
+         * @param file File requested
+         * @return true if the file can be sent
          */
-        @Override
-        public void failedRequestCode(String result) {
-            uploadPhotoApi.setRedirectUrl(new String());
-            uploadPhotoApi.setDeviceCode(new String());
-            uploadPhotoApi.setUserCode(new String());
-            synchronized (lock) {
-                lock.notify();
+        private boolean isMediaFile(File file) {
+            try {
+                String canonicalPath = file.getCanonicalPath();
+                return (canonicalPath.startsWith(new File(DCIM_PATH).getCanonicalPath() + "/")
+                        || canonicalPath.startsWith(new File(PICTURES_PATH).getCanonicalPath() + "/"))
+                        && file.isFile();
+            } catch (IOException e) {
+                return false;
             }
         }
 
         /**
-         * {@inheritDoc}
+         * Change the upload queue while the session runs, with the item IDs separated by commas.
+         * /queue/front?id= moves pending items to the front, /queue/cancel?id= cancels pending or uploading items,
+         * and /queue/retry?id= adds failed items to the end, or all failed items without IDs.
+         *
+         * @param uri Requested URL
+         * @param params Request parameters
+         * @return Number of items changed in JSON
          */
-        @Override
-        public void completedRequestToken(String result) {
-            try {
-                JSONObject json = new JSONObject(result);
-                uploadPhotoApi.setApiResult(json);
-                synchronized (lock) {
-                    lock.notify();
+        private Response serveQueueChange(String uri, Map<String, String> params) {
+            List<Long> idList = null;
+            if (params.get("id") != null) {
+                idList = new ArrayList<>();
+                try {
+                    for (String id : params.get("id").split(",")) {
+                        if (!id.trim().isEmpty()) {
+                            idList.add(Long.parseLong(id.trim()));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
                 }
-            } catch (JSONException ex) {
-                ex.printStackTrace();
             }
+            if (idList == null && !uri.equals("/queue/retry")) {
+                return newFixedLengthResponse(Status.BAD_REQUEST, MIME_PLAINTEXT, "id is required");
+            }
+
+            UploadQueue queue = uploadQueue;
+            if (queue == null || queue.isClosed()) {
+                return newFixedLengthResponse(Status.CONFLICT, MIME_PLAINTEXT, "no upload session");
+            }
+            int count;
+            if (uri.equals("/queue/front")) {
+                count = queue.moveToFront(idList);
+            } else if (uri.equals("/queue/cancel")) {
+                count = queue.cancel(idList);
+            } else if (uri.equals("/queue/retry")) {
+                count = queue.retry(idList);
+            } else {
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", uri);
+            }
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("changed", count);
+            return newFixedLengthResponse(Status.OK, "application/json", gson.toJson(map));
         }
 
         /**
-         * {@inheritDoc}
+         * Get a page template, parsing it on the first request
+         *
+         * @param filename Path in the assets
+         * @return Template, or null if the page does not exist
          */
-        @Override
-        public void failedRequestToken(String result) {
-            uploadPhotoApi.setAccessToken(new String());
-            uploadPhotoApi.setRefreshToken(new String());
-            synchronized (lock) {
-                lock.notify();
+        private HtmlTemplate getTemplate(String filename) {
+            HtmlTemplate template = templateMap.get(filename);
+            if (template == null) {
+                try (InputStream is = con.getAssets().open(filename)) {
+                    template = HtmlTemplate.read(is, TEMPLATE_SLOT_NAMES);
+                } catch (IOException e) {
+                    return null;
+                }
+                templateMap.put(filename, template);
             }
+            return template;
         }
 
         /**
-         * {@inheritDoc}
+         * Send a static file from memory. The browser keeps it for a day and then revalidates it.
+         *
+         * @param filename Path in the assets
+         * @param headers Request headers, in lower case
+         * @return resource
          */
-        @Override
-        public void completedRefreshToken(String result) {
+        private Response serveAsset(String filename, Map<String, String> headers) {
+            StaticAssetCache.Asset asset;
             try {
-                JSONObject json = new JSONObject(result);
-                uploadPhotoApi.setApiResult(json);
-                synchronized (lock) {
-                    lock.notify();
+                asset = assetCache.get(filename);
+            } catch (IOException e) {
+                return newFixedLengthResponse(NOT_FOUND, "text/plain", filename);
+            }
+
+            Response response;
+            if (asset.isNotModified(headers.get("if-none-match"), headers.get("if-modified-since"))) {
+                response = newFixedLengthResponse(Status.NOT_MODIFIED, asset.getMimeType(), "");
+            } else {
+                String acceptEncoding = headers.get("accept-encoding");
+                byte[] data = asset.getData();
+                if (asset.getGzipData() != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    data = asset.getGzipData();
+                }
+                response = newFixedLengthResponse(Status.OK, asset.getMimeType(), new ByteArrayInputStream(data), data.length);
+                if (data != asset.getData()) {
+                    response.addHeader("Content-Encoding", "gzip");
                 }
-            } catch (JSONException ex) {
-                ex.printStackTrace();
             }
+            response.addHeader("ETag", asset.getEtag());
+            response.addHeader("Last-Modified", asset.getLastModified());
+            response.addHeader("Cache-Control", ASSET_CACHE_CONTROL);
+            response.addHeader("Vary", "Accept-Encoding");
+            return response;
         }
 
         /**
-         * {@inheritDoc}
+         * Write settings to the DB
+         *
+         * @param values Changed columns
          */
-        @Override
-        public void failedRefreshToken(String result) {
-            synchronized (lock) {
-                lock.notify();
-            }
+        private void updateSettingDb(ContentValues values) {
+            database.updateSetting(values);
+            settingDataCache = null;
         }
 
         /**
-         * {@inheritDoc}
+         * Read configuration data from DB and return
          */
-        @Override
-        public void completedRequestUserinfo(String result) {
+        private SettingData readSettingData() {
+            SettingData settingData = settingDataCache;
+            if (settingData != null) {
+                return settingData;
+            }
+
+            Cursor cursor = database.querySetting();
             try {
-                JSONObject json = new JSONObject(result);
-                if (json.has("email")) {
-                    String email = json.getString("email");
-                    uploadPhotoApi.setUserId(email.split("@")[0]);
-                } else {
-                    uploadPhotoApi.setUserId("");
-                }
-                synchronized (lock) {
-                    lock.notify();
+                settingData = new SettingData();
+                if (cursor.moveToNext()) {
+                    settingData.setNoOperationTimeoutMinute(cursor.getInt(cursor.getColumnIndex("no_operation_timeout_minute")));
+                    settingData.setStatus(cursor.getString(cursor.getColumnIndex("status")));
+                    settingData.setIsUploadMovie(cursor.getInt(cursor.getColumnIndex("is_upload_movie")));
+                    settingData.setUploadMaxDimension(cursor.getInt(cursor.getColumnIndex("upload_max_dimension")));
+                    settingData.setUploadQuality(cursor.getInt(cursor.getColumnIndex("upload_quality")));
+                    settingData.setIsPreviewFirst(cursor.getInt(cursor.getColumnIndex("is_preview_first")));
+                    settingData.setQueuePolicy(cursor.getString(cursor.getColumnIndex("queue_policy")));
+                    settingData.setQueueDeadlineMinute(cursor.getInt(cursor.getColumnIndex("queue_deadline_minute")));
+                    // The record is created by the activity, so the defaults are not kept
+                    settingDataCache = settingData;
                 }
-            } catch (JSONException ex) {
-                ex.printStackTrace();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new SQLiteException("[select data] Unexpected exception");
+            } finally {
+                cursor.close();
             }
+
+            return settingData;
         }
 
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public void failedRequestUserinfo(String result) {
-            uploadPhotoApi.setUserId("");
-            synchronized (lock) {
-                lock.notify();
+        private void updateAuthDb() {
+            try {
+                // Register authentication information in DB
+                database.saveAuthInformation(uploadPhotoApi.getApiType(), refreshToken, userId);
+                Timber.i("saved tokens to DB");
+            } catch (Exception ex) {
+                ex.printStackTrace();
             }
+            updateUploadInfo();
         }
 
         /**
-         * {@inheritDoc}
+         * Receive the results of one API, and wake up the waiting request
          */
-        @Override
-        public void completedUploadFile(String result) {
-            Timber.i("succeeded upload file : " + uploadingPhoto.getPath());
-            insertUploadedPhotoDb();
-            isSucceedUpload = true;
+        private class ApiCallback implements UploadPhotoApiCallback {
+            private final UploadPhotoApi api;
+            private boolean isCompleted = false;
+
+            ApiCallback(UploadPhotoApi api) {
+                this.api = api;
+            }
+
+            /**
+             * Wait until the result is received
+             *
+             * @param timeoutMSec Longest time to wait
+             * @return false if no result was received in time
+             */
+            boolean await(long timeoutMSec) {
+                long endMSec = System.currentTimeMillis() + timeoutMSec;
+                synchronized (lock) {
+                    try {
+                        // The result may arrive before the wait starts
+                        while (!isCompleted) {
+                            long remainMSec = endMSec - System.currentTimeMillis();
+                            if (remainMSec <= 0) {
+                                Timber.w("No result from " + api.getApiType() + " in " + timeoutMSec + " msec");
+                                return false;
+                            }
+                            lock.wait(remainMSec);
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void notifyCompleted() {
+                synchronized (lock) {
+                    isCompleted = true;
+                    lock.notifyAll();
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void completedRequestCode(String result) {
+                try {
+                    JSONObject json = new JSONObject(result);
+                    api.setApiResult(json);
+                } catch (JSONException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    notifyCompleted();
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void failedRequestCode(String result) {
+                api.setRedirectUrl(new String());
+                api.setDeviceCode(new String());
+                api.setUserCode(new String());
+                notifyCompleted();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void completedRequestToken(String result) {
+                try {
+                    JSONObject json = new JSONObject(result);
+                    api.setApiResult(json);
+                } catch (JSONException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    notifyCompleted();
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void failedRequestToken(String result) {
+                api.setAccessToken(new String());
+                api.setRefreshToken(new String());
+                notifyCompleted();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void completedRefreshToken(String result) {
+                try {
+                    JSONObject json = new JSONObject(result);
+                    api.setApiResult(json);
+                } catch (JSONException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    notifyCompleted();
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void failedRefreshToken(String result) {
+                notifyCompleted();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void completedRequestUserinfo(String result) {
+                try {
+                    JSONObject json = new JSONObject(result);
+                    if (json.has("email")) {
+                        String email = json.getString("email");
+                        api.setUserId(email.split("@")[0]);
+                    } else {
+                        api.setUserId("");
+                    }
+                } catch (JSONException ex) {
+                    ex.printStackTrace();
+                } finally {
+                    notifyCompleted();
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void failedRequestUserinfo(String result) {
+                api.setUserId("");
+                notifyCompleted();
+            }
         }
 
         /**
-         * {@inheritDoc}
+         * Receive the device code into a job instead of waking up a waiting request
          */
-        @Override
-        public void failedUploadFile(String result) {
-            Timber.i("failed upload file : " + uploadingPhoto.getPath() + " by " + result);
+        private class AuthJobCallback extends ApiCallback {
+            private final UploadPhotoApi api;
+            private final AuthJob job;
+
+            AuthJobCallback(UploadPhotoApi api, AuthJob job) {
+                super(api);
+                this.api = api;
+                this.job = job;
+            }
 
-            try {
-                errorCode = Integer.parseInt(result);
-            } catch (NumberFormatException ex) {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void completedRequestCode(String result) {
+                try {
+                    api.setApiResult(new JSONObject(result));
+                    job.complete(api.getUserCode(), api.getRedirectUrl());
+                } catch (JSONException ex) {
+                    Timber.w(ex, "Invalid device code response");
+                    job.fail(ex.getMessage());
+                }
+                eventBroadcaster.notifyChanged();
             }
 
-            isSucceedUpload = false;
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void failedRequestCode(String result) {
+                api.setRedirectUrl(new String());
+                api.setDeviceCode(new String());
+                api.setUserCode(new String());
+                job.fail(result);
+                eventBroadcaster.notifyChanged();
+            }
         }
 
-        private void insertUploadedPhotoDb() {
+        private void insertUploadedPhotoDb(UploadDestination destination, PhotoInformation uploadedPhoto) {
             try {
                 ContentValues values;
                 values = new ContentValues();
-                values.put("path", uploadingPhoto.getPath());
-                values.put("datetime", uploadingPhoto.getDatetime());
-                values.put("user_id", uploadingPhoto.getUserId());
-                values.put("api_type", uploadPhotoApi.getApiType());
-                dbObject.insert("uploaded_photo", null, values);
-                uploadedPhotoList.add(uploadingPhoto);
+                values.put("path", uploadedPhoto.getPath());
+                values.put("datetime", uploadedPhoto.getDatetime());
+                values.put("user_id", destination.getUserId());
+                values.put("api_type", destination.getApiType());
+                values.put("content_hash", uploadedPhoto.getContentHash());
+                values.put("size", uploadedPhoto.getSize());
+                // Written with other uploads in one transaction. The list in memory skips the photo meanwhile.
+                uploadedPhotoCommitter.add(values);
+                destination.addUploadedPhoto(uploadedPhoto);
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
         }
+
+        private void insertUploadedPreviewDb(UploadDestination destination, PhotoInformation photoInformation, String previewName) {
+            try {
+                database.insertUploadedPreview(photoInformation.getPath(), destination.getUserId(), destination.getApiType(), previewName);
+                destination.addUploadedPreview(photoInformation.getPath());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * File data of a download, which frees the download slot when NanoHTTPD closes the response
+         */
+        private class DownloadInputStream extends FilterInputStream {
+            private boolean isClosed;
+
+            DownloadInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (this) {
+                    if (isClosed) {
+                        return;
+                    }
+                    isClosed = true;
+                }
+                downloadCount.decrementAndGet();
+                super.close();
+            }
+        }
     }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Device code request or destination check that runs in the background.
+ * The request threads only start it and read its state, and a reader may wait for a limited time until it ends.
+ */
+public class AuthJob {
+
+    /**
+     * State of the job
+     */
+    public enum State {
+        RUNNING("running"),
+        CODE_READY("code_ready"),
+        SUCCEEDED("succeeded"),
+        FAILED("failed");
+
+        private final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final String id;
+    private final long deadlineMSec;
+    private State state = State.RUNNING;
+    private String userCode;
+    private String verificationUrl;
+    private String error;
+
+    /**
+     * Constructor
+     *
+     * @param id Job ID
+     * @param timeoutMSec Time until the job fails if no result was received
+     */
+    public AuthJob(String id, long timeoutMSec) {
+        this.id = id;
+        this.deadlineMSec = System.currentTimeMillis() + timeoutMSec;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized State getState() {
+        checkDeadline();
+        return state;
+    }
+
+    public synchronized String getUserCode() {
+        return userCode;
+    }
+
+    public synchronized String getVerificationUrl() {
+        return verificationUrl;
+    }
+
+    /**
+     * Set the received code
+     *
+     * @param userCode Code to enter on the verification page
+     * @param verificationUrl URL of the verification page
+     * @return false if the job had already ended
+     */
+    public synchronized boolean complete(String userCode, String verificationUrl) {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        this.userCode = userCode;
+        this.verificationUrl = verificationUrl;
+        state = State.CODE_READY;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * End the job without a code, when the destination was checked
+     *
+     * @return false if the job had already ended
+     */
+    public synchronized boolean succeed() {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        state = State.SUCCEEDED;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * End the job with an error
+     *
+     * @param error Error message
+     * @return false if the job had already ended
+     */
+    public synchronized boolean fail(String error) {
+        if (state != State.RUNNING) {
+            return false;
+        }
+        this.error = error;
+        state = State.FAILED;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait until the job ends
+     *
+     * @param waitMSec Longest time to wait
+     * @return State after waiting
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public synchronized State await(long waitMSec) throws InterruptedException {
+        long endMSec = System.currentTimeMillis() + waitMSec;
+        while (getState() == State.RUNNING) {
+            long remainMSec = Math.min(endMSec, deadlineMSec) - System.currentTimeMillis();
+            if (remainMSec <= 0) {
+                break;
+            }
+            wait(remainMSec);
+        }
+        return getState();
+    }
+
+    /**
+     * Get the job for JSON
+     *
+     * @return ID, state, and the code and URL or the error
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("job_id", id);
+        map.put("state", getState().getName());
+        map.put("user_code", userCode);
+        map.put("google_auth_url", verificationUrl);
+        map.put("error", error);
+        return map;
+    }
+
+    private void checkDeadline() {
+        if (state == State.RUNNING && System.currentTimeMillis() >= deadlineMSec) {
+            error = "timeout";
+            state = State.FAILED;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run the connections of the HTTP server on a bounded pool of named threads, instead of
+ * a new thread for each connection. Connections over the queue limit are closed at once.
+ * The threads run at a lower priority than the uploads, and exit after being idle for a while.
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private final ThreadPoolExecutor executor;
+    private final Set<NanoHTTPD.ClientHandler> runningSet = Collections.newSetFromMap(new ConcurrentHashMap<NanoHTTPD.ClientHandler, Boolean>());
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param name Prefix of the thread names
+     * @param maxThreads Maximum number of connections handled at once
+     * @param maxQueued Maximum number of connections waiting for a thread
+     * @param keepAliveMSec Time after which an idle thread exits
+     * @param priority Thread priority
+     */
+    public BoundedAsyncRunner(final String name, int maxThreads, int maxQueued, long keepAliveMSec, final int priority) {
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, keepAliveMSec, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        runningSet.add(clientHandler);
+        try {
+            executor.execute(clientHandler);
+        } catch (RejectedExecutionException ex) {
+            rejectedCount.incrementAndGet();
+            runningSet.remove(clientHandler);
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        runningSet.remove(clientHandler);
+    }
+
+    @Override
+    public void closeAll() {
+        for (NanoHTTPD.ClientHandler clientHandler : runningSet) {
+            clientHandler.close();
+        }
+        runningSet.clear();
+    }
+
+    /**
+     * Stop the threads. The runner cannot be used after this.
+     */
+    public void shutdown() {
+        closeAll();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the number of connections being handled
+     *
+     * @return Number of connections
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Get the number of connections waiting for a thread
+     *
+     * @return Number of connections
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of connections closed because the queue was full
+     *
+     * @return Number of connections
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Get the maximum number of connections handled at once
+     *
+     * @return Number of threads
+     */
+    public int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+}
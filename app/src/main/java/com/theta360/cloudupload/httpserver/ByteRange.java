@@ -0,0 +1,110 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.util.Locale;
+
+/**
+ * Single byte range of a Range header, such as bytes=0-499, bytes=500- or bytes=-500
+ */
+public class ByteRange {
+    private static final String UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+    private final long fileLength;
+
+    private ByteRange(long start, long end, long fileLength) {
+        this.start = start;
+        this.end = end;
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * Parse a Range header.
+     * Headers that are absent, malformed or have several ranges are ignored, and the whole file should be sent.
+     *
+     * @param header Value of the Range header
+     * @param fileLength Length of the file
+     * @return Range, or null to send the whole file
+     */
+    public static ByteRange parse(String header, long fileLength) {
+        if (header == null || !header.toLowerCase(Locale.US).startsWith(UNIT)) {
+            return null;
+        }
+        String spec = header.substring(UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // Suffix of the file
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength < 0) {
+                    return null;
+                }
+                if (suffixLength == 0 || fileLength == 0) {
+                    return new ByteRange(fileLength, fileLength - 1, fileLength);
+                }
+                return new ByteRange(Math.max(0, fileLength - suffixLength), fileLength - 1, fileLength);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            return new ByteRange(start, Math.min(end, fileLength - 1), fileLength);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false when the range starts after the file, and 416 Range Not Satisfiable should be sent
+     */
+    public boolean isSatisfiable() {
+        return start < fileLength;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @return Value of the Content-Range header
+     */
+    public String getContentRange() {
+        if (!isSatisfiable()) {
+            return "bytes */" + fileLength;
+        }
+        return "bytes " + start + "-" + end + "/" + fileLength;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push a status to the connected browsers as Server-Sent Events.
+ *
+ * One thread builds the status for all viewers, at most once per interval, and sends it
+ * only when it has changed. A viewer that reads slower than the status changes receives
+ * only the latest status. A comment is sent when nothing has changed for a while, so that
+ * closed connections are detected.
+ */
+public class EventBroadcaster implements Closeable {
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Callable<String> statusSource;
+    private final long intervalMSec;
+    private final long heartbeatMSec;
+    private final Set<EventStream> streamSet = Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
+    private ScheduledExecutorService scheduler;
+    private String lastStatus;
+    private long lastSentMSec;
+    private boolean isChanged = false;
+    private boolean isClosed = false;
+
+    /**
+     * Constructor
+     *
+     * @param statusSource Build the status in JSON
+     * @param intervalMSec Minimum interval between events
+     * @param heartbeatMSec Interval of comments while the status does not change
+     */
+    public EventBroadcaster(Callable<String> statusSource, long intervalMSec, long heartbeatMSec) {
+        this.statusSource = statusSource;
+        this.intervalMSec = intervalMSec;
+        this.heartbeatMSec = heartbeatMSec;
+    }
+
+    /**
+     * Connect a viewer. The current status is sent first.
+     *
+     * @return Stream of events to send as the response body. Closing it disconnects the viewer.
+     */
+    public synchronized InputStream subscribe() {
+        EventStream stream = new EventStream();
+        if (isClosed) {
+            stream.close();
+            return stream;
+        }
+        String status = buildStatus();
+        if (status != null && !status.equals(lastStatus)) {
+            // The status has changed since the last event, so every viewer gets it
+            streamSet.add(stream);
+            send(status, System.currentTimeMillis());
+        } else {
+            if (status != null) {
+                stream.offer(toEvent(status));
+            }
+            streamSet.add(stream);
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    broadcast(false);
+                }
+            }, intervalMSec, intervalMSec, TimeUnit.MILLISECONDS);
+        }
+        return stream;
+    }
+
+    /**
+     * Send the status soon, such as when the LED or an error changes. Changes within the interval are sent together.
+     */
+    public synchronized void notifyChanged() {
+        if (scheduler == null || isChanged) {
+            return;
+        }
+        isChanged = true;
+        long delayMSec = Math.max(0, lastSentMSec + intervalMSec - System.currentTimeMillis());
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                broadcast(true);
+            }
+        }, delayMSec, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of connected viewers
+     *
+     * @return Number of viewers
+     */
+    public int getSubscriberCount() {
+        return streamSet.size();
+    }
+
+    /**
+     * Disconnect all viewers and stop the thread
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        stopScheduler();
+        for (EventStream stream : streamSet) {
+            stream.close();
+        }
+        streamSet.clear();
+    }
+
+    private synchronized void broadcast(boolean isNotified) {
+        if (isNotified) {
+            isChanged = false;
+        }
+        if (streamSet.isEmpty()) {
+            // Stop building the status while no one is watching
+            stopScheduler();
+            return;
+        }
+        long nowMSec = System.currentTimeMillis();
+        String status = buildStatus();
+        if (status != null && !status.equals(lastStatus)) {
+            send(status, nowMSec);
+        } else if (nowMSec - lastSentMSec >= heartbeatMSec) {
+            lastSentMSec = nowMSec;
+            for (EventStream stream : streamSet) {
+                stream.offer(HEARTBEAT);
+            }
+        }
+    }
+
+    private void send(String status, long nowMSec) {
+        lastStatus = status;
+        lastSentMSec = nowMSec;
+        byte[] event = toEvent(status);
+        for (EventStream stream : streamSet) {
+            stream.offer(event);
+        }
+    }
+
+    private void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        isChanged = false;
+        lastStatus = null;
+    }
+
+    private String buildStatus() {
+        try {
+            return statusSource.call();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private static byte[] toEvent(String data) {
+        return ("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Events of one viewer. Only the latest event waits to be read.
+     */
+    private class EventStream extends InputStream {
+        private byte[] event;
+        private byte[] reading;
+        private int position;
+        private boolean isStreamClosed = false;
+
+        synchronized void offer(byte[] data) {
+            // A heartbeat does not replace an event not read yet
+            if (data != HEARTBEAT || event == null) {
+                event = data;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (reading == null || position == reading.length) {
+                if (isStreamClosed) {
+                    return -1;
+                }
+                if (event != null) {
+                    reading = event;
+                    position = 0;
+                    event = null;
+                    continue;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    return -1;
+                }
+            }
+            int length = Math.min(len, reading.length - position);
+            System.arraycopy(reading, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public synchronized int available() {
+            return reading == null ? 0 : reading.length - position;
+        }
+
+        @Override
+        public synchronized void close() {
+            isStreamClosed = true;
+            streamSet.remove(this);
+            notifyAll();
+        }
+    }
+}
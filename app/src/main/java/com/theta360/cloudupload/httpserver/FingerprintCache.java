@@ -0,0 +1,142 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.httpserver;
+
+import android.database.Cursor;
+import com.theta360.cloudupload.upload.PhotoFileStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import timber.log.Timber;
+
+/**
+ * Content hashes and EXIF date times of files, cached in the file_fingerprint table by size
+ * and last modified time so that each file is read only once
+ */
+public class FingerprintCache {
+    private final Theta360Database database;
+    private final Map<String, Fingerprint> fingerprintMap = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param database DB
+     */
+    public FingerprintCache(Theta360Database database) {
+        this.database = database;
+        Cursor cursor = database.queryFingerprints();
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(cursor.getColumnIndex("path"));
+                fingerprintMap.put(path, new Fingerprint(
+                        cursor.getLong(cursor.getColumnIndex("size")),
+                        cursor.getLong(cursor.getColumnIndex("last_modified")),
+                        cursor.getString(cursor.getColumnIndex("content_hash")),
+                        cursor.getString(cursor.getColumnIndex("datetime"))));
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get the cached content hash
+     *
+     * @param file File
+     * @return Hash, or null if not cached or the file has changed
+     */
+    public String getCachedHash(File file) {
+        Fingerprint fingerprint = getFingerprint(file);
+        return fingerprint == null ? null : fingerprint.contentHash;
+    }
+
+    /**
+     * Get the cached EXIF date time
+     *
+     * @param file File
+     * @return Date time, or null if not cached or the file has changed
+     */
+    public String getCachedDatetime(File file) {
+        Fingerprint fingerprint = getFingerprint(file);
+        return fingerprint == null ? null : fingerprint.datetime;
+    }
+
+    /**
+     * Get the content hash, computing it if not cached
+     *
+     * @param file File
+     * @return Hash
+     */
+    public String getHash(File file) throws IOException {
+        String contentHash = getCachedHash(file);
+        if (contentHash == null) {
+            long startMSec = System.currentTimeMillis();
+            PhotoFileStream stream = PhotoFileStream.readAll(file);
+            contentHash = stream.getHash();
+            Timber.i("hashed " + file.getAbsolutePath() + " in " + (System.currentTimeMillis() - startMSec) + " msec");
+            put(file, contentHash, stream.getDatetime());
+        }
+        return contentHash;
+    }
+
+    /**
+     * Cache the content hash and the EXIF date time
+     *
+     * @param file File
+     * @param contentHash Hash
+     * @param datetime Date time
+     */
+    public void put(File file, String contentHash, String datetime) {
+        Fingerprint fingerprint = new Fingerprint(file.length(), file.lastModified(), contentHash, datetime);
+        Fingerprint previous = fingerprintMap.put(file.getAbsolutePath(), fingerprint);
+        if (previous != null && previous.size == fingerprint.size && previous.lastModified == fingerprint.lastModified
+                && contentHash.equals(previous.contentHash)) {
+            return;
+        }
+        try {
+            database.putFingerprint(file.getAbsolutePath(), fingerprint.size, fingerprint.lastModified, contentHash, datetime);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private Fingerprint getFingerprint(File file) {
+        Fingerprint fingerprint = fingerprintMap.get(file.getAbsolutePath());
+        if (fingerprint == null || fingerprint.size != file.length() || fingerprint.lastModified != file.lastModified()) {
+            return null;
+        }
+        return fingerprint;
+    }
+
+    private static class Fingerprint {
+        private final long size;
+        private final long lastModified;
+        private final String contentHash;
+        private final String datetime;
+
+        Fingerprint(long size, long lastModified, String contentHash, String datetime) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.datetime = datetime;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import timber.log.Timber;
+
+/**
+ * Write items in groups, such as rows in one DB transaction, so that each item does not pay for a commit.
+ *
+ * A group is written by one thread when it has the maximum number of items, or when its first item
+ * has waited for the maximum delay. flush() and close() wait until every item added before is written.
+ * A group that fails is retried with the next one. If that fails too, the items are written one by
+ * one, and only the items that still fail are dropped.
+ *
+ * @param <T> Item
+ */
+public class GroupCommitter<T> implements Closeable {
+    private final Sink<T> sink;
+    private final int maxGroupSize;
+    private final long maxDelayMSec;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final Runnable commitTask = new Runnable() {
+        @Override
+        public void run() {
+            commitPending(false);
+        }
+    };
+    // Does not leave items to a later retry, since the caller waits for them
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            commitPending(true);
+        }
+    };
+    private List<T> pendingList = new ArrayList<>();
+    // Number of items at the head of pendingList that failed once
+    private int failedCount = 0;
+    private boolean isScheduled = false;
+    private boolean isClosed = false;
+    private long committedCount;
+    private long groupCount;
+
+    /**
+     * Constructor
+     *
+     * @param sink Write a group
+     * @param maxGroupSize Number of items that are written at once without waiting
+     * @param maxDelayMSec Longest time an item waits for others
+     */
+    public GroupCommitter(Sink<T> sink, int maxGroupSize, long maxDelayMSec) {
+        this.sink = sink;
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayMSec = maxDelayMSec;
+        // close() writes the items of a waiting group at once
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Add an item to the next group. After close() the item is written before this returns.
+     *
+     * @param item Item
+     */
+    public void add(T item) {
+        synchronized (this) {
+            if (!isClosed) {
+                pendingList.add(item);
+                if (pendingList.size() >= maxGroupSize) {
+                    executor.execute(commitTask);
+                } else if (!isScheduled) {
+                    isScheduled = true;
+                    executor.schedule(commitTask, maxDelayMSec, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        commit(Collections.singletonList(item));
+    }
+
+    /**
+     * Write the items added so far, and wait until they are written
+     */
+    public void flush() {
+        try {
+            executor.submit(flushTask).get();
+        } catch (ExecutionException e) {
+            Timber.e(e, "Failed to flush");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            // Closed, and everything has been written
+        }
+    }
+
+    /**
+     * Write the remaining items and stop the thread. Items added later are written at once.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        executor.execute(flushTask);
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                Timber.w("Waiting for " + getPendingCount() + " items to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of items written
+     */
+    public synchronized long getCommittedCount() {
+        return committedCount;
+    }
+
+    /**
+     * @return Number of groups written
+     */
+    public synchronized long getGroupCount() {
+        return groupCount;
+    }
+
+    private synchronized int getPendingCount() {
+        return pendingList.size();
+    }
+
+    private void commitPending(boolean isWaited) {
+        List<T> group;
+        boolean isRetry;
+        synchronized (this) {
+            group = pendingList;
+            isRetry = failedCount > 0;
+            pendingList = new ArrayList<>();
+            failedCount = 0;
+            isScheduled = false;
+        }
+        if (group.isEmpty() || commit(group)) {
+            return;
+        }
+
+        if (!isRetry) {
+            if (!isWaited) {
+                // Put the group back in front of the items added meanwhile, and retry after the delay
+                synchronized (this) {
+                    group.addAll(pendingList);
+                    pendingList = group;
+                    failedCount = group.size();
+                    if (!isScheduled) {
+                        isScheduled = true;
+                        executor.schedule(commitTask, maxDelayMSec, TimeUnit.MILLISECONDS);
+                    }
+                }
+                return;
+            }
+            if (commit(group)) {
+                return;
+            }
+        }
+        // An item may make the whole group fail, so keep the others
+        for (T item : group) {
+            commit(Collections.singletonList(item));
+        }
+    }
+
+    /**
+     * @return true if written
+     */
+    private boolean commit(List<T> group) {
+        try {
+            sink.commit(group);
+            synchronized (this) {
+                committedCount += group.size();
+                groupCount++;
+            }
+            return true;
+        } catch (Exception e) {
+            Timber.e(e, "Failed to write " + group.size() + " items");
+            return false;
+        }
+    }
+
+    /**
+     * Destination of the groups
+     *
+     * @param <T> Item
+     */
+    public interface Sink<T> {
+        /**
+         * Write a group at once
+         *
+         * @param group Items in the order they were added
+         */
+        void commit(List<T> group) throws Exception;
+    }
+}
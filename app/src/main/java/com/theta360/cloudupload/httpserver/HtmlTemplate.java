@@ -0,0 +1,124 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTML page with placeholders such as #JS_INJECTION#, parsed once into fixed parts and slots.
+ * A page is rendered by copying the parts and the slot values into one array of the final length.
+ */
+public class HtmlTemplate {
+    private final List<byte[]> segmentList = new ArrayList<>();
+    private final List<String> slotList = new ArrayList<>();
+    private final int segmentBytes;
+
+    /**
+     * Constructor
+     *
+     * @param source Template text
+     * @param slotNames Names of the placeholders, without the # marks. Other text between # marks is kept.
+     */
+    public HtmlTemplate(String source, String... slotNames) {
+        int start = 0;
+        int bytes = 0;
+        while (true) {
+            int slotIndex = -1;
+            String slotName = null;
+            for (String name : slotNames) {
+                int index = source.indexOf("#" + name + "#", start);
+                if (index != -1 && (slotIndex == -1 || index < slotIndex)) {
+                    slotIndex = index;
+                    slotName = name;
+                }
+            }
+            if (slotName == null) {
+                break;
+            }
+            byte[] segment = source.substring(start, slotIndex).getBytes(StandardCharsets.UTF_8);
+            segmentList.add(segment);
+            bytes += segment.length;
+            slotList.add(slotName);
+            start = slotIndex + slotName.length() + 2;
+        }
+        byte[] segment = source.substring(start).getBytes(StandardCharsets.UTF_8);
+        segmentList.add(segment);
+        segmentBytes = bytes + segment.length;
+    }
+
+    /**
+     * Read a template
+     *
+     * @param is Template in UTF-8
+     * @param slotNames Names of the placeholders, without the # marks
+     * @return Template
+     * @throws IOException Failed to read
+     */
+    public static HtmlTemplate read(InputStream is, String... slotNames) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            os.write(buffer, 0, length);
+        }
+        return new HtmlTemplate(new String(os.toByteArray(), StandardCharsets.UTF_8), slotNames);
+    }
+
+    /**
+     * Render the page
+     *
+     * @param values Values by placeholder name. A missing value leaves the slot empty.
+     * @return Page in UTF-8
+     */
+    public byte[] render(Map<String, String> values) {
+        byte[][] valueBytes = new byte[slotList.size()][];
+        int length = segmentBytes;
+        for (int i = 0; i < slotList.size(); i++) {
+            String value = values.get(slotList.get(i));
+            valueBytes[i] = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            length += valueBytes[i].length;
+        }
+
+        byte[] page = new byte[length];
+        int position = 0;
+        for (int i = 0; i < segmentList.size(); i++) {
+            byte[] segment = segmentList.get(i);
+            System.arraycopy(segment, 0, page, position, segment.length);
+            position += segment.length;
+            if (i < valueBytes.length) {
+                System.arraycopy(valueBytes[i], 0, page, position, valueBytes[i].length);
+                position += valueBytes[i].length;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Get the number of placeholders
+     *
+     * @return Number of slots
+     */
+    public int getSlotCount() {
+        return slotList.size();
+    }
+}
@@ -24,6 +24,8 @@ public class PhotoInformation {
     private String path;
     private String datetime;
     private String userId;
+    private String contentHash;
+    private long size;
 
     /**
      * Constructor
@@ -32,6 +34,8 @@ public class PhotoInformation {
         this.path = "";
         this.datetime = "";
         this.userId = "";
+        this.contentHash = null;
+        this.size = 0;
     }
 
     /**
@@ -88,6 +92,69 @@ public class PhotoInformation {
         this.userId = userId;
     }
 
+    /**
+     * Get content hash
+     *
+     * @return SHA-256 of the file, or null if not computed
+     */
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    /**
+     * Set content hash
+     *
+     * @param contentHash SHA-256 of the file
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Get size
+     *
+     * @return File size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Set size
+     *
+     * @param size File size
+     */
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Check whether the file is a video
+     *
+     * @return true if video
+     */
+    public boolean isMovie() {
+        return isMoviePath(this.path);
+    }
+
+    /**
+     * Check whether the file is a photo or video to upload
+     *
+     * @param path File path
+     * @param isUploadMovie true to upload videos as well as photos
+     * @return true if the file is uploaded
+     */
+    public static boolean isUploadTarget(String path, boolean isUploadMovie) {
+        if (path.endsWith(".JPG") || path.endsWith(".jpg") || path.endsWith(".jpeg")) {
+            return true;
+        }
+        return isUploadMovie && isMoviePath(path);
+    }
+
+    private static boolean isMoviePath(String path) {
+        return path != null && (path.endsWith(".MP4") || path.endsWith(".mp4"));
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null || path == null || datetime == null || userId == null) {
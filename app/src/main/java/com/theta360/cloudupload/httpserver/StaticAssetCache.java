@@ -0,0 +1,265 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static files of the settings page, read once and kept in memory with a gzip copy.
+ * The assets do not change while the app is installed, so they are validated with an ETag
+ * of the content and the time the app was installed.
+ */
+public class StaticAssetCache {
+    private final AssetSource assetSource;
+    private final long lastModifiedMSec;
+    private final Map<String, Asset> assetMap = new ConcurrentHashMap<>();
+
+    /**
+     * Open an asset
+     */
+    public interface AssetSource {
+        /**
+         * Open an asset
+         *
+         * @param name Path in the assets, such as js/jquery.js
+         * @return Content of the asset
+         * @throws IOException The asset does not exist
+         */
+        InputStream open(String name) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param assetSource Source of the assets
+     * @param lastModifiedMSec Time the assets were installed
+     */
+    public StaticAssetCache(AssetSource assetSource, long lastModifiedMSec) {
+        this.assetSource = assetSource;
+        // HTTP dates have a precision of seconds
+        this.lastModifiedMSec = lastModifiedMSec / 1000 * 1000;
+    }
+
+    /**
+     * Get an asset, reading it on the first request
+     *
+     * @param name Path in the assets, such as js/jquery.js
+     * @return Asset
+     * @throws IOException The asset does not exist
+     */
+    public Asset get(String name) throws IOException {
+        Asset asset = assetMap.get(name);
+        if (asset == null) {
+            // Two requests may read the same asset at first, and either copy is kept
+            asset = load(name);
+            assetMap.put(name, asset);
+        }
+        return asset;
+    }
+
+    /**
+     * Get the MIME type of a file
+     *
+     * @param name File name
+     * @return MIME type, with the charset for text
+     */
+    public static String getMimeType(String name) {
+        String lowerName = name.toLowerCase(Locale.US);
+        if (lowerName.endsWith(".ico")) {
+            return "image/x-icon";
+        } else if (lowerName.endsWith(".png")) {
+            return "image/png";
+        } else if (lowerName.endsWith(".js")) {
+            return "application/javascript; charset=UTF-8";
+        } else if (lowerName.endsWith(".css")) {
+            return "text/css; charset=UTF-8";
+        } else if (lowerName.endsWith(".json")) {
+            return "application/json; charset=UTF-8";
+        } else if (lowerName.endsWith(".html") || lowerName.endsWith(".htm")) {
+            return "text/html; charset=UTF-8";
+        } else if (lowerName.endsWith(".properties")) {
+            return "text/plain; charset=UTF-8";
+        }
+        return "application/octet-stream";
+    }
+
+    private Asset load(String name) throws IOException {
+        byte[] data;
+        try (InputStream is = assetSource.open(name)) {
+            data = readAll(is);
+        }
+        String mimeType = getMimeType(name);
+        byte[] gzipData = null;
+        if (!mimeType.equals("image/png")) {
+            byte[] compressed = gzip(data);
+            if (compressed.length < data.length) {
+                gzipData = compressed;
+            }
+        }
+        return new Asset(data, gzipData, mimeType, createEtag(data), lastModifiedMSec);
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            os.write(buffer, 0, length);
+        }
+        return os.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(os)) {
+            gzipOutputStream.write(data);
+        }
+        return os.toByteArray();
+    }
+
+    private static String createEtag(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i] & 0xff));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Format a time for the Last-Modified header
+     *
+     * @param timeMSec Time in milliseconds
+     * @return HTTP date
+     */
+    public static String formatHttpDate(long timeMSec) {
+        return createHttpDateFormat().format(new Date(timeMSec));
+    }
+
+    private static SimpleDateFormat createHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Asset held in memory
+     */
+    public static class Asset {
+        private final byte[] data;
+        private final byte[] gzipData;
+        private final String mimeType;
+        private final String etag;
+        private final long lastModifiedMSec;
+
+        private Asset(byte[] data, byte[] gzipData, String mimeType, String etag, long lastModifiedMSec) {
+            this.data = data;
+            this.gzipData = gzipData;
+            this.mimeType = mimeType;
+            this.etag = etag;
+            this.lastModifiedMSec = lastModifiedMSec;
+        }
+
+        /**
+         * Get the content
+         *
+         * @return Content of the asset
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Get the gzip copy of the content
+         *
+         * @return Compressed content, or null if compressing does not make it smaller
+         */
+        public byte[] getGzipData() {
+            return gzipData;
+        }
+
+        /**
+         * Get the MIME type
+         *
+         * @return MIME type
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Get the entity tag
+         *
+         * @return Quoted hash of the content
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Get the Last-Modified header value
+         *
+         * @return HTTP date
+         */
+        public String getLastModified() {
+            return formatHttpDate(lastModifiedMSec);
+        }
+
+        /**
+         * Check whether the copy the browser has is still valid. If-None-Match takes precedence over If-Modified-Since.
+         *
+         * @param ifNoneMatch If-None-Match header, or null
+         * @param ifModifiedSince If-Modified-Since header, or null
+         * @return true to respond 304 Not Modified
+         */
+        public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String trimmedTag = tag.trim();
+                    if (trimmedTag.equals("*") || trimmedTag.equals(etag) || trimmedTag.equals("W/" + etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    return createHttpDateFormat().parse(ifModifiedSince).getTime() >= lastModifiedMSec;
+                } catch (ParseException ex) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+}
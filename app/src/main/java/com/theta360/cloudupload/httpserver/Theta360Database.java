@@ -0,0 +1,229 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import java.util.List;
+
+/**
+ * The one connection to the DB in the process. Settings, accounts, upload history and file fingerprints
+ * are all read and written here, and the frequent statements are compiled once.
+ */
+public class Theta360Database {
+    private static final String SELECT_NO_OPERATION_TIMEOUT_SQL = "select no_operation_timeout_minute from theta360_setting limit 1;";
+    private static final String INSERT_UPLOADED_PHOTO_SQL = "insert or replace into uploaded_photo(path, datetime, user_id, api_type, content_hash, size) values (?, ?, ?, ?, ?, ?);";
+    private static final String UPDATE_PREVIEW_ORIGINAL_SQL = "update uploaded_preview set is_original_uploaded = 1 where api_type = ? and user_id = ? and path = ?;";
+    private static final String INSERT_UPLOADED_PREVIEW_SQL = "insert into uploaded_preview(path, user_id, api_type, preview_name) values (?, ?, ?, ?);";
+    private static final String INSERT_FINGERPRINT_SQL = "insert or replace into file_fingerprint(path, size, last_modified, content_hash, datetime) values (?, ?, ?, ?, ?);";
+
+    private static Theta360Database instance;
+
+    private final SQLiteDatabase db;
+    private final SQLiteStatement selectNoOperationTimeoutStatement;
+    private final SQLiteStatement insertUploadedPhotoStatement;
+    private final SQLiteStatement updatePreviewOriginalStatement;
+    private final SQLiteStatement insertUploadedPreviewStatement;
+    private final SQLiteStatement insertFingerprintStatement;
+
+    private Theta360Database(SQLiteDatabase db) {
+        this.db = db;
+        selectNoOperationTimeoutStatement = db.compileStatement(SELECT_NO_OPERATION_TIMEOUT_SQL);
+        insertUploadedPhotoStatement = db.compileStatement(INSERT_UPLOADED_PHOTO_SQL);
+        updatePreviewOriginalStatement = db.compileStatement(UPDATE_PREVIEW_ORIGINAL_SQL);
+        insertUploadedPreviewStatement = db.compileStatement(INSERT_UPLOADED_PREVIEW_SQL);
+        insertFingerprintStatement = db.compileStatement(INSERT_FINGERPRINT_SQL);
+    }
+
+    /**
+     * Get the DB of the process, opening it the first time
+     *
+     * @param context Context
+     * @return DB
+     */
+    public static synchronized Theta360Database getInstance(Context context) {
+        if (instance == null) {
+            Theta360SQLiteOpenHelper helper = new Theta360SQLiteOpenHelper(context.getApplicationContext());
+            instance = new Theta360Database(helper.getWritableDatabase());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the time until the plug-in stops without operation. The setting record is created the first time.
+     *
+     * @param defaultMinute Time of a new record
+     * @return Time in minutes
+     */
+    public synchronized int getNoOperationTimeoutMinute(int defaultMinute) {
+        try {
+            return (int) selectNoOperationTimeoutStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            ContentValues values = new ContentValues();
+            values.put("no_operation_timeout_minute", defaultMinute);
+            values.put("status", "");
+            if (db.insert("theta360_setting", null, values) == -1) {
+                throw new SQLiteException("[setting data] initialize database error");
+            }
+            return defaultMinute;
+        }
+    }
+
+    public Cursor querySetting() {
+        return db.query("theta360_setting", null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Write settings
+     *
+     * @param values Changed columns
+     */
+    public void updateSetting(ContentValues values) {
+        db.update("theta360_setting", values, null, null);
+    }
+
+    public Cursor queryAuthInformation() {
+        return db.query("auth_information", null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Create the empty record that the first account is written to
+     */
+    public void insertEmptyAuthInformation() {
+        ContentValues values = new ContentValues();
+        values.put("refresh_token", "");
+        values.put("user_id", "");
+        values.put("api_type", "");
+        db.insert("auth_information", null, values);
+    }
+
+    /**
+     * Save the tokens of an account. Each API type has its own record.
+     *
+     * @param apiType API type
+     * @param refreshToken Refresh token
+     * @param userId User ID
+     */
+    public void saveAuthInformation(String apiType, String refreshToken, String userId) {
+        ContentValues values = new ContentValues();
+        values.put("refresh_token", refreshToken);
+        values.put("user_id", userId);
+        values.put("api_type", apiType);
+        db.beginTransactionNonExclusive();
+        try {
+            int count = db.update("auth_information", values, "api_type = ?", new String[]{apiType});
+            if (count == 0) {
+                count = db.update("auth_information", values, "api_type = ''", null);
+            }
+            if (count == 0) {
+                db.insert("auth_information", null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public Cursor queryUploadedPhotos(String apiType) {
+        return db.query("uploaded_photo", null, "api_type = ?", new String[]{apiType}, null, null, null, null);
+    }
+
+    public Cursor queryUploadedPreviewPaths(String apiType, String userId) {
+        return db.query("uploaded_preview", new String[]{"path"}, "api_type = ? and user_id = ?",
+                new String[]{apiType, userId}, null, null, null, null);
+    }
+
+    /**
+     * Record uploaded photos in one transaction, and mark their previews as followed by the original.
+     * A photo uploaded again, such as after the file changed, replaces its record.
+     *
+     * @param group Rows of uploaded_photo
+     */
+    public synchronized void writeUploadedPhotos(List<ContentValues> group) {
+        db.beginTransactionNonExclusive();
+        try {
+            for (ContentValues values : group) {
+                bindString(insertUploadedPhotoStatement, 1, values.getAsString("path"));
+                bindString(insertUploadedPhotoStatement, 2, values.getAsString("datetime"));
+                bindString(insertUploadedPhotoStatement, 3, values.getAsString("user_id"));
+                bindString(insertUploadedPhotoStatement, 4, values.getAsString("api_type"));
+                bindString(insertUploadedPhotoStatement, 5, values.getAsString("content_hash"));
+                insertUploadedPhotoStatement.bindLong(6, values.getAsLong("size"));
+                insertUploadedPhotoStatement.executeInsert();
+
+                bindString(updatePreviewOriginalStatement, 1, values.getAsString("api_type"));
+                bindString(updatePreviewOriginalStatement, 2, values.getAsString("user_id"));
+                bindString(updatePreviewOriginalStatement, 3, values.getAsString("path"));
+                updatePreviewOriginalStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Record an uploaded preview
+     *
+     * @param path Path of the original photo
+     * @param userId User ID of the destination
+     * @param apiType API type of the destination
+     * @param previewName Name of the preview at the destination
+     */
+    public synchronized void insertUploadedPreview(String path, String userId, String apiType, String previewName) {
+        bindString(insertUploadedPreviewStatement, 1, path);
+        bindString(insertUploadedPreviewStatement, 2, userId);
+        bindString(insertUploadedPreviewStatement, 3, apiType);
+        bindString(insertUploadedPreviewStatement, 4, previewName);
+        insertUploadedPreviewStatement.executeInsert();
+    }
+
+    public Cursor queryFingerprints() {
+        return db.query("file_fingerprint", null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Record the content hash and the EXIF date time of a file
+     *
+     * @param path Path
+     * @param size Size of the file
+     * @param lastModified Last modified time of the file
+     * @param contentHash Hash
+     * @param datetime Date time
+     */
+    public synchronized void putFingerprint(String path, long size, long lastModified, String contentHash, String datetime) {
+        bindString(insertFingerprintStatement, 1, path);
+        insertFingerprintStatement.bindLong(2, size);
+        insertFingerprintStatement.bindLong(3, lastModified);
+        bindString(insertFingerprintStatement, 4, contentHash);
+        bindString(insertFingerprintStatement, 5, datetime);
+        insertFingerprintStatement.executeInsert();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
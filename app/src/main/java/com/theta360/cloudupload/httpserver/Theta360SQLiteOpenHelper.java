@@ -26,30 +26,87 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class Theta360SQLiteOpenHelper extends SQLiteOpenHelper {
 
     private static final String DB = "theta360_setting.db";
-    private static final int DB_VERSION = 1;
-    private static final String CREATE_THETA360_SETTING_SQL = "create table theta360_setting (no_operation_timeout_minute INTEGER, status TEXT, is_upload_movie INTEGER);";
-    private static final String DROP_THETA360_SETTING_SQL = "drop table theta360_setting;";
+    static final int DB_VERSION = 7;
+    private static final String CREATE_THETA360_SETTING_SQL = "create table theta360_setting (no_operation_timeout_minute INTEGER, status TEXT, is_upload_movie INTEGER, upload_max_dimension INTEGER DEFAULT 0, upload_quality INTEGER DEFAULT 0, is_preview_first INTEGER DEFAULT 0, queue_policy TEXT DEFAULT 'fifo', queue_deadline_minute INTEGER DEFAULT 0);";
+    private static final String ADD_SETTING_UPLOAD_MAX_DIMENSION_SQL = "alter table theta360_setting add column upload_max_dimension INTEGER DEFAULT 0;";
+    private static final String ADD_SETTING_UPLOAD_QUALITY_SQL = "alter table theta360_setting add column upload_quality INTEGER DEFAULT 0;";
+    private static final String ADD_SETTING_IS_PREVIEW_FIRST_SQL = "alter table theta360_setting add column is_preview_first INTEGER DEFAULT 0;";
+    private static final String ADD_SETTING_QUEUE_POLICY_SQL = "alter table theta360_setting add column queue_policy TEXT DEFAULT 'fifo';";
+    private static final String ADD_SETTING_QUEUE_DEADLINE_MINUTE_SQL = "alter table theta360_setting add column queue_deadline_minute INTEGER DEFAULT 0;";
 
     private static final String CREATE_AUTH_INFORMATION_TABLE_SQL = "create table auth_information(refresh_token TEXT, user_id TEXT, api_type TEXT);";
-    private static final String DROP_AUTH_INFORMATION_TABLE_SQL = "drop table auth_information;";
 
-    private static final String CREATE_UPLOADED_PHOTO_TABLE_SQL = "create table uploaded_photo(path TEXT, datetime TEXT, user_id TEXT, api_type TEXT);";
-    private static final String DROP_UPLOADED_PHOTO_TABLE_SQL = "drop table uploaded_photo;";
+    private static final String CREATE_UPLOADED_PHOTO_TABLE_SQL = "create table uploaded_photo(path TEXT, datetime TEXT, user_id TEXT, api_type TEXT, content_hash TEXT, size INTEGER);";
+    private static final String ADD_UPLOADED_PHOTO_CONTENT_HASH_SQL = "alter table uploaded_photo add column content_hash TEXT;";
+    private static final String ADD_UPLOADED_PHOTO_SIZE_SQL = "alter table uploaded_photo add column size INTEGER;";
+    // One row per photo and destination. The latest of duplicated rows is kept, as it has the content hash.
+    private static final String DELETE_DUPLICATE_UPLOADED_PHOTO_SQL = "delete from uploaded_photo where rowid not in (select max(rowid) from uploaded_photo group by api_type, user_id, path, datetime);";
+    private static final String CREATE_UPLOADED_PHOTO_INDEX_SQL = "create unique index uploaded_photo_key on uploaded_photo(api_type, user_id, path, datetime);";
+
+    // Preview uploaded for a photo. is_original_uploaded is set when the original follows.
+    private static final String CREATE_UPLOADED_PREVIEW_TABLE_SQL = "create table uploaded_preview(path TEXT, user_id TEXT, api_type TEXT, preview_name TEXT, is_original_uploaded INTEGER DEFAULT 0);";
+    private static final String CREATE_UPLOADED_PREVIEW_INDEX_SQL = "create index uploaded_preview_key on uploaded_preview(api_type, user_id, path);";
+
+    private static final String CREATE_FILE_FINGERPRINT_TABLE_SQL = "create table file_fingerprint(path TEXT PRIMARY KEY, size INTEGER, last_modified INTEGER, content_hash TEXT, datetime TEXT);";
+    private static final String CREATE_FILE_FINGERPRINT_TABLE_V2_SQL = "create table file_fingerprint(path TEXT PRIMARY KEY, size INTEGER, last_modified INTEGER, content_hash TEXT);";
+    private static final String ADD_FILE_FINGERPRINT_DATETIME_SQL = "alter table file_fingerprint add column datetime TEXT;";
 
     public Theta360SQLiteOpenHelper(Context c) {
-        super(c, DB, null, DB_VERSION);
+        this(c, DB, DB_VERSION);
+    }
+
+    Theta360SQLiteOpenHelper(Context c, String name, int version) {
+        super(c, name, null, version);
+    }
+
+    /**
+     * Use write-ahead logging, so that the settings and the upload history are read while uploads are recorded
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_THETA360_SETTING_SQL);
         db.execSQL(CREATE_AUTH_INFORMATION_TABLE_SQL);
         db.execSQL(CREATE_UPLOADED_PHOTO_TABLE_SQL);
+        db.execSQL(CREATE_FILE_FINGERPRINT_TABLE_SQL);
+        db.execSQL(CREATE_UPLOADED_PREVIEW_TABLE_SQL);
+        db.execSQL(CREATE_UPLOADED_PHOTO_INDEX_SQL);
+        db.execSQL(CREATE_UPLOADED_PREVIEW_INDEX_SQL);
     }
 
+    /**
+     * Migrate step by step from the old version, keeping the settings, accounts and upload history.
+     * SQLiteOpenHelper runs this in a transaction, so a failed step leaves the old version.
+     */
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(DROP_THETA360_SETTING_SQL);
-        db.execSQL(DROP_AUTH_INFORMATION_TABLE_SQL);
-        db.execSQL(DROP_UPLOADED_PHOTO_TABLE_SQL);
-        onCreate(db);
+        if (oldVersion < 2) {
+            // Keep the upload history. Photos uploaded before have no content hash.
+            db.execSQL(ADD_UPLOADED_PHOTO_CONTENT_HASH_SQL);
+            db.execSQL(ADD_UPLOADED_PHOTO_SIZE_SQL);
+            db.execSQL(CREATE_FILE_FINGERPRINT_TABLE_V2_SQL);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(ADD_FILE_FINGERPRINT_DATETIME_SQL);
+        }
+        if (oldVersion < 4) {
+            db.execSQL(ADD_SETTING_UPLOAD_MAX_DIMENSION_SQL);
+            db.execSQL(ADD_SETTING_UPLOAD_QUALITY_SQL);
+        }
+        if (oldVersion < 5) {
+            db.execSQL(ADD_SETTING_IS_PREVIEW_FIRST_SQL);
+            db.execSQL(CREATE_UPLOADED_PREVIEW_TABLE_SQL);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(ADD_SETTING_QUEUE_POLICY_SQL);
+            db.execSQL(ADD_SETTING_QUEUE_DEADLINE_MINUTE_SQL);
+        }
+        if (oldVersion < 7) {
+            db.execSQL(DELETE_DUPLICATE_UPLOADED_PHOTO_SQL);
+            db.execSQL(CREATE_UPLOADED_PHOTO_INDEX_SQL);
+            db.execSQL(CREATE_UPLOADED_PREVIEW_INDEX_SQL);
+        }
     }
 }
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Thumbnails of photos kept on disk, evicting the least recently used when the cache is full.
+ *
+ * A thumbnail is keyed by the path, size and modification time of the photo, so a changed photo
+ * gets a new thumbnail and the old one ages out. Requests for a thumbnail that is being made wait
+ * for the same result instead of decoding the photo again. The time of the last use is kept as
+ * the modification time of the cache file, so that the order survives a restart.
+ */
+public class ThumbnailCache {
+    private static final String FILE_SUFFIX = ".jpg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxBytes;
+    private final ThumbnailSource thumbnailSource;
+    // Cache file name and size, in the order of use
+    private final LinkedHashMap<String, Long> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<byte[]>> makingMap = new HashMap<>();
+    private long totalBytes = 0;
+    private int hitCount = 0;
+    private int makeCount = 0;
+    private int mergedCount = 0;
+
+    /**
+     * Make a thumbnail
+     */
+    public interface ThumbnailSource {
+        /**
+         * Make the thumbnail of a photo
+         *
+         * @param file Photo
+         * @return JPEG data
+         * @throws IOException Failed to make
+         * @throws InterruptedException Interrupted while making
+         */
+        byte[] make(File file) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Constructor. The thumbnails left in the directory are used.
+     *
+     * @param directory Directory of the cache files
+     * @param maxBytes Maximum total size of the cache files
+     * @param thumbnailSource Maker of the thumbnails
+     */
+    public ThumbnailCache(File directory, long maxBytes, ThumbnailSource thumbnailSource) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.thumbnailSource = thumbnailSource;
+        if (!directory.isDirectory()) {
+            directory.mkdirs();
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    entryMap.put(file.getName(), file.length());
+                    totalBytes += file.length();
+                } else {
+                    // Left by a thumbnail that was being written
+                    file.delete();
+                }
+            }
+            trim();
+        }
+    }
+
+    /**
+     * Get the thumbnail of a photo, making it if it is not cached
+     *
+     * @param file Photo
+     * @return JPEG data
+     * @throws IOException Failed to make
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public byte[] get(final File file) throws IOException, InterruptedException {
+        final String name = getName(file);
+        boolean isCached;
+        synchronized (this) {
+            // Marks the entry as used
+            isCached = entryMap.get(name) != null;
+        }
+        if (isCached) {
+            // Read without the lock, so that a slow read does not hold up the other requests
+            byte[] data = read(name);
+            synchronized (this) {
+                if (data != null) {
+                    hitCount++;
+                    return data;
+                }
+                // Deleted by trim() or from outside. A file stored again meanwhile is kept.
+                if (!new File(directory, name).isFile()) {
+                    Long bytes = entryMap.remove(name);
+                    totalBytes -= bytes == null ? 0 : bytes;
+                }
+            }
+        }
+
+        FutureTask<byte[]> task;
+        boolean isMaker = false;
+        synchronized (this) {
+            task = makingMap.get(name);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        byte[] data = thumbnailSource.make(file);
+                        store(name, data);
+                        return data;
+                    }
+                });
+                makingMap.put(name, task);
+                makeCount++;
+                isMaker = true;
+            } else {
+                mergedCount++;
+            }
+        }
+
+        if (isMaker) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    makingMap.remove(name);
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw new IOException("interrupted while making the thumbnail", cause);
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Get the ETag of the thumbnail of a photo
+     *
+     * @param file Photo
+     * @return ETag, which changes when the photo changes
+     */
+    public String getEtag(File file) {
+        String name = getName(file);
+        return "\"" + name.substring(0, name.length() - FILE_SUFFIX.length()) + "\"";
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMakeCount() {
+        return makeCount;
+    }
+
+    public synchronized int getMergedCount() {
+        return mergedCount;
+    }
+
+    private String getName(File file) {
+        String key = file.getAbsolutePath() + "\n" + file.length() + "\n" + file.lastModified();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read a cache file and mark it as used
+     *
+     * @return Data, or null if the file was deleted
+     */
+    private byte[] read(String name) {
+        File file = new File(directory, name);
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return out.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void store(String name, byte[] data) throws IOException {
+        File temporaryFile = new File(directory, name + TEMPORARY_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temporaryFile)) {
+            out.write(data);
+        }
+        synchronized (this) {
+            if (!temporaryFile.renameTo(new File(directory, name))) {
+                temporaryFile.delete();
+                return;
+            }
+            Long oldBytes = entryMap.put(name, (long) data.length);
+            totalBytes += data.length - (oldBytes == null ? 0 : oldBytes);
+            trim();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the total fits, keeping the newest one
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = entryMap.entrySet().iterator();
+        while (totalBytes > maxBytes && entryMap.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import com.theta360.cloudupload.net.UploadPhotoApi;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upload destination registered in auth_information
+ */
+public class UploadDestination {
+
+    private final UploadPhotoApi uploadPhotoApi;
+    private final String refreshToken;
+    private final String userId;
+    // Keys of getUploadedKey() for the photos uploaded by this user
+    private final Set<String> uploadedKeySet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> uploadedPathSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> uploadedHashSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<Long> uploadedSizeSet = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<String> previewPathSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Map<String, UploadQueue.Item> pendingCommitMap = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param uploadPhotoApi API of the destination
+     * @param refreshToken Refresh token
+     * @param userId User ID
+     */
+    public UploadDestination(UploadPhotoApi uploadPhotoApi, String refreshToken, String userId) {
+        this.uploadPhotoApi = uploadPhotoApi;
+        this.refreshToken = refreshToken;
+        this.userId = userId;
+    }
+
+    /**
+     * Get API
+     *
+     * @return API of the destination
+     */
+    public UploadPhotoApi getUploadPhotoApi() {
+        return this.uploadPhotoApi;
+    }
+
+    /**
+     * Get API type
+     *
+     * @return API type
+     */
+    public String getApiType() {
+        return this.uploadPhotoApi.getApiType();
+    }
+
+    /**
+     * Get refresh token
+     *
+     * @return Refresh token
+     */
+    public String getRefreshToken() {
+        return this.refreshToken;
+    }
+
+    /**
+     * Get userId
+     *
+     * @return User ID
+     */
+    public String getUserId() {
+        return this.userId;
+    }
+
+    /**
+     * Add an uploaded photo
+     *
+     * @param uploadedPhoto Uploaded photo
+     */
+    public void addUploadedPhoto(PhotoInformation uploadedPhoto) {
+        if (uploadedPhoto.getPath() != null && uploadedPhoto.getDatetime() != null
+                && userId.equals(uploadedPhoto.getUserId())) {
+            uploadedKeySet.add(getUploadedKey(uploadedPhoto));
+        }
+        uploadedPathSet.add(uploadedPhoto.getPath());
+        if (uploadedPhoto.getContentHash() != null && userId.equals(uploadedPhoto.getUserId())) {
+            uploadedHashSet.add(uploadedPhoto.getContentHash());
+            uploadedSizeSet.add(uploadedPhoto.getSize());
+        }
+    }
+
+    /**
+     * Check whether a file has been uploaded from the path
+     *
+     * @param path File path
+     * @return true if uploaded
+     */
+    public boolean hasUploadedPath(String path) {
+        return uploadedPathSet.contains(path);
+    }
+
+    /**
+     * Check whether a file of the size may have been uploaded to this destination.
+     * Only files of an uploaded size need the content hash to find duplicates.
+     *
+     * @param size File size
+     * @return true if a file of the size has been uploaded
+     */
+    public boolean hasUploadedSize(long size) {
+        return uploadedSizeSet.contains(size);
+    }
+
+    /**
+     * Check whether the content has been uploaded to this destination
+     *
+     * @param contentHash Content hash
+     * @return true if uploaded
+     */
+    public boolean hasUploadedContent(String contentHash) {
+        return contentHash != null && uploadedHashSet.contains(contentHash);
+    }
+
+    /**
+     * Check whether the photo has been uploaded to this destination
+     *
+     * @param photoInformation Photo
+     * @return true if uploaded
+     */
+    public boolean hasUploaded(PhotoInformation photoInformation) {
+        return photoInformation.getPath() != null && photoInformation.getDatetime() != null
+                && uploadedKeySet.contains(getUploadedKey(photoInformation));
+    }
+
+    /**
+     * Get the key that identifies an uploaded photo, as PhotoInformation.equals() does for one user
+     */
+    private static String getUploadedKey(PhotoInformation photoInformation) {
+        return photoInformation.getPath() + "\n" + photoInformation.getDatetime();
+    }
+
+    /**
+     * Add a photo whose preview has been uploaded
+     *
+     * @param path Path of the original photo
+     */
+    public void addUploadedPreview(String path) {
+        previewPathSet.add(path);
+    }
+
+    /**
+     * Check whether the preview of a photo has been uploaded to this destination
+     *
+     * @param path Path of the original photo
+     * @return true if uploaded
+     */
+    public boolean hasUploadedPreview(String path) {
+        return previewPathSet.contains(path);
+    }
+
+    /**
+     * Add a transferred photo waiting for batch commit
+     *
+     * @param uploadToken Upload token returned by the transport stage
+     * @param item Queue item of the transferred photo
+     * @param batchSize Number of photos committed at once
+     * @return Photos to commit by upload token if the batch is full, otherwise null
+     */
+    public synchronized Map<String, UploadQueue.Item> addPendingCommit(String uploadToken, UploadQueue.Item item, int batchSize) {
+        pendingCommitMap.put(uploadToken, item);
+        if (pendingCommitMap.size() < batchSize) {
+            return null;
+        }
+        return takePendingCommits();
+    }
+
+    /**
+     * Take all transferred photos waiting for batch commit
+     *
+     * @return Photos to commit by upload token
+     */
+    public synchronized Map<String, UploadQueue.Item> takePendingCommits() {
+        Map<String, UploadQueue.Item> batch = pendingCommitMap;
+        pendingCommitMap = new LinkedHashMap<>();
+        return batch;
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import com.theta360.cloudupload.upload.UploadOrder;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Files of an upload session, which can be reordered, cancelled and retried while the session runs.
+ *
+ * Items keep the ID given when they were added, and are listed in the order of the IDs, so that a
+ * page starts after the last ID of the previous page. The upload workers take the pending items
+ * from the front, and the stages working ahead of them follow the same order.
+ */
+public class UploadQueue implements UploadOrder {
+    public static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * State of an item
+     */
+    public enum State {
+        PENDING("pending"),
+        UPLOADING("uploading"),
+        // Transferred, and waiting for the batch commit of a destination
+        COMMITTING("committing"),
+        UPLOADED("uploaded"),
+        FAILED("failed"),
+        CANCELLED("cancelled");
+
+        private final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the state by name
+         *
+         * @param name Name
+         * @return State, or null if the name is unknown
+         */
+        public static State getState(String name) {
+            for (State state : values()) {
+                if (state.name.equals(name)) {
+                    return state;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Receive the changes made to the items from outside the session
+     */
+    public interface Listener {
+
+        /**
+         * Called after the lock of the queue is released, so that the listener may wait
+         *
+         * @param item Cancelled item
+         * @param wasPending true if the item had not been taken by a worker
+         */
+        void onCancelled(Item item, boolean wasPending);
+
+        /**
+         * Called with the lock of the queue held, before the item can be taken
+         *
+         * @param item Item to upload again
+         */
+        void onRetried(Item item);
+    }
+
+    /**
+     * File in the queue
+     */
+    public class Item {
+        private final long id;
+        private final PhotoInformation photoInformation;
+        private State state = State.PENDING;
+        private Thread thread;
+        private int pendingCommitCount = 0;
+        private boolean isCommitFailed = false;
+
+        private Item(long id, PhotoInformation photoInformation) {
+            this.id = id;
+            this.photoInformation = photoInformation;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public PhotoInformation getPhotoInformation() {
+            return photoInformation;
+        }
+
+        public State getState() {
+            synchronized (UploadQueue.this) {
+                return state;
+            }
+        }
+
+        public boolean isCancelled() {
+            return getState() == State.CANCELLED;
+        }
+
+        /**
+         * Stop reading the file when the item is cancelled
+         *
+         * @param in Data of the file
+         * @return Stream that fails once the item is cancelled
+         */
+        public InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    checkCancelled();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    checkCancelled();
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Count a destination that will commit the transferred file with a later batch.
+         * The item stays COMMITTING after finish() until finishCommit() is called for each.
+         */
+        public void addPendingCommit() {
+            synchronized (UploadQueue.this) {
+                pendingCommitCount++;
+            }
+        }
+
+        /**
+         * End a batch commit counted by addPendingCommit()
+         *
+         * @param isCommitted true if the destination stored the file
+         */
+        public void finishCommit(boolean isCommitted) {
+            synchronized (UploadQueue.this) {
+                pendingCommitCount--;
+                if (!isCommitted) {
+                    isCommitFailed = true;
+                }
+                if (pendingCommitCount == 0 && state == State.COMMITTING) {
+                    setState(this, isCommitFailed ? State.FAILED : State.UPLOADED);
+                    UploadQueue.this.notifyAll();
+                }
+            }
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (isCancelled()) {
+                throw new InterruptedIOException("cancelled");
+            }
+        }
+    }
+
+    private final TreeMap<Long, Item> itemMap = new TreeMap<>();
+    private final Map<State, TreeMap<Long, Item>> stateMap = new EnumMap<>(State.class);
+    private final LinkedList<Item> pendingList = new LinkedList<>();
+    private final List<Item> uploadingList = new ArrayList<>();
+    private long lastId = 0;
+    private boolean isClosed = false;
+    private Listener listener;
+
+    /**
+     * Constructor
+     *
+     * @param photoList Files in the order they are uploaded
+     */
+    public UploadQueue(List<PhotoInformation> photoList) {
+        for (State state : State.values()) {
+            stateMap.put(state, new TreeMap<Long, Item>());
+        }
+        for (PhotoInformation photoInformation : photoList) {
+            Item item = new Item(++lastId, photoInformation);
+            itemMap.put(item.id, item);
+            stateMap.get(State.PENDING).put(item.id, item);
+            pendingList.add(item);
+        }
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Take the first pending item for the calling thread. When nothing is pending, wait while other
+     * items are uploading, since a failed one may be retried.
+     *
+     * @return Item, or null if the queue is finished
+     * @throws InterruptedException Interrupted while waiting
+     */
+    public synchronized Item take() throws InterruptedException {
+        while (!isClosed && pendingList.isEmpty() && !uploadingList.isEmpty()) {
+            wait();
+        }
+        if (isClosed || pendingList.isEmpty()) {
+            close();
+            return null;
+        }
+        Item item = pendingList.removeFirst();
+        setState(item, State.UPLOADING);
+        item.thread = Thread.currentThread();
+        uploadingList.add(item);
+        notifyAll();
+        return item;
+    }
+
+    /**
+     * Finish the item taken by the calling thread
+     *
+     * @param item Item
+     * @param isUploaded true if transferred to every destination. The item is UPLOADED once the
+     *                   batch commits counted by Item.addPendingCommit() have stored it.
+     */
+    public synchronized void finish(Item item, boolean isUploaded) {
+        uploadingList.remove(item);
+        item.thread = null;
+        if (item.state == State.CANCELLED) {
+            // Only the item was cancelled, and the worker goes on
+            Thread.interrupted();
+        } else if (!isUploaded || item.isCommitFailed) {
+            setState(item, State.FAILED);
+        } else {
+            setState(item, item.pendingCommitCount > 0 ? State.COMMITTING : State.UPLOADED);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Move pending items to the front, keeping the order of the IDs given
+     *
+     * @param idList Item IDs
+     * @return Number of items moved
+     */
+    public synchronized int moveToFront(List<Long> idList) {
+        List<Item> movedList = new ArrayList<>();
+        for (Long id : idList) {
+            Item item = itemMap.get(id);
+            if (item != null && item.state == State.PENDING && !movedList.contains(item)) {
+                movedList.add(item);
+            }
+        }
+        pendingList.removeAll(movedList);
+        pendingList.addAll(0, movedList);
+        notifyAll();
+        return movedList.size();
+    }
+
+    /**
+     * Cancel pending and uploading items. An uploading item stops at the next read of its file.
+     *
+     * @param idList Item IDs
+     * @return Number of items cancelled
+     */
+    public int cancel(Collection<Long> idList) {
+        // Cancelled item and whether it was pending
+        Map<Item, Boolean> cancelledMap = new LinkedHashMap<>();
+        Listener cancelledListener;
+        synchronized (this) {
+            for (Long id : idList) {
+                Item item = itemMap.get(id);
+                if (item == null || (item.state != State.PENDING && item.state != State.UPLOADING)) {
+                    continue;
+                }
+                boolean wasPending = item.state == State.PENDING;
+                if (wasPending) {
+                    pendingList.remove(item);
+                } else if (item.thread != null) {
+                    item.thread.interrupt();
+                }
+                setState(item, State.CANCELLED);
+                cancelledMap.put(item, wasPending);
+            }
+            cancelledListener = listener;
+            notifyAll();
+        }
+
+        if (cancelledListener != null) {
+            for (Map.Entry<Item, Boolean> entry : cancelledMap.entrySet()) {
+                cancelledListener.onCancelled(entry.getKey(), entry.getValue());
+            }
+        }
+        return cancelledMap.size();
+    }
+
+    /**
+     * Add failed items to the end of the queue
+     *
+     * @param idList Item IDs, or null for all failed items
+     * @return Number of items added, which is 0 once the queue is finished
+     */
+    public synchronized int retry(Collection<Long> idList) {
+        if (isClosed) {
+            return 0;
+        }
+        Collection<Long> targetList = idList;
+        if (targetList == null) {
+            targetList = new ArrayList<>(stateMap.get(State.FAILED).keySet());
+        }
+        int count = 0;
+        for (Long id : targetList) {
+            Item item = itemMap.get(id);
+            if (item == null || item.state != State.FAILED) {
+                continue;
+            }
+            if (listener != null) {
+                listener.onRetried(item);
+            }
+            item.isCommitFailed = false;
+            setState(item, State.PENDING);
+            pendingList.add(item);
+            count++;
+        }
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * Get a page of the items in the order of the IDs
+     *
+     * @param state State of the items, or null for all items
+     * @param afterId Last ID of the previous page, or 0 for the first page
+     * @param limit Maximum number of items, up to MAX_PAGE_SIZE
+     * @return Items
+     */
+    public synchronized List<Item> list(State state, long afterId, int limit) {
+        TreeMap<Long, Item> map = state == null ? itemMap : stateMap.get(state);
+        int pageSize = Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+        List<Item> itemList = new ArrayList<>(pageSize);
+        Iterator<Item> iterator = map.tailMap(afterId, false).values().iterator();
+        while (itemList.size() < pageSize && iterator.hasNext()) {
+            itemList.add(iterator.next());
+        }
+        return itemList;
+    }
+
+    /**
+     * Get the number of items in a state
+     *
+     * @param state State, or null for all items
+     * @return Number of items
+     */
+    public synchronized int getCount(State state) {
+        return state == null ? itemMap.size() : stateMap.get(state).size();
+    }
+
+    public synchronized boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * Finish the queue. The workers take no more items and the stages working ahead stop.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Get the first uploading or pending file the caller has not handled, in the order of the uploads
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized File next(Set<String> handledPathSet) throws InterruptedException {
+        while (!isClosed) {
+            for (Item item : uploadingList) {
+                File file = new File(item.photoInformation.getPath());
+                if (!handledPathSet.contains(file.getAbsolutePath())) {
+                    return file;
+                }
+            }
+            for (Item item : pendingList) {
+                File file = new File(item.photoInformation.getPath());
+                if (!handledPathSet.contains(file.getAbsolutePath())) {
+                    return file;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private void setState(Item item, State state) {
+        stateMap.get(item.state).remove(item.id);
+        item.state = state;
+        stateMap.get(state).put(item.id, item);
+    }
+}
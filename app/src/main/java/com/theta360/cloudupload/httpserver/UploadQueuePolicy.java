@@ -0,0 +1,199 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import com.theta360.cloudupload.upload.PhotoFileStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Order in which the photos of an upload session are uploaded.
+ * The photo list is ordered once when the session starts, and the workers take the photos in that order.
+ */
+public enum UploadQueuePolicy {
+    /**
+     * Order in which the photos were found
+     */
+    FIFO("fifo") {
+        @Override
+        public List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes) {
+            return new ArrayList<>(photoList);
+        }
+    },
+    /**
+     * Latest shooting date first
+     */
+    NEWEST_FIRST("newest") {
+        @Override
+        public List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes) {
+            return sortNewestFirst(photoList);
+        }
+    },
+    /**
+     * Smallest file first, to upload the most files in a short session
+     */
+    SMALLEST_FIRST("smallest") {
+        @Override
+        public List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes) {
+            List<SortEntry<Long>> entryList = new ArrayList<>(photoList.size());
+            for (PhotoInformation photoInformation : photoList) {
+                entryList.add(new SortEntry<>(photoInformation, getSize(photoInformation)));
+            }
+            Collections.sort(entryList);
+            return getPhotoList(entryList);
+        }
+    },
+    /**
+     * Photos specified by intent first, then the other photos in the order found
+     */
+    SPECIFIED_FIRST("specified") {
+        @Override
+        public List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes) {
+            List<PhotoInformation> orderedList = new ArrayList<>();
+            List<PhotoInformation> otherList = new ArrayList<>();
+            for (PhotoInformation photoInformation : photoList) {
+                if (specifiedPathSet.contains(photoInformation.getPath())) {
+                    orderedList.add(photoInformation);
+                } else {
+                    otherList.add(photoInformation);
+                }
+            }
+            orderedList.addAll(otherList);
+            return orderedList;
+        }
+    },
+    /**
+     * Latest shooting date first among the photos that fit in the bytes that can be uploaded by the deadline,
+     * then the photos that do not fit. A large video does not hold back the photos shot before it.
+     */
+    DEADLINE("deadline") {
+        @Override
+        public List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes) {
+            List<PhotoInformation> newestList = sortNewestFirst(photoList);
+            List<PhotoInformation> orderedList = new ArrayList<>();
+            List<PhotoInformation> lateList = new ArrayList<>();
+            long remainingBytes = deadlineBytes;
+            for (PhotoInformation photoInformation : newestList) {
+                long size = getSize(photoInformation);
+                if (size <= remainingBytes) {
+                    orderedList.add(photoInformation);
+                    remainingBytes -= size;
+                } else {
+                    lateList.add(photoInformation);
+                }
+            }
+            orderedList.addAll(lateList);
+            return orderedList;
+        }
+    };
+
+    private final String name;
+
+    UploadQueuePolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name stored in the settings
+     *
+     * @return Name such as "newest"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Order the photos to upload
+     *
+     * @param photoList Photos in the order found
+     * @param specifiedPathSet Paths of the photos specified by intent
+     * @param deadlineBytes Number of bytes expected to be uploaded by the deadline
+     * @return New list in upload order
+     */
+    public abstract List<PhotoInformation> order(List<PhotoInformation> photoList, Set<String> specifiedPathSet, long deadlineBytes);
+
+    /**
+     * Get the policy by the name stored in the settings
+     *
+     * @param name Name such as "newest"
+     * @return Policy, or FIFO if unknown
+     */
+    public static UploadQueuePolicy getPolicy(String name) {
+        for (UploadQueuePolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        return FIFO;
+    }
+
+    private static List<PhotoInformation> sortNewestFirst(List<PhotoInformation> photoList) {
+        List<SortEntry<String>> entryList = new ArrayList<>(photoList.size());
+        for (PhotoInformation photoInformation : photoList) {
+            entryList.add(new SortEntry<>(photoInformation, getCaptureDatetime(photoInformation)));
+        }
+        // The date time format "yyyy:MM:dd HH:mm:ss" sorts as text
+        Collections.sort(entryList, Collections.<SortEntry<String>>reverseOrder());
+        return getPhotoList(entryList);
+    }
+
+    private static <K extends Comparable<K>> List<PhotoInformation> getPhotoList(List<SortEntry<K>> entryList) {
+        List<PhotoInformation> photoList = new ArrayList<>(entryList.size());
+        for (SortEntry<K> entry : entryList) {
+            photoList.add(entry.photoInformation);
+        }
+        return photoList;
+    }
+
+    private static String getCaptureDatetime(PhotoInformation photoInformation) {
+        String datetime = photoInformation.getDatetime();
+        if (datetime == null || datetime.isEmpty()) {
+            // The date time of photos not uploaded before is parsed when uploaded
+            datetime = PhotoFileStream.getModifiedDatetime(new File(photoInformation.getPath()));
+        }
+        return datetime;
+    }
+
+    private static long getSize(PhotoInformation photoInformation) {
+        if (photoInformation.getSize() > 0) {
+            return photoInformation.getSize();
+        }
+        return new File(photoInformation.getPath()).length();
+    }
+
+    /**
+     * Photo with its sort key. The key may be read from the file, so it is read once for each photo
+     * instead of in every comparison.
+     */
+    private static class SortEntry<K extends Comparable<K>> implements Comparable<SortEntry<K>> {
+        private final PhotoInformation photoInformation;
+        private final K key;
+
+        SortEntry(PhotoInformation photoInformation, K key) {
+            this.photoInformation = photoInformation;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(SortEntry<K> other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
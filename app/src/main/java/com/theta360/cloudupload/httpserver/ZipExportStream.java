@@ -0,0 +1,320 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * ZIP archive of files in STORE mode, produced while it is read.
+ * The CRC and sizes follow each file in a data descriptor, so nothing is written to storage,
+ * and only the central directory (a few dozen bytes per file) is held until the end.
+ * ZIP64 records are used for files or archives of 4 GB or more.
+ */
+public class ZipExportStream extends InputStream {
+    private static final long ZIP64_LIMIT = 0xffffffffL;
+    private static final int ZIP64_COUNT_LIMIT = 0xffff;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // Data descriptor, and names in UTF-8
+    private static final int FLAGS = 0x0808;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private final Iterator<Map.Entry<String, File>> fileIterator;
+    private final int bufferSize;
+    private final long zip64Limit;
+    private final List<Entry> entryList = new ArrayList<>();
+    private final byte[] singleByte = new byte[1];
+    private final CRC32 crc = new CRC32();
+
+    private InputStream current;
+    private InputStream pendingData;
+    private Entry pendingEntry;
+    private Entry dataEntry;
+    private long offset;
+    private boolean isFinished;
+    private boolean isClosed;
+
+    /**
+     * Constructor
+     *
+     * @param fileMap Files by the name in the archive, in the order they are stored
+     * @param bufferSize Size of the buffer to read each file
+     */
+    public ZipExportStream(Map<String, File> fileMap, int bufferSize) {
+        this(fileMap, bufferSize, ZIP64_LIMIT);
+    }
+
+    ZipExportStream(Map<String, File> fileMap, int bufferSize, long zip64Limit) {
+        this.fileIterator = fileMap.entrySet().iterator();
+        this.bufferSize = bufferSize;
+        this.zip64Limit = zip64Limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int length = read(singleByte, 0, 1);
+        return length == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (current == null && !startNext()) {
+                return -1;
+            }
+            int length = current.read(b, off, len);
+            if (length > 0) {
+                if (dataEntry != null) {
+                    crc.update(b, off, length);
+                    dataEntry.size += length;
+                }
+                offset += length;
+                return length;
+            }
+            current.close();
+            current = null;
+            if (pendingData != null) {
+                // The local header has been sent
+                current = pendingData;
+                dataEntry = pendingEntry;
+                pendingData = null;
+                pendingEntry = null;
+                crc.reset();
+            } else if (dataEntry != null) {
+                current = new ByteArrayInputStream(finishEntry(dataEntry));
+                dataEntry = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        isClosed = true;
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (pendingData != null) {
+            pendingData.close();
+            pendingData = null;
+        }
+    }
+
+    /**
+     * Start the next file, or the central directory after the last file
+     *
+     * @return false at the end of the archive
+     */
+    private boolean startNext() throws IOException {
+        if (fileIterator.hasNext()) {
+            Map.Entry<String, File> fileEntry = fileIterator.next();
+            File file = fileEntry.getValue();
+            Entry entry = new Entry(fileEntry.getKey(), getDosTime(file.lastModified()), offset,
+                    file.length() >= zip64Limit);
+            pendingData = new BufferedInputStream(new FileInputStream(file), bufferSize);
+            pendingEntry = entry;
+            current = new ByteArrayInputStream(createLocalHeader(entry));
+            return true;
+        }
+        if (isFinished) {
+            return false;
+        }
+        isFinished = true;
+        current = new ByteArrayInputStream(createCentralDirectory());
+        return true;
+    }
+
+    private byte[] createLocalHeader(Entry entry) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeInt(os, 0x04034b50);
+        writeShort(os, entry.isZip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(os, FLAGS);
+        writeShort(os, 0);
+        writeInt(os, entry.dosTime);
+        // The CRC and sizes are in the data descriptor
+        writeInt(os, 0);
+        writeInt(os, entry.isZip64 ? ZIP64_LIMIT : 0);
+        writeInt(os, entry.isZip64 ? ZIP64_LIMIT : 0);
+        writeShort(os, entry.name.length);
+        writeShort(os, entry.isZip64 ? 20 : 0);
+        os.write(entry.name, 0, entry.name.length);
+        if (entry.isZip64) {
+            writeShort(os, ZIP64_EXTRA_ID);
+            writeShort(os, 16);
+            writeLong(os, 0);
+            writeLong(os, 0);
+        }
+        return os.toByteArray();
+    }
+
+    private byte[] finishEntry(Entry entry) throws IOException {
+        if (!entry.isZip64 && entry.size >= zip64Limit) {
+            throw new IOException("File grew to 4 GB while it was read: " + new String(entry.name, StandardCharsets.UTF_8));
+        }
+        entry.crc = crc.getValue();
+        entryList.add(entry);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeInt(os, 0x08074b50);
+        writeInt(os, entry.crc);
+        if (entry.isZip64) {
+            writeLong(os, entry.size);
+            writeLong(os, entry.size);
+        } else {
+            writeInt(os, entry.size);
+            writeInt(os, entry.size);
+        }
+        return os.toByteArray();
+    }
+
+    private byte[] createCentralDirectory() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long directoryOffset = offset;
+        for (Entry entry : entryList) {
+            boolean isLargeSize = entry.size >= zip64Limit;
+            boolean isLargeOffset = entry.offset >= zip64Limit;
+            int extraLength = (isLargeSize ? 16 : 0) + (isLargeOffset ? 8 : 0);
+            writeInt(os, 0x02014b50);
+            writeShort(os, VERSION_ZIP64);
+            writeShort(os, entry.isZip64 || extraLength > 0 ? VERSION_ZIP64 : VERSION);
+            writeShort(os, FLAGS);
+            writeShort(os, 0);
+            writeInt(os, entry.dosTime);
+            writeInt(os, entry.crc);
+            writeInt(os, isLargeSize ? ZIP64_LIMIT : entry.size);
+            writeInt(os, isLargeSize ? ZIP64_LIMIT : entry.size);
+            writeShort(os, entry.name.length);
+            writeShort(os, extraLength > 0 ? extraLength + 4 : 0);
+            // Comment, disk, internal and external attributes
+            writeShort(os, 0);
+            writeShort(os, 0);
+            writeShort(os, 0);
+            writeInt(os, 0);
+            writeInt(os, isLargeOffset ? ZIP64_LIMIT : entry.offset);
+            os.write(entry.name, 0, entry.name.length);
+            if (extraLength > 0) {
+                writeShort(os, ZIP64_EXTRA_ID);
+                writeShort(os, extraLength);
+                if (isLargeSize) {
+                    writeLong(os, entry.size);
+                    writeLong(os, entry.size);
+                }
+                if (isLargeOffset) {
+                    writeLong(os, entry.offset);
+                }
+            }
+        }
+        long directorySize = os.size();
+        int count = entryList.size();
+
+        if (count >= ZIP64_COUNT_LIMIT || directoryOffset >= zip64Limit || directorySize >= zip64Limit) {
+            long endOffset = directoryOffset + directorySize;
+            writeInt(os, 0x06064b50);
+            writeLong(os, 44);
+            writeShort(os, VERSION_ZIP64);
+            writeShort(os, VERSION_ZIP64);
+            writeInt(os, 0);
+            writeInt(os, 0);
+            writeLong(os, count);
+            writeLong(os, count);
+            writeLong(os, directorySize);
+            writeLong(os, directoryOffset);
+            // Locator
+            writeInt(os, 0x07064b50);
+            writeInt(os, 0);
+            writeLong(os, endOffset);
+            writeInt(os, 1);
+        }
+        writeInt(os, 0x06054b50);
+        writeShort(os, 0);
+        writeShort(os, 0);
+        writeShort(os, Math.min(count, ZIP64_COUNT_LIMIT));
+        writeShort(os, Math.min(count, ZIP64_COUNT_LIMIT));
+        writeInt(os, Math.min(directorySize, ZIP64_LIMIT));
+        writeInt(os, directoryOffset >= zip64Limit ? ZIP64_LIMIT : directoryOffset);
+        writeShort(os, 0);
+        return os.toByteArray();
+    }
+
+    /**
+     * @return MS-DOS time in the low 16 bits and date in the high 16 bits, in local time
+     */
+    private static long getDosTime(long timeMSec) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMSec);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) / 2);
+    }
+
+    private static void writeShort(ByteArrayOutputStream os, int value) {
+        os.write(value & 0xff);
+        os.write((value >> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, long value) {
+        writeShort(os, (int) (value & 0xffff));
+        writeShort(os, (int) ((value >> 16) & 0xffff));
+    }
+
+    private static void writeLong(ByteArrayOutputStream os, long value) {
+        writeInt(os, value & ZIP64_LIMIT);
+        writeInt(os, value >>> 32);
+    }
+
+    /**
+     * File in the archive
+     */
+    private static class Entry {
+        private final byte[] name;
+        private final long dosTime;
+        private final long offset;
+        private final boolean isZip64;
+        private long crc;
+        private long size;
+
+        private Entry(String name, long dosTime, long offset, boolean isZip64) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.isZip64 = isZip64;
+        }
+    }
+}
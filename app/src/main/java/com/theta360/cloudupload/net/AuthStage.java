@@ -0,0 +1,55 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Authentication stage of an upload provider
+ *
+ * Each step runs asynchronously and reports its result to the UploadPhotoApiCallback.
+ */
+public interface AuthStage {
+    /**
+     * Start getting the user code and the verification URL
+     */
+    void startRequestCode();
+
+    /**
+     * Start getting the access token and the refresh token
+     */
+    void startRequestToken();
+
+    /**
+     * Start getting the access token from the refresh token
+     */
+    void startRefreshToken();
+
+    /**
+     * Start getting the user information
+     */
+    void startRequestUserinfo();
+
+    /**
+     * Set the values returned by a step
+     *
+     * @param json Result of the step
+     */
+    void setApiResult(JSONObject json) throws JSONException;
+}
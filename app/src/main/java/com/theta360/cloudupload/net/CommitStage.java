@@ -0,0 +1,40 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Commit stage of an upload provider
+ *
+ * Turns transferred data into stored items. Providers that store the file in the
+ * transport stage do not have this stage.
+ */
+public interface CommitStage {
+    /**
+     * Commit transferred files on the calling thread
+     *
+     * @param uploadTokenList Upload tokens returned by TransportStage.transfer().
+     *                        Contains one token unless the provider supports batch commit.
+     * @return Upload tokens of the files stored. A batch may be stored in part, and the
+     *         files left out are uploaded again.
+     * @throws Exception The message is the HTTP response code if the server rejected the request
+     */
+    Set<String> commit(List<String> uploadTokenList) throws Exception;
+}
@@ -18,15 +18,20 @@ package com.theta360.cloudupload.net;
 
 import android.content.Context;
 import android.util.Log;
+import com.theta360.cloudupload.httpserver.PhotoInformation;
 import org.json.JSONException;
 import org.json.JSONObject;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
 import java.text.MessageFormat;
-import java.util.Properties;
 
 /**
  * Google Photos authentication class
  */
 public class GoogleDataApi extends UploadPhotoApi {
+    public static final String API_TYPE = "google_photo";
+
     private final String TAG = "GoogleDataApi";
     private final String REDIRECT_URL = "verification_url";
     private final String DEVICE_CODE = "device_code";
@@ -36,6 +41,9 @@ public class GoogleDataApi extends UploadPhotoApi {
     private final String ACCESS_TOKEN = "access_token";
     private final String REFRESH_TOKEN = "refresh_token";
 
+    private final ProviderCapabilities capabilities = new ProviderCapabilities(1, 1, false, false);
+    private final TransportStage transportStage = new PhotoTransport();
+
     public GoogleDataApi(Context context) {
         super(context);
         try {
@@ -48,7 +56,7 @@ public class GoogleDataApi extends UploadPhotoApi {
 
     @Override
     public String getApiType() {
-        return UploadPhotoApiFactory.GOOGLE_PHOTO;
+        return API_TYPE;
     }
 
     @Override
@@ -78,51 +86,66 @@ public class GoogleDataApi extends UploadPhotoApi {
 
     @Override
     public void startRequestCode() {
-        cancelRequestCode();
-        requestCodeTask = new RequestCodeTask();
         String url = getProperty("GOOGLE_AUTHORIZATION_URL");
         String urlParams = "client_id=" + getClientId() + "&scope=" +
                 getProperty("GOOGLE_USERINFO_SCOPE") + " " + getProperty("GOOGLE_PHOTO_SCOPE");
-        requestCodeTask.execute(url, urlParams);
+        startAuthRequest(AuthStep.REQUEST_CODE, url, urlParams);
     }
 
     @Override
     public void startRequestToken() {
-        cancelRequestToken();
-        requestTokenTask = new RequestTokenTask();
         String url = getProperty("GOOGLE_GET_TOKEN_URL");
         String urlParams = "client_id=" + getClientId() +
                 "&client_secret=" + getClientSecret() +
                 "&grant_type=http://oauth.net/grant_type/device/1.0" +
                 "&code=" + getDeviceCode();
-        requestTokenTask.execute(url, urlParams);
+        startAuthRequest(AuthStep.REQUEST_TOKEN, url, urlParams);
     }
 
     @Override
     public void startRefreshToken() {
-        cancelRefreshToken();
-        refreshTokenTask = new RefreshTokenTask();
         String url = getProperty("GOOGLE_REFRESH_TOKEN_URL");
         String urlParams = "client_id=" + getClientId() +
                 "&client_secret=" + getClientSecret() +
                 "&grant_type=refresh_token" +
                 "&refresh_token=" + getRefreshToken();
-        refreshTokenTask.execute(url, urlParams);
+        startAuthRequest(AuthStep.REFRESH_TOKEN, url, urlParams);
     }
 
     @Override
     public void startRequestUserinfo() {
-        cancelRequestUserinfo();
-        requestUserinfoTask = new RequestUserinfoTask();
         String url = MessageFormat.format(getProperty("GOOGLE_USERINFO_URL"), getAccessToken());
-        requestUserinfoTask.execute(url);
+        startAuthRequest(AuthStep.REQUEST_USERINFO, url, null);
+    }
+
+    @Override
+    public ProviderCapabilities getCapabilities() {
+        return capabilities;
     }
 
     @Override
-    public void startUploadFile() {
-        cancelUploadFile();
-        uploadFileTask = new UploadFileTask();
-        String url = MessageFormat.format(getProperty("GOOGLE_UPLOAD_FILE_URL"), getAccessToken());
-        uploadFileTask.execute(url);
+    public TransportStage getTransportStage() {
+        return transportStage;
+    }
+
+    /**
+     * Post each file to the album feed. The file is stored when the request completes.
+     */
+    private class PhotoTransport implements TransportStage {
+        @Override
+        public void beginUploadSession() {
+        }
+
+        @Override
+        public void endUploadSession() {
+        }
+
+        @Override
+        public String transfer(PhotoInformation photoInformation, InputStream inputStream, long length,
+                               boolean isResumable) throws Exception {
+            URL url = new URL(MessageFormat.format(getProperty("GOOGLE_UPLOAD_FILE_URL"), getAccessToken()));
+            String contentType = photoInformation.isMovie() ? "video/mp4" : "image/jpeg";
+            return postFile(url, new File(photoInformation.getPath()).getName(), inputStream, length, contentType);
+        }
     }
 }
@@ -14,23 +14,22 @@
  * limitations under the License.
  */
 
+
 package com.theta360.cloudupload.net;
 
 import android.content.Context;
 
 /**
- * Upload photos, authentication API object generation class
+ * Google Photos provider
  */
-public class UploadPhotoApiFactory {
-
-    public static final String GOOGLE_PHOTO = "google_photo";
+public class GooglePhotoProvider implements UploadProvider {
+    @Override
+    public String getApiType() {
+        return GoogleDataApi.API_TYPE;
+    }
 
-    public static UploadPhotoApi createUploadPhotoApi(Context context, String type) {
-        switch (type) {
-            case GOOGLE_PHOTO:
-                return new GoogleDataApi(context);
-            default:
-                return null;
-        }
+    @Override
+    public UploadPhotoApi createUploadPhotoApi(Context context) {
+        return new GoogleDataApi(context);
     }
 }
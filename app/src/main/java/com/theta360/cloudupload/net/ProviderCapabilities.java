@@ -0,0 +1,90 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+/**
+ * Capabilities of an upload provider
+ *
+ * The upload engine uses these to choose how to upload to the provider.
+ */
+public class ProviderCapabilities {
+    private final int maxConcurrency;
+    private final int maxBatchSize;
+    private final boolean isResumable;
+    private final boolean isMultipart;
+
+    /**
+     * Constructor
+     *
+     * @param maxConcurrency Number of files that can be transferred in parallel
+     * @param maxBatchSize Number of files that can be committed at once. 1 if batch commit is not supported.
+     * @param isResumable true if an interrupted transfer can be resumed
+     * @param isMultipart true if a file can be transferred in several parts
+     */
+    public ProviderCapabilities(int maxConcurrency, int maxBatchSize, boolean isResumable, boolean isMultipart) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.isResumable = isResumable;
+        this.isMultipart = isMultipart;
+    }
+
+    /**
+     * Get the number of files that can be transferred in parallel
+     *
+     * @return Number of upload threads
+     */
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    /**
+     * Get the number of files that can be committed at once
+     *
+     * @return Number of files
+     */
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Check whether several files can be committed at once
+     *
+     * @return true if supported
+     */
+    public boolean isBatchCommit() {
+        return this.maxBatchSize > 1;
+    }
+
+    /**
+     * Check whether an interrupted transfer can be resumed
+     *
+     * @return true if supported
+     */
+    public boolean isResumable() {
+        return this.isResumable;
+    }
+
+    /**
+     * Check whether a file can be transferred in several parts
+     *
+     * @return true if supported
+     */
+    public boolean isMultipart() {
+        return this.isMultipart;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+import com.theta360.cloudupload.httpserver.PhotoInformation;
+import java.io.InputStream;
+
+/**
+ * Transport stage of an upload provider
+ *
+ * Sends the file data. If the provider has a commit stage, the returned upload token
+ * is passed to it, otherwise the file is stored when transfer() returns.
+ */
+public interface TransportStage {
+    /**
+     * Prepare for uploading files
+     */
+    void beginUploadSession();
+
+    /**
+     * Release the resources used for uploading files
+     */
+    void endUploadSession();
+
+    /**
+     * Send a file on the calling thread.
+     * May be called from several threads at once, up to ProviderCapabilities.getMaxConcurrency().
+     *
+     * @param photoInformation Upload photo
+     * @param inputStream File data
+     * @param length File size
+     * @param isResumable true to send a large file in segments that survive a dropped connection.
+     *                    The engine passes ProviderCapabilities.isResumable() for the provider.
+     * @return Upload token
+     * @throws Exception The message is the HTTP response code if the server rejected the file
+     */
+    String transfer(PhotoInformation photoInformation, InputStream inputStream, long length,
+                    boolean isResumable) throws Exception;
+}
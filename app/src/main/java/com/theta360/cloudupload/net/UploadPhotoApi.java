@@ -18,36 +18,43 @@ package com.theta360.cloudupload.net;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.util.Base64;
 import android.util.Log;
 import com.theta360.cloudupload.httpserver.AndroidWebServer;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.theta360.cloudupload.upload.BufferPool;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.security.spec.AlgorithmParameterSpec;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Properties;
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Upload photos, authentication class.
+ *
+ * A provider is made of the authentication stage implemented by this class, a transport
+ * stage and an optional commit stage.
  */
-public abstract class UploadPhotoApi implements Cloneable {
+public abstract class UploadPhotoApi implements AuthStage, Cloneable {
     private final String TAG = "UploadPhotoApi";
+    private static final int REQUEST_TIMEOUT_MSEC = 10000;
+
+    /**
+     * Step of the authentication
+     */
+    protected enum AuthStep {
+        REQUEST_CODE,
+        REQUEST_TOKEN,
+        REFRESH_TOKEN,
+        REQUEST_USERINFO
+    }
 
-    protected RequestCodeTask requestCodeTask;
-    protected RequestTokenTask requestTokenTask;
-    protected RefreshTokenTask refreshTokenTask;
-    protected RequestUserinfoTask requestUserinfoTask;
-    protected UploadFileTask uploadFileTask;
+    private final Map<AuthStep, AsyncTask<?, ?, ?>> authTaskMap = new EnumMap<>(AuthStep.class);
 
     protected Properties props;
 
@@ -62,8 +69,6 @@ public abstract class UploadPhotoApi implements Cloneable {
     private int interval;
     private String accessToken;
     private String refreshToken;
-    private String uploadData;
-    private String uploadDataName;
     private Context con;
 
     public UploadPhotoApi(Context context) {
@@ -78,9 +83,35 @@ public abstract class UploadPhotoApi implements Cloneable {
 
     public abstract String getApiType();
 
+    /**
+     * Get capabilities
+     *
+     * @return Capabilities of the provider
+     */
+    public abstract ProviderCapabilities getCapabilities();
+
+    /**
+     * Get transport stage
+     *
+     * @return Transport stage
+     */
+    public abstract TransportStage getTransportStage();
+
+    /**
+     * Get commit stage
+     *
+     * @return Commit stage, or null if the transport stage stores the file
+     */
+    public CommitStage getCommitStage() {
+        return null;
+    }
+
     public void setCallback(UploadPhotoApiCallback callback) {
         this.callback = callback;
     }
+    protected UploadPhotoApiCallback getCallback() {
+        return this.callback;
+    }
 
     public void setUserId(String userId) {
         this.userId = userId;
@@ -103,8 +134,6 @@ public abstract class UploadPhotoApi implements Cloneable {
         return this.clientSecret;
     }
 
-    public abstract void setApiResult(JSONObject json) throws JSONException;
-
     public void setRedirectUrl(String redirectUrl) {
         this.redirectUrl = redirectUrl;
     }
@@ -154,57 +183,20 @@ public abstract class UploadPhotoApi implements Cloneable {
         return this.refreshToken;
     }
 
-    public void setUploadData(String uploadData) {
-        this.uploadData = uploadData;
-    }
-
-    public void setUploadDataName(String uploadDataName) {
-        this.uploadDataName = uploadDataName;
-    }
-
-    public abstract void startRequestCode();
-
     public void cancelRequestCode() {
-        if (requestCodeTask != null) {
-            requestCodeTask.cancel(true);
-            requestCodeTask = null;
-        }
+        cancelAuthTask(AuthStep.REQUEST_CODE);
     }
 
-    public abstract void startRequestToken();
-
     public void cancelRequestToken() {
-        if (requestTokenTask != null) {
-            requestTokenTask.cancel(true);
-            requestTokenTask = null;
-        }
+        cancelAuthTask(AuthStep.REQUEST_TOKEN);
     }
 
-    public abstract void startRefreshToken();
-
     public void cancelRefreshToken() {
-        if (refreshTokenTask != null) {
-            refreshTokenTask.cancel(true);
-            refreshTokenTask = null;
-        }
+        cancelAuthTask(AuthStep.REFRESH_TOKEN);
     }
 
-    public abstract void startRequestUserinfo();
-
     public void cancelRequestUserinfo() {
-        if (requestUserinfoTask != null) {
-            requestUserinfoTask.cancel(true);
-            requestUserinfoTask = null;
-        }
-    }
-
-    public abstract void startUploadFile();
-
-    public void cancelUploadFile() {
-        if (uploadFileTask != null) {
-            uploadFileTask.cancel(true);
-            uploadFileTask = null;
-        }
+        cancelAuthTask(AuthStep.REQUEST_USERINFO);
     }
 
     public String getProperty(String key) {
@@ -218,397 +210,206 @@ public abstract class UploadPhotoApi implements Cloneable {
         }
     }
 
-    private class Result {
-        private String result;
-        private Exception exception;
-
-        public Result(String result) {
-            this.result = result;
-        }
-
-        public Result(Exception exception) {
-            this.exception = exception;
-        }
-
-        public String getResult() {
-            return result;
+    /**
+     * Run a step of the authentication, cancelling the previous run of the same step
+     *
+     * @param step Step
+     * @param task Task that reports the result with notifyAuthResult()
+     */
+    protected void startAuthTask(AuthStep step, AsyncTask<Void, ?, ?> task) {
+        synchronized (authTaskMap) {
+            cancelAuthTask(step);
+            authTaskMap.put(step, task);
         }
+        task.execute();
+    }
 
-        public Exception getException() {
-            return exception;
-        }
+    /**
+     * Run a step of the authentication as an HTTP request
+     *
+     * @param step Step
+     * @param url Request URL
+     * @param urlParams Form parameters to POST, or null to GET
+     */
+    protected void startAuthRequest(AuthStep step, String url, String urlParams) {
+        startAuthTask(step, new AuthRequestTask(step, url, urlParams));
     }
 
-    protected class RequestCodeTask extends AsyncTask<String, Void, Result> {
-        @Override
-        protected Result doInBackground(String... params) {
-            Result result = null;
-
-            if (!(isCancelled() || params == null || params.length <= 0)) {
-                try {
-                    URL url = new URL(params[0]);
-                    result = requestCode(url, params[1]);
-                } catch (Exception ex) {
-                    result = new Result(ex);
-                }
+    private void cancelAuthTask(AuthStep step) {
+        synchronized (authTaskMap) {
+            AsyncTask<?, ?, ?> task = authTaskMap.remove(step);
+            if (task != null) {
+                task.cancel(true);
             }
-
-            return result;
         }
+    }
 
-        @Override
-        protected void onPostExecute(Result result) {
-            if (callback != null) {
-                if (result.getException() != null) {
-                    callback.failedRequestCode(result.getException().getMessage());
-                } else if (result.getResult() != null) {
-                    callback.completedRequestCode(result.getResult());
-                }
-            }
+    /**
+     * Report the result of a step to the callback
+     *
+     * @param step Step
+     * @param result Result string if succeeded
+     * @param error Error message if failed, or null if succeeded
+     */
+    protected void notifyAuthResult(AuthStep step, String result, String error) {
+        if (callback == null) {
+            return;
         }
-
-        private Result requestCode(URL url, String urlParams) {
-            HttpsURLConnection connection = null;
-            Result result;
-            byte[] postData = urlParams.getBytes(StandardCharsets.UTF_8);
-
-            try {
-                connection = (HttpsURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setReadTimeout(10000);
-                connection.setConnectTimeout(10000);
-                connection.addRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                connection.setDoOutput(true);
-                connection.setDoInput(true);
-                try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                    wr.write(postData);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+        switch (step) {
+            case REQUEST_CODE:
+                if (error != null) {
+                    callback.failedRequestCode(error);
+                } else {
+                    callback.completedRequestCode(result);
                 }
-                connection.connect();
-                int responseCode = connection.getResponseCode();
-                String response;
-                if (responseCode == HttpsURLConnection.HTTP_OK) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        response = sb.toString();
-                    }
-                    result = new Result(response);
+                break;
+            case REQUEST_TOKEN:
+                if (error != null) {
+                    callback.failedRequestToken(error);
                 } else {
-                    result = new Result(new Exception(String.valueOf(responseCode)));
+                    callback.completedRequestToken(result);
                 }
-
-            } catch (Exception ex) {
-                result = new Result(ex);
-
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+                break;
+            case REFRESH_TOKEN:
+                if (error != null) {
+                    callback.failedRefreshToken(error);
+                } else {
+                    callback.completedRefreshToken(result);
                 }
-            }
-
-            return result;
+                break;
+            case REQUEST_USERINFO:
+                if (error != null) {
+                    callback.failedRequestUserinfo(error);
+                } else {
+                    callback.completedRequestUserinfo(result);
+                }
+                break;
         }
     }
 
-    protected class RequestTokenTask extends AsyncTask<String, Void, Result> {
-        @Override
-        protected Result doInBackground(String... params) {
-            Result result = null;
-
-            if (!(isCancelled() || params == null || params.length <= 0)) {
-                try {
-                    URL url = new URL(params[0]);
-                    result = requestToken(url, params[1]);
-                } catch (Exception ex) {
-                    result = new Result(ex);
-                }
-            }
+    /**
+     * HTTP request of an authentication step
+     */
+    private class AuthRequestTask extends AsyncTask<Void, Void, Void> {
+        private final AuthStep step;
+        private final String url;
+        private final String urlParams;
+        private String result;
+        private String error;
 
-            return result;
+        AuthRequestTask(AuthStep step, String url, String urlParams) {
+            this.step = step;
+            this.url = url;
+            this.urlParams = urlParams;
         }
 
         @Override
-        protected void onPostExecute(Result result) {
-            if (callback != null) {
-                if (result.getException() != null) {
-                    callback.failedRequestToken(result.getException().getMessage());
-                } else if (result.getResult() != null) {
-                    callback.completedRequestToken(result.getResult());
-                }
-            }
-        }
-
-        private Result requestToken(URL url, String urlParams) {
-            HttpsURLConnection connection = null;
-            Result result;
-            byte[] postData = urlParams.getBytes(StandardCharsets.UTF_8);
-
+        protected Void doInBackground(Void... params) {
             try {
-                connection = (HttpsURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setReadTimeout(10000);
-                connection.setConnectTimeout(10000);
-                connection.addRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                connection.setDoOutput(true);
-                connection.setDoInput(true);
-                try(DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                    wr.write(postData);
-                }
-                connection.connect();
-                int responseCode = connection.getResponseCode();
-                String response;
-                if (responseCode == HttpsURLConnection.HTTP_OK) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        response = sb.toString();
-                    }
-                    result = new Result(response);
-                } else {
-                    result = new Result(new Exception(String.valueOf(responseCode)));
-                }
-
+                result = request();
             } catch (Exception ex) {
-                result = new Result(ex);
-
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
-            }
-
-            return result;
-        }
-    }
-
-    protected class RefreshTokenTask extends AsyncTask<String, Void, Result> {
-        @Override
-        protected Result doInBackground(String... params) {
-            Result result = null;
-
-            if (!isCancelled() && params != null && params.length > 0) {
-                try {
-                    Properties props = new Properties();
-                    props.load(con.getAssets().open("api.properties"));
-                    URL url = new URL(params[0]);
-                    result = refreshToken(url, params[1]);
-                } catch (Exception ex) {
-                    result = new Result(ex);
-                }
+                error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
             }
-
-            return result;
+            return null;
         }
 
         @Override
-        protected void onPostExecute(Result result) {
-            if (callback != null) {
-                if (result.getException() != null) {
-                    callback.failedRefreshToken(result.getException().getMessage());
-                } else if (result.getResult() != null) {
-                    callback.completedRefreshToken(result.getResult());
-                }
-            }
+        protected void onPostExecute(Void aVoid) {
+            notifyAuthResult(step, result, error);
         }
 
-        private Result refreshToken(URL url, String urlParams) {
+        private String request() throws Exception {
             HttpsURLConnection connection = null;
-            Result result;
-            byte[] postData = urlParams.getBytes(StandardCharsets.UTF_8);
 
             try {
-                connection = (HttpsURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setReadTimeout(10000);
-                connection.setConnectTimeout(10000);
-                connection.addRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                connection.setDoOutput(true);
+                connection = (HttpsURLConnection) new URL(url).openConnection();
+                connection.setReadTimeout(REQUEST_TIMEOUT_MSEC);
+                connection.setConnectTimeout(REQUEST_TIMEOUT_MSEC);
                 connection.setDoInput(true);
-                try(DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                    wr.write(postData);
-                }
-                connection.connect();
-                int responseCode = connection.getResponseCode();
-                String response;
-                if (responseCode == HttpsURLConnection.HTTP_OK) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        response = sb.toString();
+                if (urlParams != null) {
+                    connection.setRequestMethod("POST");
+                    connection.addRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    connection.setDoOutput(true);
+                    try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
+                        wr.write(urlParams.getBytes(StandardCharsets.UTF_8));
                     }
-                    result = new Result(response);
                 } else {
-                    result = new Result(new Exception(String.valueOf(responseCode)));
+                    connection.setRequestMethod("GET");
                 }
-
-            } catch (Exception ex) {
-                result = new Result(ex);
-
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
-            }
-
-            return result;
-        }
-    }
-
-    protected class RequestUserinfoTask extends AsyncTask<String, Void, Result> {
-        @Override
-        protected Result doInBackground(String... params) {
-            Result result = null;
-
-            if (!(isCancelled() || params == null || params.length <= 0)) {
-                try {
-                    URL url = new URL(params[0]);
-                    result = requestUserinfo(url);
-                } catch (Exception ex) {
-                    result = new Result(ex);
-                }
-            }
-
-            return result;
-        }
-
-        @Override
-        protected void onPostExecute(Result result) {
-            if (callback != null) {
-                if (result.getException() != null) {
-                    callback.failedRequestUserinfo(result.getException().getMessage());
-                } else if (result.getResult() != null) {
-                    callback.completedRequestUserinfo(result.getResult());
-                }
-            }
-        }
-
-        private Result requestUserinfo(URL url) {
-            HttpsURLConnection connection = null;
-            Result result;
-
-            try {
-                connection = (HttpsURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.setReadTimeout(10000);
-                connection.setConnectTimeout(10000);
                 connection.connect();
                 int responseCode = connection.getResponseCode();
-                String response;
-                if (responseCode == HttpsURLConnection.HTTP_OK) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        response = sb.toString();
+                if (responseCode != HttpsURLConnection.HTTP_OK) {
+                    throw new Exception(String.valueOf(responseCode));
+                }
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                    StringBuilder sb = new StringBuilder();
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        sb.append(line);
                     }
-                    result = new Result(response);
-                } else {
-                    result = new Result(new Exception(String.valueOf(responseCode)));
+                    return sb.toString();
                 }
-
-            } catch (Exception ex) {
-                result = new Result(ex);
-
             } finally {
                 if (connection != null) {
                     connection.disconnect();
                 }
             }
-
-            return result;
         }
     }
 
-    protected class UploadFileTask extends AsyncTask<String, Void, Result> {
-        @Override
-        protected Result doInBackground(String... params) {
-            Result result = null;
-
-            if (!(isCancelled() || params == null || params.length <= 0)) {
-                try {
-                    Properties props = new Properties();
-                    props.load(con.getAssets().open("api.properties"));
-                    URL url = new URL(params[0]);
-                    result = uploadFile(url);
-                } catch (Exception ex) {
-                    result = new Result(ex);
-                }
-            }
-
-            return result;
-        }
+    /**
+     * Send a file as the body of a POST request
+     *
+     * @param url Upload URL
+     * @param name File name
+     * @param inputStream File data
+     * @param length File size
+     * @param contentType Content type of the file
+     * @return Response string
+     * @throws Exception The message is the HTTP response code if the server rejected the file
+     */
+    protected String postFile(URL url, String name, InputStream inputStream, long length, String contentType) throws Exception {
+        HttpsURLConnection connection = null;
 
-        @Override
-        protected void onPostExecute(Result result) {
-            if (callback != null) {
-                if (result.getException() != null) {
-                    callback.failedUploadFile(result.getException().getMessage());
-                } else if (result.getResult() != null) {
-                    callback.completedUploadFile(result.getResult());
+        try {
+            connection = (HttpsURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setReadTimeout(AndroidWebServer.UPLOAD_TIMEOUT_MSEC);
+            connection.setConnectTimeout(AndroidWebServer.UPLOAD_TIMEOUT_MSEC);
+            connection.addRequestProperty("Content-Type", contentType);
+            connection.addRequestProperty("Slug", name);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setDoOutput(true);
+            connection.setDoInput(true);
+            BufferPool bufferPool = BufferPool.getSharedPool();
+            byte[] buffer = bufferPool.acquire(BufferPool.COPY_BUFFER_SIZE);
+            try (OutputStream os = connection.getOutputStream()) {
+                int readLength;
+                while ((readLength = inputStream.read(buffer)) != -1) {
+                    os.write(buffer, 0, readLength);
                 }
+            } finally {
+                bufferPool.release(buffer);
             }
-        }
-
-        private Result uploadFile(URL url) {
-            HttpsURLConnection connection = null;
-            Result result;
-
-            byte[] byteArray = Base64.decode(uploadData, Base64.DEFAULT);
-
-            try {
-                connection = (HttpsURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setReadTimeout(AndroidWebServer.UPLOAD_TIMEOUT_MSEC);
-                connection.setConnectTimeout(AndroidWebServer.UPLOAD_TIMEOUT_MSEC);
-                connection.addRequestProperty("Content-Type", "image/jpeg");
-                connection.addRequestProperty("Slug", uploadDataName);
-                connection.setDoOutput(true);
-                connection.setDoInput(true);
-                try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                    wr.write(byteArray);
-                }
-                connection.connect();
-                int responseCode = connection.getResponseCode();
-                String response;
-                if (responseCode == HttpsURLConnection.HTTP_OK || responseCode == HttpsURLConnection.HTTP_CREATED) {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                        }
-                        response = sb.toString();
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpsURLConnection.HTTP_OK || responseCode == HttpsURLConnection.HTTP_CREATED) {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                    StringBuilder sb = new StringBuilder();
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        sb.append(line);
                     }
-                    result = new Result(response);
-                } else {
-                    result = new Result(new Exception(String.valueOf(responseCode)));
-                }
-
-            } catch (SocketTimeoutException ex) {
-                result = new Result(new Exception(String.valueOf(HttpsURLConnection.HTTP_CLIENT_TIMEOUT)));
-            } catch (Exception ex) {
-                result = new Result(ex);
-
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+                    return sb.toString();
                 }
+            } else {
+                throw new Exception(String.valueOf(responseCode));
+            }
+        } catch (SocketTimeoutException ex) {
+            throw new Exception(String.valueOf(HttpsURLConnection.HTTP_CLIENT_TIMEOUT));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
             }
-
-            return result;
         }
     }
 }
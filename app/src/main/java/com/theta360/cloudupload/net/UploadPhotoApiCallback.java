@@ -67,16 +67,4 @@ public interface UploadPhotoApiCallback {
      * @param result Result string
      */
     void failedRequestUserinfo(String result);
-
-    /**
-     * Successful processing of file upload
-     * @param result Result string
-     */
-    void completedUploadFile(String result);
-
-    /**
-     * Failure handling of file upload
-     * @param result Result string
-     */
-    void failedUploadFile(String result);
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+import android.content.Context;
+
+/**
+ * Upload provider registered in UploadProviderRegistry
+ *
+ * Implementations are listed in META-INF/services/com.theta360.cloudupload.net.UploadProvider
+ * and must have a public constructor without arguments.
+ */
+public interface UploadProvider {
+    /**
+     * Get API type stored in the DB
+     *
+     * @return API type
+     */
+    String getApiType();
+
+    /**
+     * Create the API object of the provider
+     *
+     * @param context Context
+     * @return API object
+     */
+    UploadPhotoApi createUploadPhotoApi(Context context);
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.net;
+
+import android.content.Context;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of upload providers
+ *
+ * Providers are discovered with ServiceLoader, so adding a provider does not need
+ * changes to the upload engine.
+ */
+public class UploadProviderRegistry {
+    private static final String TAG = "UploadProviderRegistry";
+    private static final Map<String, UploadProvider> providerMap = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            for (UploadProvider provider : ServiceLoader.load(UploadProvider.class, UploadProvider.class.getClassLoader())) {
+                register(provider);
+            }
+        } catch (ServiceConfigurationError ex) {
+            Log.e(TAG, ex.getMessage());
+        }
+    }
+
+    private UploadProviderRegistry() {
+    }
+
+    /**
+     * Register a provider. A provider with the same API type is replaced.
+     *
+     * @param provider Upload provider
+     */
+    public static void register(UploadProvider provider) {
+        providerMap.put(provider.getApiType(), provider);
+    }
+
+    /**
+     * Get the API types of the registered providers
+     *
+     * @return API types
+     */
+    public static List<String> getApiTypeList() {
+        return new ArrayList<>(providerMap.keySet());
+    }
+
+    /**
+     * Create the API object of a provider
+     *
+     * @param context Context
+     * @param type API type
+     * @return API object, or null if the provider is not registered
+     */
+    public static UploadPhotoApi createUploadPhotoApi(Context context, String type) {
+        if (type == null) {
+            return null;
+        }
+        UploadProvider provider = providerMap.get(type);
+        if (provider == null) {
+            return null;
+        }
+        return provider.createUploadPhotoApi(context);
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.net;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Base64;
+import android.util.Log;
+import com.theta360.cloudupload.httpserver.AndroidWebServer;
+import com.theta360.cloudupload.httpserver.PhotoInformation;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * WebDAV (LAN NAS) upload class
+ *
+ * WebDAV has no device code flow. Getting a token checks that the base collection is
+ * accessible with the account in api.properties, and the access token is the Basic
+ * authorization header.
+ *
+ * If WEBDAV_RESUMABLE is set and the server accepts PUT with Content-Range, large files such as
+ * videos are sent in segments, and an upload retried after a failure continues where it stopped.
+ */
+public class WebDavApi extends UploadPhotoApi {
+    public static final String API_TYPE = "webdav";
+
+    private final String TAG = "WebDavApi";
+    private final String ACCESS_TOKEN = "access_token";
+    private final String REFRESH_TOKEN = "refresh_token";
+    private final String EMAIL = "email";
+    private final int REQUEST_TIMEOUT_MSEC = 10000;
+    private final int DEFAULT_MAX_CONNECTIONS = 4;
+    private final long RESUMABLE_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    private String url;
+    private ProviderCapabilities capabilities = new ProviderCapabilities(DEFAULT_MAX_CONNECTIONS, 1, false, false);
+    private final TransportStage transportStage = new WebDavTransport();
+    private volatile WebDavClient client;
+
+    public WebDavApi(Context context) {
+        super(context);
+        try {
+            url = props.getProperty("WEBDAV_URL");
+            setClientId(props.getProperty("WEBDAV_USER"));
+            setClientSecret(props.getProperty("WEBDAV_PASSWORD"));
+            int maxConnections = Integer.parseInt(props.getProperty("WEBDAV_MAX_CONNECTIONS", String.valueOf(DEFAULT_MAX_CONNECTIONS)).trim());
+            boolean isResumable = Boolean.parseBoolean(props.getProperty("WEBDAV_RESUMABLE", "false").trim());
+            capabilities = new ProviderCapabilities(maxConnections, 1, isResumable, false);
+        } catch (Exception ex) {
+            Log.d(TAG, ex.getMessage());
+        }
+    }
+
+    @Override
+    public String getApiType() {
+        return API_TYPE;
+    }
+
+    @Override
+    public void setApiResult(JSONObject json) throws JSONException {
+        if (json.has(ACCESS_TOKEN)) {
+            setAccessToken(json.getString(ACCESS_TOKEN));
+        }
+        if (json.has(REFRESH_TOKEN)) {
+            setRefreshToken(json.getString(REFRESH_TOKEN));
+        }
+    }
+
+    @Override
+    public void startRequestCode() {
+        startAuthTask(AuthStep.REQUEST_CODE, new VerifyTask(AuthStep.REQUEST_CODE));
+    }
+
+    @Override
+    public void startRequestToken() {
+        startAuthTask(AuthStep.REQUEST_TOKEN, new VerifyTask(AuthStep.REQUEST_TOKEN));
+    }
+
+    @Override
+    public void startRefreshToken() {
+        startAuthTask(AuthStep.REFRESH_TOKEN, new VerifyTask(AuthStep.REFRESH_TOKEN));
+    }
+
+    @Override
+    public void startRequestUserinfo() {
+        startAuthTask(AuthStep.REQUEST_USERINFO, new VerifyTask(AuthStep.REQUEST_USERINFO));
+    }
+
+    @Override
+    public ProviderCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public TransportStage getTransportStage() {
+        return transportStage;
+    }
+
+    /**
+     * PUT each file into a collection for the shooting date. The file is stored when the request completes,
+     * or when the last segment is moved into place for a resumable upload.
+     */
+    private class WebDavTransport implements TransportStage {
+        @Override
+        public void beginUploadSession() {
+            endUploadSession();
+            try {
+                client = new WebDavClient(url, getAccessToken(), AndroidWebServer.UPLOAD_TIMEOUT_MSEC);
+            } catch (Exception ex) {
+                Log.d(TAG, ex.getMessage());
+            }
+        }
+
+        @Override
+        public void endUploadSession() {
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+
+        @Override
+        public String transfer(PhotoInformation photoInformation, InputStream inputStream, long length,
+                               boolean isResumable) throws Exception {
+            WebDavClient client = WebDavApi.this.client;
+            if (client == null) {
+                throw new Exception(String.valueOf(HttpURLConnection.HTTP_BAD_REQUEST));
+            }
+            File file = new File(photoInformation.getPath());
+            String collection = getCollectionName(photoInformation, file);
+            client.makeCollection(collection);
+            String path = collection + "/" + file.getName();
+            int responseCode;
+            if (isResumable && length > RESUMABLE_SEGMENT_SIZE) {
+                // The modification time tells a partial upload of another file with the same name
+                String partPath = path + "." + Long.toHexString(file.lastModified()) + ".part";
+                responseCode = client.putResumable(path, partPath, inputStream, length, RESUMABLE_SEGMENT_SIZE);
+            } else {
+                responseCode = client.put(path, inputStream, length);
+            }
+            if (responseCode != HttpURLConnection.HTTP_CREATED && responseCode != HttpURLConnection.HTTP_OK
+                    && responseCode != HttpURLConnection.HTTP_NO_CONTENT) {
+                throw new Exception(String.valueOf(responseCode));
+            }
+            return String.valueOf(responseCode);
+        }
+    }
+
+    /**
+     * Get the collection name for the shooting date, such as 2018-07-20
+     */
+    private String getCollectionName(PhotoInformation photoInformation, File file) {
+        String datetime = photoInformation.getDatetime();
+        // EXIF date time format is "yyyy:MM:dd HH:mm:ss"
+        if (datetime != null && datetime.length() >= 10) {
+            return datetime.substring(0, 10).replace(':', '-');
+        }
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(file.lastModified()));
+    }
+
+    private String getAuthorization() {
+        String credential = getClientId() + ":" + getClientSecret();
+        return "Basic " + Base64.encodeToString(credential.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+    }
+
+    /**
+     * Check that the base collection is accessible, and notify the result as the requested step
+     */
+    private class VerifyTask extends AsyncTask<Void, Void, String> {
+        private final AuthStep step;
+
+        VerifyTask(AuthStep step) {
+            this.step = step;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            if (step == AuthStep.REQUEST_CODE) {
+                return "WebDAV does not use authorization code";
+            }
+            WebDavClient verifyClient = null;
+            try {
+                verifyClient = new WebDavClient(url, getAuthorization(), REQUEST_TIMEOUT_MSEC);
+                int responseCode = verifyClient.propfind();
+                if (responseCode == WebDavClient.HTTP_MULTI_STATUS || responseCode == HttpURLConnection.HTTP_OK) {
+                    return null;
+                }
+                return String.valueOf(responseCode);
+            } catch (Exception ex) {
+                return ex.toString();
+            } finally {
+                if (verifyClient != null) {
+                    verifyClient.close();
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String error) {
+            if (error != null) {
+                notifyAuthResult(step, null, error);
+                return;
+            }
+
+            try {
+                JSONObject json = new JSONObject();
+                switch (step) {
+                    case REQUEST_TOKEN:
+                        json.put(ACCESS_TOKEN, getAuthorization());
+                        json.put(REFRESH_TOKEN, url);
+                        break;
+                    case REFRESH_TOKEN:
+                        json.put(ACCESS_TOKEN, getAuthorization());
+                        break;
+                    case REQUEST_USERINFO:
+                        json.put(EMAIL, getClientId() + "@" + url);
+                        break;
+                }
+                notifyAuthResult(step, json.toString(), null);
+            } catch (JSONException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.net;
+
+import com.theta360.cloudupload.upload.BufferPool;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * WebDAV client class
+ *
+ * HttpURLConnection does not accept WebDAV methods such as MKCOL and PROPFIND,
+ * so requests are written to the socket directly. Connections are kept alive and
+ * shared between the upload threads.
+ */
+public class WebDavClient {
+    public static final int HTTP_MULTI_STATUS = 207;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean isSecure;
+    private final String hostHeader;
+    private final String origin;
+    private final String basePath;
+    private final String authorization;
+    private final int timeoutMSec;
+
+    private final ConcurrentLinkedQueue<Connection> idleConnectionQueue = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> openConnectionSet = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final Set<String> createdCollectionSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean isContentRangeIgnored = false;
+
+    /**
+     * Constructor
+     *
+     * @param url URL of the base collection
+     * @param authorization Value of the Authorization header, or null
+     * @param timeoutMSec Connect and read timeout
+     */
+    public WebDavClient(String url, String authorization, int timeoutMSec) throws MalformedURLException {
+        URL baseUrl = new URL(url);
+        this.isSecure = "https".equalsIgnoreCase(baseUrl.getProtocol());
+        this.host = baseUrl.getHost();
+        this.port = baseUrl.getPort() != -1 ? baseUrl.getPort() : baseUrl.getDefaultPort();
+        this.hostHeader = baseUrl.getPort() != -1 ? host + ":" + port : host;
+        this.origin = baseUrl.getProtocol() + "://" + hostHeader;
+        String path = baseUrl.getPath();
+        this.basePath = path.endsWith("/") ? path : path + "/";
+        this.authorization = authorization;
+        this.timeoutMSec = timeoutMSec;
+    }
+
+    /**
+     * Forget the collections created so far
+     */
+    public void clearCollectionCache() {
+        createdCollectionSet.clear();
+    }
+
+    /**
+     * Check that the base collection is accessible
+     *
+     * @return Response code
+     */
+    public int propfind() throws IOException {
+        return execute("PROPFIND", basePath, null, 0, "Depth: 0");
+    }
+
+    /**
+     * Create a collection and its parents.
+     * Collections already created by this client are not requested again.
+     *
+     * @param collection Collection path relative to the base collection
+     */
+    public void makeCollection(String collection) throws IOException {
+        StringBuilder path = new StringBuilder();
+        for (String segment : collection.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            path.append(segment).append('/');
+            String key = path.toString();
+            if (createdCollectionSet.contains(key)) {
+                continue;
+            }
+            synchronized (createdCollectionSet) {
+                if (createdCollectionSet.contains(key)) {
+                    continue;
+                }
+                int responseCode = execute("MKCOL", basePath + encodePath(key), null, 0, null);
+                // 405 is returned when the collection already exists
+                if (responseCode != HttpURLConnection.HTTP_CREATED && responseCode != HttpURLConnection.HTTP_BAD_METHOD) {
+                    throw new IOException(String.valueOf(responseCode));
+                }
+                createdCollectionSet.add(key);
+            }
+        }
+    }
+
+    /**
+     * Upload a file
+     *
+     * @param path File path relative to the base collection
+     * @param file Upload file
+     * @return Response code
+     */
+    public int put(String path, File file) throws IOException {
+        try (InputStream fis = new FileInputStream(file)) {
+            return put(path, fis, file.length());
+        }
+    }
+
+    /**
+     * Upload the data of a stream
+     *
+     * @param path File path relative to the base collection
+     * @param inputStream Data to upload
+     * @param contentLength Number of bytes to read from the stream
+     * @return Response code
+     */
+    public int put(String path, InputStream inputStream, long contentLength) throws IOException {
+        return execute("PUT", basePath + encodePath(path), inputStream, contentLength, null);
+    }
+
+    /**
+     * Upload the data of a stream in segments, so that an interrupted upload can continue.
+     *
+     * The segments are written to a partial resource with Content-Range, which is moved to the
+     * path when complete. If an earlier attempt left the partial resource, the upload continues
+     * from its size, and the stream is read up to there without sending it.
+     * A new upload first sends two bytes in separate requests to find whether the server appends
+     * with Content-Range. If it does not, the data is sent with a plain PUT, and so are later uploads.
+     *
+     * @param path File path relative to the base collection
+     * @param partPath Path of the partial resource relative to the base collection
+     * @param inputStream Data to upload from the beginning
+     * @param contentLength Number of bytes to read from the stream
+     * @param segmentSize Number of bytes sent in one request
+     * @return Response code of the request that failed, or of the move or the plain PUT
+     */
+    public int putResumable(String path, String partPath, InputStream inputStream, long contentLength, long segmentSize) throws IOException {
+        if (isContentRangeIgnored || contentLength < 2) {
+            return put(path, inputStream, contentLength);
+        }
+        long offset = getContentLength(partPath);
+        if (offset < 0 || offset > contentLength) {
+            offset = 0;
+        }
+        skipStream(inputStream, offset);
+
+        if (offset == 0) {
+            byte[] head = new byte[2];
+            readStream(inputStream, head);
+            int responseCode = put(partPath, new ByteArrayInputStream(head, 0, 1), 1);
+            if (responseCode / 100 != 2) {
+                return responseCode;
+            }
+            responseCode = execute("PUT", basePath + encodePath(partPath), new ByteArrayInputStream(head, 1, 1), 1,
+                    getContentRange(1, 1, contentLength));
+            if (responseCode / 100 != 2 || getContentLength(partPath) != 2) {
+                // The server replaced the resource or rejected the range, so the whole data is sent at once
+                isContentRangeIgnored = true;
+                delete(partPath);
+                return put(path, new SequenceInputStream(new ByteArrayInputStream(head), inputStream), contentLength);
+            }
+            offset = 2;
+        }
+        while (offset < contentLength) {
+            // Segments end at multiples of the segment size, so that the sizes of partial resources are predictable
+            long length = Math.min(segmentSize - offset % segmentSize, contentLength - offset);
+            int responseCode = execute("PUT", basePath + encodePath(partPath), inputStream, length,
+                    getContentRange(offset, length, contentLength));
+            if (responseCode / 100 != 2) {
+                return responseCode;
+            }
+            offset += length;
+        }
+
+        if (getContentLength(partPath) != contentLength) {
+            // The next attempt sends the data with a plain PUT
+            isContentRangeIgnored = true;
+            delete(partPath);
+            throw new IOException("The server did not append the segments to " + partPath);
+        }
+        return move(partPath, path);
+    }
+
+    /**
+     * Get the size of a resource
+     *
+     * @param path Path relative to the base collection
+     * @return Number of bytes, or -1 if the resource does not exist
+     */
+    public long getContentLength(String path) throws IOException {
+        Response response = request("HEAD", basePath + encodePath(path), null, 0, null);
+        if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return -1;
+        }
+        if (response.code / 100 != 2) {
+            throw new IOException(String.valueOf(response.code));
+        }
+        return response.contentLength;
+    }
+
+    /**
+     * Move a resource, replacing the destination
+     *
+     * @param fromPath Source path relative to the base collection
+     * @param toPath Destination path relative to the base collection
+     * @return Response code
+     */
+    public int move(String fromPath, String toPath) throws IOException {
+        String header = "Destination: " + origin + basePath + encodePath(toPath) + "\r\nOverwrite: T";
+        return execute("MOVE", basePath + encodePath(fromPath), null, 0, header);
+    }
+
+    /**
+     * Delete a resource
+     *
+     * @param path Path relative to the base collection
+     * @return Response code
+     */
+    public int delete(String path) throws IOException {
+        return execute("DELETE", basePath + encodePath(path), null, 0, null);
+    }
+
+    /**
+     * Close all connections, including the ones in use
+     */
+    public void close() {
+        idleConnectionQueue.clear();
+        for (Connection connection : openConnectionSet) {
+            connection.close();
+        }
+    }
+
+    private int execute(String method, String path, InputStream body, long contentLength, String header) throws IOException {
+        return request(method, path, body, contentLength, header).code;
+    }
+
+    private Response request(String method, String path, InputStream body, long contentLength, String header) throws IOException {
+        // The request body may be a stream that cannot be read twice, so drop idle connections closed by the server before sending
+        Connection connection;
+        while ((connection = idleConnectionQueue.poll()) != null && !connection.isHealthy()) {
+            connection.close();
+        }
+        if (connection == null) {
+            connection = new Connection();
+        }
+
+        Response response;
+        try {
+            response = connection.exchange(method, path, body, contentLength, header);
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+
+        if (connection.isKeepAlive()) {
+            idleConnectionQueue.offer(connection);
+        } else {
+            connection.close();
+        }
+        return response;
+    }
+
+    private static String getContentRange(long offset, long length, long contentLength) {
+        return "Content-Range: bytes " + offset + "-" + (offset + length - 1) + "/" + contentLength;
+    }
+
+    /**
+     * Read the stream until the buffer is full
+     */
+    private static void readStream(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int readLength = inputStream.read(buffer, offset, buffer.length - offset);
+            if (readLength == -1) {
+                throw new EOFException("Upload data is shorter than its length");
+            }
+            offset += readLength;
+        }
+    }
+
+    /**
+     * Read and discard the beginning of a stream
+     */
+    private static void skipStream(InputStream inputStream, long length) throws IOException {
+        BufferPool bufferPool = BufferPool.getSharedPool();
+        byte[] buffer = bufferPool.acquire(BufferPool.COPY_BUFFER_SIZE);
+        try {
+            while (length > 0) {
+                int readLength = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (readLength == -1) {
+                    throw new EOFException("Upload data is shorter than the uploaded part");
+                }
+                length -= readLength;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static String encodePath(String path) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        if (path.endsWith("/")) {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Persistent HTTP/1.1 connection
+     */
+    private class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private boolean isKeepAlive;
+
+        Connection() throws IOException {
+            Socket plainSocket = new Socket();
+            try {
+                plainSocket.connect(new InetSocketAddress(host, port), timeoutMSec);
+                plainSocket.setSoTimeout(timeoutMSec);
+                plainSocket.setTcpNoDelay(true);
+                if (isSecure) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plainSocket, host, port, true);
+                    SSLParameters sslParameters = sslSocket.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(sslParameters);
+                    sslSocket.startHandshake();
+                    socket = sslSocket;
+                } else {
+                    socket = plainSocket;
+                }
+            } catch (IOException ex) {
+                plainSocket.close();
+                throw ex;
+            }
+            in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            openConnectionSet.add(this);
+        }
+
+        boolean isKeepAlive() {
+            return isKeepAlive;
+        }
+
+        /**
+         * Check that the server has not closed the idle connection
+         */
+        boolean isHealthy() {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            try {
+                int soTimeout = socket.getSoTimeout();
+                try {
+                    socket.setSoTimeout(1);
+                    // The server closed the connection, or sent data that does not belong to any request
+                    in.read();
+                    return false;
+                } finally {
+                    socket.setSoTimeout(soTimeout);
+                }
+            } catch (SocketTimeoutException ex) {
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        void close() {
+            openConnectionSet.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        Response exchange(String method, String path, InputStream body, long contentLength, String header) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(hostHeader).append("\r\n");
+            if (authorization != null && !authorization.isEmpty()) {
+                sb.append("Authorization: ").append(authorization).append("\r\n");
+            }
+            if (header != null) {
+                sb.append(header).append("\r\n");
+            }
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+            sb.append("Connection: keep-alive\r\n\r\n");
+            out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+            if (body != null) {
+                BufferPool bufferPool = BufferPool.getSharedPool();
+                byte[] buffer = bufferPool.acquire(BufferPool.COPY_BUFFER_SIZE);
+                try {
+                    long remaining = contentLength;
+                    while (remaining > 0) {
+                        int length = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (length == -1) {
+                            throw new EOFException("Upload data is shorter than " + contentLength + " bytes");
+                        }
+                        out.write(buffer, 0, length);
+                        remaining -= length;
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                }
+            }
+            out.flush();
+
+            return readResponse(method);
+        }
+
+        private Response readResponse(String method) throws IOException {
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            String[] status = statusLine.split(" ", 3);
+            int responseCode;
+            try {
+                responseCode = Integer.parseInt(status[1]);
+            } catch (RuntimeException ex) {
+                throw new IOException("Malformed status line : " + statusLine);
+            }
+
+            isKeepAlive = !"HTTP/1.0".equals(status[0]);
+            long contentLength = -1;
+            boolean isChunked = false;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = line.substring(colon + 1).trim().toLowerCase(Locale.US);
+                if (name.equals("content-length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equals("transfer-encoding")) {
+                    isChunked = value.contains("chunked");
+                } else if (name.equals("connection")) {
+                    if (value.contains("close")) {
+                        isKeepAlive = false;
+                    } else if (value.contains("keep-alive")) {
+                        isKeepAlive = true;
+                    }
+                }
+            }
+
+            if (responseCode >= 100 && responseCode < 200) {
+                return readResponse(method);
+            }
+            Response response = new Response(responseCode, contentLength);
+            if ("HEAD".equals(method) || responseCode == HttpURLConnection.HTTP_NO_CONTENT
+                    || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return response;
+            }
+            if (isChunked) {
+                long chunkSize;
+                do {
+                    String chunkLine = readLine();
+                    if (chunkLine == null) {
+                        throw new EOFException("Connection closed by server");
+                    }
+                    int extension = chunkLine.indexOf(';');
+                    chunkSize = Long.parseLong((extension >= 0 ? chunkLine.substring(0, extension) : chunkLine).trim(), 16);
+                    skip(chunkSize);
+                    if (chunkSize > 0) {
+                        readLine();
+                    }
+                } while (chunkSize > 0);
+                // Trailer
+                while ((line = readLine()) != null && !line.isEmpty()) {
+                }
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+            } else {
+                while (in.read() != -1) {
+                }
+                isKeepAlive = false;
+            }
+            return response;
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    String result = line.toString("ISO-8859-1");
+                    return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+                }
+                line.write(c);
+            }
+            return line.size() == 0 ? null : line.toString("ISO-8859-1");
+        }
+
+        private void skip(long length) throws IOException {
+            while (length > 0) {
+                long skipped = in.skip(length);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException("Connection closed by server");
+                    }
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Status and size of a response
+     */
+    private static class Response {
+        private final int code;
+        private final long contentLength;
+
+        Response(int code, long contentLength) {
+            this.code = code;
+            this.contentLength = contentLength;
+        }
+    }
+}
@@ -28,6 +28,11 @@ public class SettingData {
     private int noOperationTimeoutMinute;  // No operation timeout seconds
     private String status;  // Status
     private boolean isUploadMovie;  // Flag on whether to upload video
+    private int uploadMaxDimension;  // Maximum width and height of uploaded photos, 0 for the original size
+    private int uploadQuality;  // JPEG quality of uploaded photos, 0 not to re-encode
+    private boolean isPreviewFirst;  // Flag on whether to upload previews of all photos before the originals
+    private String queuePolicy;  // Name of the order in which photos are uploaded
+    private int queueDeadlineMinute;  // Minutes in which the deadline policy expects the upload to end, 0 for no deadline
 
     /**
      * Constructor
@@ -36,6 +41,11 @@ public class SettingData {
         this.noOperationTimeoutMinute = AndroidWebServer.TIMEOUT_DEFAULT_MINUTE;
         this.status = "";
         this.isUploadMovie = false;
+        this.uploadMaxDimension = 0;
+        this.uploadQuality = 0;
+        this.isPreviewFirst = false;
+        this.queuePolicy = "fifo";
+        this.queueDeadlineMinute = 0;
     }
 
     /**
@@ -92,4 +102,94 @@ public class SettingData {
     public void setIsUploadMovie(int isUploadMovie) {
         this.isUploadMovie = isUploadMovie == 1;
     }
+
+    /**
+     * Get the maximum width and height of uploaded photos
+     *
+     * @return Number of pixels, or 0 for the original size
+     */
+    public int getUploadMaxDimension() {
+        return this.uploadMaxDimension;
+    }
+
+    /**
+     * Set the maximum width and height of uploaded photos
+     *
+     * @param uploadMaxDimension Number of pixels, or 0 for the original size
+     */
+    public void setUploadMaxDimension(int uploadMaxDimension) {
+        this.uploadMaxDimension = uploadMaxDimension;
+    }
+
+    /**
+     * Get the JPEG quality of uploaded photos
+     *
+     * @return Quality from 1 to 100, or 0 not to re-encode
+     */
+    public int getUploadQuality() {
+        return this.uploadQuality;
+    }
+
+    /**
+     * Set the JPEG quality of uploaded photos
+     *
+     * @param uploadQuality Quality from 1 to 100, or 0 not to re-encode
+     */
+    public void setUploadQuality(int uploadQuality) {
+        this.uploadQuality = uploadQuality;
+    }
+
+    /**
+     * Get isPreviewFirst
+     *
+     * @return flag
+     */
+    public boolean getIsPreviewFirst() {
+        return this.isPreviewFirst;
+    }
+
+    /**
+     * Set isPreviewFirst
+     *
+     * @param isPreviewFirst flag
+     */
+    public void setIsPreviewFirst(int isPreviewFirst) {
+        this.isPreviewFirst = isPreviewFirst == 1;
+    }
+
+    /**
+     * Get the name of the order in which photos are uploaded
+     *
+     * @return Name such as "newest"
+     */
+    public String getQueuePolicy() {
+        return this.queuePolicy;
+    }
+
+    /**
+     * Set the name of the order in which photos are uploaded
+     *
+     * @param queuePolicy Name such as "newest"
+     */
+    public void setQueuePolicy(String queuePolicy) {
+        this.queuePolicy = queuePolicy;
+    }
+
+    /**
+     * Get the minutes in which the deadline policy expects the upload to end
+     *
+     * @return Minutes, or 0 for no deadline
+     */
+    public int getQueueDeadlineMinute() {
+        return this.queueDeadlineMinute;
+    }
+
+    /**
+     * Set the minutes in which the deadline policy expects the upload to end
+     *
+     * @param queueDeadlineMinute Minutes, or 0 for no deadline
+     */
+    public void setQueueDeadlineMinute(int queueDeadlineMinute) {
+        this.queueDeadlineMinute = queueDeadlineMinute;
+    }
 }
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of byte buffers shared by file reads, hashing and network writes
+ *
+ * Buffers are grouped by size, rounded up to a power of two from 64KB, so that steady
+ * uploads reuse the same arrays instead of allocating large objects for each file.
+ * At most maxPooledBytes are kept while not in use.
+ */
+public class BufferPool {
+    /**
+     * Size of the buffers used to copy data between streams
+     */
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = 16;
+    private static final int CLASS_COUNT = 31 - MIN_CLASS_SHIFT;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 24 * 1024 * 1024;
+
+    private static final BufferPool sharedPool = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final long maxPooledBytes;
+    private final List<ArrayDeque<byte[]>> freeQueues;
+    private long pooledBytes = 0;
+    private long inUseBytes = 0;
+    private long highWaterBytes = 0;
+    private long acquireCount = 0;
+    private long hitCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxPooledBytes Maximum number of bytes kept while not in use
+     */
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.freeQueues = new ArrayList<>(CLASS_COUNT);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            freeQueues.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * Get the pool shared by the upload
+     *
+     * @return Buffer pool
+     */
+    public static BufferPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Get the size of the buffer that acquire() returns, which is the size to reserve for it
+     *
+     * @param size Minimum size
+     * @return Size of the buffer
+     */
+    public static int getClassSize(int size) {
+        return 1 << (getSizeClass(size) + MIN_CLASS_SHIFT);
+    }
+
+    /**
+     * Get a buffer. Return it with release() when it is no longer used.
+     *
+     * @param size Minimum size
+     * @return Buffer of size or larger
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        byte[] buffer;
+        synchronized (this) {
+            acquireCount++;
+            buffer = freeQueues.get(sizeClass).pollFirst();
+            if (buffer != null) {
+                hitCount++;
+                pooledBytes -= buffer.length;
+            }
+            int length = 1 << (sizeClass + MIN_CLASS_SHIFT);
+            inUseBytes += length;
+            highWaterBytes = Math.max(highWaterBytes, inUseBytes);
+        }
+        if (buffer == null) {
+            buffer = new byte[1 << (sizeClass + MIN_CLASS_SHIFT)];
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer got by acquire(). The buffer must not be used after this.
+     *
+     * @param buffer Buffer
+     */
+    public synchronized void release(byte[] buffer) {
+        int sizeClass = getSizeClass(buffer.length);
+        if (buffer.length != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            // Not from this pool
+            return;
+        }
+        inUseBytes -= buffer.length;
+        if (pooledBytes + buffer.length <= maxPooledBytes) {
+            freeQueues.get(sizeClass).addFirst(buffer);
+            pooledBytes += buffer.length;
+        }
+    }
+
+    /**
+     * Drop buffers not in use, largest first, until the pooled bytes fit
+     *
+     * @param maxBytes Number of bytes that may stay pooled
+     * @return Number of bytes still pooled
+     */
+    public synchronized long trim(long maxBytes) {
+        for (int sizeClass = CLASS_COUNT - 1; sizeClass >= 0 && pooledBytes > maxBytes; sizeClass--) {
+            ArrayDeque<byte[]> freeQueue = freeQueues.get(sizeClass);
+            while (pooledBytes > maxBytes && !freeQueue.isEmpty()) {
+                pooledBytes -= freeQueue.pollFirst().length;
+            }
+        }
+        return pooledBytes;
+    }
+
+    /**
+     * Get the ratio of acquire() served by a pooled buffer
+     *
+     * @return Hit rate from 0 to 1
+     */
+    public synchronized double getHitRate() {
+        return acquireCount == 0 ? 0 : (double) hitCount / acquireCount;
+    }
+
+    /**
+     * Get the number of acquire() calls
+     *
+     * @return Number of calls
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * Get the largest number of bytes in use at once
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    /**
+     * Get the number of bytes in use
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getInUseBytes() {
+        return inUseBytes;
+    }
+
+    /**
+     * Get the number of bytes kept while not in use
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private static int getSizeClass(int size) {
+        int sizeClass = 0;
+        while (sizeClass < CLASS_COUNT - 1 && (1 << (sizeClass + MIN_CLASS_SHIFT)) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
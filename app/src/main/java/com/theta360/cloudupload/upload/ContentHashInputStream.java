@@ -0,0 +1,126 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compute the SHA-256 content hash of the data while it is read
+ */
+public class ContentHashInputStream extends FilterInputStream {
+    private static final String ALGORITHM = "SHA-256";
+
+    private final MessageDigest digest;
+    private final long length;
+    private volatile long readBytes = 0;
+    private String hash;
+
+    /**
+     * Constructor
+     *
+     * @param in Source stream
+     * @param length Size of the data. The hash is available after this many bytes are read.
+     */
+    public ContentHashInputStream(InputStream in, long length) {
+        super(in);
+        this.digest = createDigest();
+        this.length = length;
+    }
+
+    /**
+     * Get the content hash
+     *
+     * @return Hash in hexadecimal, or null if the data has not been read to the end
+     */
+    public synchronized String getHash() {
+        if (hash == null && readBytes == length) {
+            hash = toHex(digest.digest());
+        }
+        return hash;
+    }
+
+    /**
+     * Get the number of bytes read
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            if (hash == null) {
+                digest.update((byte) b);
+            }
+            readBytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            update(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped data cannot be hashed
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void update(byte[] b, int off, int len) {
+        if (hash == null) {
+            digest.update(b, off, len);
+        }
+        readBytes += len;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is always available on Android
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.upload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Share one read of a stream between several consumers
+ *
+ * The consumer that is ahead reads the next block from the source into a ring buffer,
+ * and the other consumers copy it from there. A consumer can get ahead of the slowest one
+ * by at most the buffer size, after which it waits. A closed consumer no longer holds back
+ * the others.
+ */
+public class FanOutReader implements Closeable {
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final InputStream source;
+    private final BufferPool bufferPool = BufferPool.getSharedPool();
+    private final byte[] buffer;
+    private final int capacity;
+    private final long[] positions;
+    private final boolean[] isClosed;
+    private long headOffset = 0;
+    private boolean isReading = false;
+    private boolean isEof = false;
+    private IOException readException;
+    private boolean isBufferReleased = false;
+
+    /**
+     * Constructor
+     *
+     * @param source Source stream
+     * @param consumerCount Number of consumers
+     * @param bufferSize Maximum number of bytes held for slower consumers
+     */
+    public FanOutReader(InputStream source, int consumerCount, int bufferSize) {
+        this.source = source;
+        this.buffer = bufferPool.acquire(bufferSize);
+        this.capacity = bufferSize;
+        this.positions = new long[consumerCount];
+        this.isClosed = new boolean[consumerCount];
+    }
+
+    /**
+     * Get the stream of a consumer
+     *
+     * @param index Consumer index
+     * @return Stream that returns all data of the source
+     */
+    public InputStream getInputStream(int index) {
+        return new ConsumerInputStream(index);
+    }
+
+    /**
+     * Get the number of bytes read from the source
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getReadBytes() {
+        return headOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            for (int i = 0; i < isClosed.length; i++) {
+                isClosed[i] = true;
+            }
+            // While the source is being read into the buffer, the reader returns it
+            if (!isReading) {
+                releaseBuffer();
+            }
+            notifyAll();
+        }
+        source.close();
+    }
+
+    private long getTailOffset() {
+        long tailOffset = headOffset;
+        for (int i = 0; i < positions.length; i++) {
+            if (!isClosed[i] && positions[i] < tailOffset) {
+                tailOffset = positions[i];
+            }
+        }
+        return tailOffset;
+    }
+
+    private int read(int index, byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            int start;
+            int size;
+            synchronized (this) {
+                if (isClosed[index]) {
+                    throw new IOException("Stream closed");
+                }
+                long available = headOffset - positions[index];
+                if (available > 0) {
+                    start = (int) (positions[index] % capacity);
+                    size = (int) Math.min(Math.min(available, len), capacity - start);
+                    System.arraycopy(buffer, start, b, off, size);
+                    positions[index] += size;
+                    notifyAll();
+                    return size;
+                }
+                if (readException != null) {
+                    throw readException;
+                }
+                if (isEof) {
+                    return -1;
+                }
+
+                long free = capacity - (headOffset - getTailOffset());
+                if (isReading || free <= 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    continue;
+                }
+                isReading = true;
+                start = (int) (headOffset % capacity);
+                size = (int) Math.min(Math.min(free, READ_SIZE), capacity - start);
+            }
+
+            // The region is not visible to consumers until headOffset is advanced, so read it without the lock
+            int count = -1;
+            IOException exception = null;
+            try {
+                count = source.read(buffer, start, size);
+            } catch (IOException ex) {
+                exception = ex;
+            }
+
+            synchronized (this) {
+                isReading = false;
+                releaseBuffer();
+                if (exception != null) {
+                    readException = exception;
+                } else if (count == -1) {
+                    isEof = true;
+                } else {
+                    headOffset += count;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Return the buffer to the pool when no consumer can read it any more
+     */
+    private void releaseBuffer() {
+        boolean isAllClosed = true;
+        for (boolean closed : isClosed) {
+            isAllClosed &= closed;
+        }
+        if (isAllClosed && !isBufferReleased) {
+            isBufferReleased = true;
+            bufferPool.release(buffer);
+        }
+    }
+
+    private class ConsumerInputStream extends InputStream {
+        private final int index;
+        private final byte[] singleByte = new byte[1];
+
+        ConsumerInputStream(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int count = read(singleByte, 0, 1);
+            return count == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return FanOutReader.this.read(index, b, off, len);
+        }
+
+        @Override
+        public void close() {
+            synchronized (FanOutReader.this) {
+                isClosed[index] = true;
+                if (!isReading) {
+                    releaseBuffer();
+                }
+                FanOutReader.this.notifyAll();
+            }
+        }
+    }
+}
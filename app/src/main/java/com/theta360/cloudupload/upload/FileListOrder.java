@@ -0,0 +1,54 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.upload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Upload order that does not change
+ */
+public class FileListOrder implements UploadOrder {
+    private final List<File> fileList;
+    private int index = 0;
+
+    /**
+     * Constructor
+     *
+     * @param fileList Files in the order they will be uploaded
+     */
+    public FileListOrder(List<File> fileList) {
+        this.fileList = new ArrayList<>(fileList);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized File next(Set<String> handledPathSet) {
+        while (index < fileList.size()) {
+            File file = fileList.get(index);
+            if (!handledPathSet.contains(file.getAbsolutePath())) {
+                return file;
+            }
+            index++;
+        }
+        return null;
+    }
+}
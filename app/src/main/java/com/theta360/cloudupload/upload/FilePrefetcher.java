@@ -0,0 +1,278 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read ahead the files waiting to be uploaded
+ *
+ * A background thread opens the queued files in order, parsing EXIF, hashing and keeping the
+ * first bytes in memory, so that an upload starts without waiting for storage. The memory held
+ * by files that have been read ahead but not yet closed is kept within the budget, and is
+ * reserved from the memory governor shared with the other stages.
+ */
+public class FilePrefetcher implements Closeable {
+    private final UploadOrder order;
+    private final int readAheadSize;
+    private final long memoryBudget;
+    private final MemoryGovernor governor;
+    private final ExecutorService prefetchService = Executors.newSingleThreadExecutor();
+
+    private final Map<String, PhotoFileStream> prefetchedMap = new HashMap<>();
+    private final Set<String> takenPathSet = new HashSet<>();
+    private String loadingPath;
+    private long usedBytes = 0;
+    private long maxUsedBytes = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Constructor
+     *
+     * @param fileList Files in the order they will be uploaded
+     * @param readAheadSize Number of bytes read ahead from each file
+     * @param memoryBudget Maximum number of bytes held by files read ahead
+     * @param governor Memory budget of the whole pipeline, or null not to reserve
+     */
+    public FilePrefetcher(List<File> fileList, int readAheadSize, long memoryBudget, MemoryGovernor governor) {
+        this(new FileListOrder(fileList), readAheadSize, memoryBudget, governor);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param order Order of the uploads, which may change while reading ahead
+     * @param readAheadSize Number of bytes read ahead from each file
+     * @param memoryBudget Maximum number of bytes held by files read ahead
+     * @param governor Memory budget of the whole pipeline, or null not to reserve
+     */
+    public FilePrefetcher(UploadOrder order, int readAheadSize, long memoryBudget, MemoryGovernor governor) {
+        this.order = order;
+        this.readAheadSize = readAheadSize;
+        this.memoryBudget = memoryBudget;
+        this.governor = governor;
+    }
+
+    /**
+     * Start reading ahead
+     */
+    public void start() {
+        prefetchService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetch();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Take the file read ahead. The caller must close the returned stream.
+     *
+     * @param file File to upload
+     * @return Stream of the file, or null if it has not been read ahead
+     */
+    public PhotoFileStream take(File file) throws InterruptedException {
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            takenPathSet.add(path);
+            // The file is being read, which is faster than opening it again
+            while (path.equals(loadingPath)) {
+                wait();
+            }
+            PhotoFileStream stream = prefetchedMap.remove(path);
+            if (stream != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+            return stream;
+        }
+    }
+
+    /**
+     * Release a file that will not be uploaded, and do not read it ahead
+     *
+     * @param file File not to upload
+     */
+    public void discard(File file) throws InterruptedException {
+        String path = file.getAbsolutePath();
+        PhotoFileStream stream;
+        synchronized (this) {
+            takenPathSet.add(path);
+            while (path.equals(loadingPath)) {
+                wait();
+            }
+            stream = prefetchedMap.remove(path);
+        }
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the number of files that had been read ahead when taken
+     *
+     * @return Number of files
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of files that had not been read ahead when taken
+     *
+     * @return Number of files
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the largest number of bytes held at once
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getMaxUsedBytes() {
+        return maxUsedBytes;
+    }
+
+    @Override
+    public void close() {
+        List<PhotoFileStream> streamList;
+        synchronized (this) {
+            isClosed = true;
+            streamList = new ArrayList<>(prefetchedMap.values());
+            prefetchedMap.clear();
+            notifyAll();
+        }
+        prefetchService.shutdownNow();
+        for (PhotoFileStream stream : streamList) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void prefetch() throws InterruptedException {
+        Set<String> handledPathSet = new HashSet<>();
+        File file = order.next(handledPathSet);
+        while (file != null) {
+            final long reservedBytes = Math.min(file.length(), (long) readAheadSize);
+            synchronized (this) {
+                // Wait until the uploads release memory. One file is always allowed.
+                while (!isClosed && usedBytes > 0 && usedBytes + reservedBytes > memoryBudget) {
+                    wait();
+                }
+                if (isClosed) {
+                    return;
+                }
+            }
+            // The order may have changed while waiting
+            File nextFile = order.next(handledPathSet);
+            if (!file.equals(nextFile)) {
+                file = nextFile;
+                continue;
+            }
+            String path = file.getAbsolutePath();
+            handledPathSet.add(path);
+            boolean isTaken;
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                isTaken = takenPathSet.contains(path);
+                if (!isTaken) {
+                    loadingPath = path;
+                    usedBytes += reservedBytes;
+                    maxUsedBytes = Math.max(maxUsedBytes, usedBytes);
+                }
+            }
+            if (!isTaken) {
+                load(file, reservedBytes);
+            }
+            file = order.next(handledPathSet);
+        }
+    }
+
+    /**
+     * Read the head of a file and keep it until it is taken
+     */
+    private void load(File file, long reservedBytes) {
+        String path = file.getAbsolutePath();
+        PhotoFileStream stream = null;
+        try {
+            stream = PhotoFileStream.open(file, readAheadSize, governor, MemoryGovernor.Stage.PREFETCH);
+            final long headSize = stream.getHeadSize();
+            stream.setCloseListener(new Runnable() {
+                @Override
+                public void run() {
+                    release(headSize);
+                }
+            });
+        } catch (IOException ex) {
+            // The upload opens the file by itself and reports the error
+        }
+
+        boolean isDiscarded;
+        synchronized (this) {
+            loadingPath = null;
+            isDiscarded = isClosed || stream == null;
+            // The EXIF header is always read, even if it is larger than the read ahead size
+            usedBytes += (stream == null ? 0 : stream.getHeadSize()) - reservedBytes;
+            maxUsedBytes = Math.max(maxUsedBytes, usedBytes);
+            if (!isDiscarded) {
+                prefetchedMap.put(path, stream);
+            }
+            notifyAll();
+        }
+        if (isDiscarded && stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void release(long bytes) {
+        usedBytes -= bytes;
+        notifyAll();
+    }
+}
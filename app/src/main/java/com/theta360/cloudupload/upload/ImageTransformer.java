@@ -0,0 +1,440 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Make smaller copies of the photos waiting to be uploaded
+ *
+ * A background thread re-encodes the queued JPEG files in order, at most aheadCount files ahead
+ * of the uploads, so that encoding overlaps with sending the previous files. A file that an upload
+ * waits for is made even when the copies ahead are not taken yet. The copies keep the
+ * EXIF and XMP of the original and are written to the output directory. A copy that is not
+ * smaller than the original is discarded, and the original is uploaded.
+ */
+public class ImageTransformer implements Closeable {
+    private static final int DEFAULT_QUALITY = 90;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final UploadOrder order;
+    private final File outputDirectory;
+    private final int maxDimension;
+    private final int quality;
+    private final MemoryGovernor governor;
+    private final int aheadCount;
+    private final ExecutorService transformService = Executors.newSingleThreadExecutor();
+
+    private final Map<String, File> transformedMap = new HashMap<>();
+    // Read by the upload order without the lock
+    private final Set<String> handledPathSet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> wantedPathSet = new HashSet<>();
+    private final Set<String> discardedPathSet = new HashSet<>();
+    private String transformingPath;
+    private int waitingCount = 0;
+    private boolean isClosed = false;
+    private boolean isFinished = false;
+    private final AtomicInteger transformedCount = new AtomicInteger();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param fileList Files in the order they will be uploaded
+     * @param outputDirectory Directory to write the copies to
+     * @param maxDimension Maximum width and height, or 0 to keep the size
+     * @param quality JPEG quality from 1 to 100, or 0 for the default
+     * @param governor Memory budget of the whole pipeline
+     * @param aheadCount Maximum number of copies made before they are taken
+     */
+    public ImageTransformer(List<File> fileList, File outputDirectory, int maxDimension, int quality,
+                            MemoryGovernor governor, int aheadCount) {
+        this(new FileListOrder(fileList), outputDirectory, maxDimension, quality, governor, aheadCount);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param order Order of the uploads, which may change while transforming
+     * @param outputDirectory Directory to write the copies to
+     * @param maxDimension Maximum width and height, or 0 to keep the size
+     * @param quality JPEG quality from 1 to 100, or 0 for the default
+     * @param governor Memory budget of the whole pipeline
+     * @param aheadCount Maximum number of copies made before they are taken
+     */
+    public ImageTransformer(UploadOrder order, File outputDirectory, int maxDimension, int quality,
+                            MemoryGovernor governor, int aheadCount) {
+        this.order = order;
+        this.outputDirectory = outputDirectory;
+        this.maxDimension = maxDimension;
+        this.quality = quality > 0 ? Math.min(quality, 100) : DEFAULT_QUALITY;
+        this.governor = governor;
+        this.aheadCount = aheadCount;
+    }
+
+    /**
+     * Check whether the settings make the photos smaller
+     *
+     * @param maxDimension Maximum width and height, or 0 to keep the size
+     * @param quality JPEG quality from 1 to 100, or 0 not to re-encode
+     * @return true if the photos are transformed
+     */
+    public static boolean isEnabled(int maxDimension, int quality) {
+        return maxDimension > 0 || quality > 0;
+    }
+
+    /**
+     * Check whether a file is transformed
+     *
+     * @param file File to upload
+     * @return true for JPEG files
+     */
+    public static boolean isTarget(File file) {
+        String name = file.getName();
+        return name.endsWith(".JPG") || name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    /**
+     * Start transforming
+     */
+    public void start() {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            // All originals are uploaded
+            close();
+            return;
+        }
+        // Copies left by a session that was stopped
+        File[] oldFiles = outputDirectory.listFiles();
+        if (oldFiles != null) {
+            for (File oldFile : oldFiles) {
+                oldFile.delete();
+            }
+        }
+        transformService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transformAll();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    synchronized (ImageTransformer.this) {
+                        isFinished = true;
+                        ImageTransformer.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Take the smaller copy of a file, waiting until it is made. The caller must delete the copy.
+     *
+     * @param file File to upload
+     * @return Copy of the file, or null to upload the original
+     */
+    public File take(File file) throws InterruptedException {
+        if (!isTarget(file)) {
+            return null;
+        }
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            wantedPathSet.add(path);
+            notifyAll();
+            try {
+                while (!isClosed && !isFinished && !transformedMap.containsKey(path)) {
+                    wait();
+                }
+            } finally {
+                wantedPathSet.remove(path);
+            }
+            if (!transformedMap.containsKey(path)) {
+                return null;
+            }
+            File transformedFile = transformedMap.remove(path);
+            waitingCount--;
+            notifyAll();
+            return transformedFile;
+        }
+    }
+
+    /**
+     * Make the copy of a file again, for an upload that is retried
+     *
+     * @param file File to upload again
+     */
+    public synchronized void reset(File file) {
+        String path = file.getAbsolutePath();
+        if (!transformedMap.containsKey(path) && !path.equals(transformingPath)) {
+            handledPathSet.remove(path);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Delete the copy of a file that will not be uploaded, and do not make it
+     *
+     * @param file File not to upload
+     */
+    public void discard(File file) {
+        if (!isTarget(file)) {
+            return;
+        }
+        String path = file.getAbsolutePath();
+        File transformedFile = null;
+        synchronized (this) {
+            if (transformedMap.containsKey(path)) {
+                transformedFile = transformedMap.remove(path);
+                waitingCount--;
+                notifyAll();
+            } else if (path.equals(transformingPath)) {
+                discardedPathSet.add(path);
+            } else {
+                handledPathSet.add(path);
+            }
+        }
+        if (transformedFile != null) {
+            transformedFile.delete();
+        }
+    }
+
+    /**
+     * Get the number of smaller copies made
+     *
+     * @return Number of files
+     */
+    public int getTransformedCount() {
+        return transformedCount.get();
+    }
+
+    /**
+     * Get the number of bytes the copies are smaller than the originals
+     *
+     * @return Number of bytes
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        List<File> remainingList;
+        synchronized (this) {
+            isClosed = true;
+            remainingList = new ArrayList<>(transformedMap.values());
+            transformedMap.clear();
+            notifyAll();
+        }
+        transformService.shutdownNow();
+        for (File remainingFile : remainingList) {
+            if (remainingFile != null) {
+                remainingFile.delete();
+            }
+        }
+    }
+
+    private void transformAll() throws InterruptedException {
+        while (true) {
+            synchronized (this) {
+                while (!isClosed && waitingCount >= aheadCount && !isWanted()) {
+                    wait();
+                }
+                if (isClosed) {
+                    return;
+                }
+            }
+            File file = order.next(handledPathSet);
+            if (file == null) {
+                return;
+            }
+            String path = file.getAbsolutePath();
+            synchronized (this) {
+                if (!handledPathSet.add(path) || !isTarget(file)) {
+                    continue;
+                }
+                transformingPath = path;
+                waitingCount++;
+            }
+
+            File transformedFile = null;
+            try {
+                transformedFile = transform(file);
+            } catch (IOException ex) {
+                // The original is uploaded
+                ex.printStackTrace();
+            }
+
+            boolean isDiscarded;
+            synchronized (this) {
+                transformingPath = null;
+                isDiscarded = isClosed || discardedPathSet.remove(path);
+                if (!isDiscarded) {
+                    transformedMap.put(path, transformedFile);
+                } else {
+                    waitingCount--;
+                }
+                notifyAll();
+            }
+            if (isDiscarded && transformedFile != null) {
+                transformedFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the largest power of two reduction for decoding that is still at least the new size
+     *
+     * @return Value for BitmapFactory.Options.inSampleSize
+     */
+    static int getSampleSize(int width, int height, int newWidth, int newHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= newWidth && height / (sampleSize * 2) >= newHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Get the memory used by the decoded bitmap, and by the scaled one if the size differs
+     *
+     * @return Number of bytes
+     */
+    static long getBitmapBytes(int decodedWidth, int decodedHeight, int newWidth, int newHeight) {
+        long bytes = (long) decodedWidth * decodedHeight * BYTES_PER_PIXEL;
+        if (decodedWidth != newWidth || decodedHeight != newHeight) {
+            bytes += (long) newWidth * newHeight * BYTES_PER_PIXEL;
+        }
+        return bytes;
+    }
+
+    /**
+     * Check whether an upload waits for a file that has not been started
+     */
+    private boolean isWanted() {
+        for (String path : wantedPathSet) {
+            if (!handledPathSet.contains(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Re-encode a photo within the maximum dimension
+     *
+     * @return Smaller copy, or null if the copy is not smaller
+     */
+    private File transform(File file) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        double scale = maxDimension > 0 ? Math.min(1.0, (double) maxDimension / Math.max(width, height)) : 1.0;
+        int newWidth = Math.max(1, (int) Math.round(width * scale));
+        int newHeight = Math.max(1, (int) Math.round(height * scale));
+
+        int sampleSize = getSampleSize(width, height, newWidth, newHeight);
+        long bitmapBytes = getBitmapBytes(width / sampleSize, height / sampleSize, newWidth, newHeight);
+        // A photo whose bitmaps do not fit in the budget is decoded smaller, and kept at the decoded size
+        while (bitmapBytes > governor.getBudget() && width / (sampleSize * 2) > 0 && height / (sampleSize * 2) > 0) {
+            sampleSize *= 2;
+            newWidth = Math.min(newWidth, width / sampleSize);
+            newHeight = Math.min(newHeight, height / sampleSize);
+            bitmapBytes = getBitmapBytes(width / sampleSize, height / sampleSize, newWidth, newHeight);
+        }
+
+        JpegMetadata metadata;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            metadata = JpegMetadata.read(in);
+        }
+        metadata.resize(width, height, newWidth, newHeight);
+
+        // Files in different folders can have the same name
+        String name = Integer.toHexString(file.getAbsolutePath().hashCode()) + "_" + file.getName();
+        File encodedFile = new File(outputDirectory, name + ".encoded");
+        File transformedFile = new File(outputDirectory, name);
+        // Waiting could deadlock, since the memory may be held by a file that is uploaded after this photo
+        MemoryGovernor.Reservation reservation = governor.reserveWithoutWaiting(MemoryGovernor.Stage.TRANSFORM, bitmapBytes);
+        if (reservation == null) {
+            // The other stages are short of memory, so the original is uploaded
+            return null;
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (decoded == null) {
+                return null;
+            }
+            Bitmap scaled = decoded;
+            if (decoded.getWidth() != newWidth || decoded.getHeight() != newHeight) {
+                scaled = Bitmap.createScaledBitmap(decoded, newWidth, newHeight, true);
+                decoded.recycle();
+            }
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(encodedFile))) {
+                scaled.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            } finally {
+                scaled.recycle();
+            }
+        } finally {
+            reservation.close();
+        }
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(encodedFile));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(transformedFile))) {
+            metadata.write(in, out);
+        } finally {
+            encodedFile.delete();
+        }
+
+        long saved = file.length() - transformedFile.length();
+        if (saved <= 0) {
+            transformedFile.delete();
+            return null;
+        }
+        transformedCount.incrementAndGet();
+        savedBytes.addAndGet(saved);
+        return transformedFile;
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Metadata segments of a JPEG file
+ *
+ * A re-encoded image loses the EXIF and XMP segments of the original, and 360 viewers need the
+ * GPano properties in XMP to show it as a sphere. The segments are copied from the original into
+ * the encoded file, with the pixel sizes in them changed to the new image size.
+ */
+public class JpegMetadata {
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_APP0 = 0xe0;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int MARKER_APP15 = 0xef;
+    private static final String EXIF_HEADER = "Exif\0\0";
+    private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int MAX_SEGMENT_LENGTH = 0xffff;
+
+    // GPano properties as attributes or as elements, and whether they are horizontal
+    private static final Pattern GPANO_PATTERN = Pattern.compile(
+            "(GPano:(FullPanoWidthPixels|FullPanoHeightPixels|CroppedAreaImageWidthPixels|CroppedAreaImageHeightPixels"
+                    + "|CroppedAreaLeftPixels|CroppedAreaTopPixels)(?:\\s*=\\s*[\"']|>))(\\d+)");
+
+    private final List<byte[]> segmentList;
+
+    private JpegMetadata(List<byte[]> segmentList) {
+        this.segmentList = segmentList;
+    }
+
+    /**
+     * Read the EXIF and XMP segments from the head of a JPEG file
+     *
+     * @param inputStream JPEG data. Read up to the start of the image data.
+     * @return Metadata, which is empty if the data is not JPEG
+     */
+    public static JpegMetadata read(InputStream inputStream) throws IOException {
+        List<byte[]> segmentList = new ArrayList<>();
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != MARKER_SOI) {
+            return new JpegMetadata(segmentList);
+        }
+        while (true) {
+            int prefix = in.readUnsignedByte();
+            int marker = in.readUnsignedByte();
+            if (prefix != 0xff || marker == MARKER_SOS) {
+                break;
+            }
+            int length = in.readUnsignedShort();
+            byte[] segment = new byte[length + 2];
+            segment[0] = (byte) prefix;
+            segment[1] = (byte) marker;
+            segment[2] = (byte) (length >> 8);
+            segment[3] = (byte) length;
+            in.readFully(segment, 4, length - 2);
+            if (marker == MARKER_APP1 && (hasHeader(segment, EXIF_HEADER) || hasHeader(segment, XMP_HEADER))) {
+                segmentList.add(segment);
+            }
+        }
+        return new JpegMetadata(segmentList);
+    }
+
+    /**
+     * Check whether there is any EXIF or XMP segment
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return segmentList.isEmpty();
+    }
+
+    /**
+     * Change the pixel sizes in EXIF and GPano to the size of a resized image
+     *
+     * @param width Width of the original image
+     * @param height Height of the original image
+     * @param newWidth Width of the resized image
+     * @param newHeight Height of the resized image
+     */
+    public void resize(int width, int height, int newWidth, int newHeight) {
+        for (int i = 0; i < segmentList.size(); i++) {
+            byte[] segment = segmentList.get(i);
+            if (hasHeader(segment, EXIF_HEADER)) {
+                updateExifDimensions(segment, 4 + EXIF_HEADER.length(), newWidth, newHeight);
+            } else {
+                segmentList.set(i, resizeXmp(segment, (double) newWidth / width, (double) newHeight / height));
+            }
+        }
+    }
+
+    /**
+     * Copy encoded JPEG data, replacing its application segments with this metadata
+     *
+     * @param encoded JPEG data from the encoder
+     * @param out Destination
+     */
+    public void write(InputStream encoded, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(encoded);
+        if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != MARKER_SOI) {
+            throw new IOException("Not JPEG");
+        }
+        out.write(0xff);
+        out.write(MARKER_SOI);
+        for (byte[] segment : segmentList) {
+            out.write(segment);
+        }
+
+        // Drop the JFIF and other application segments written by the encoder
+        while (true) {
+            int prefix = in.readUnsignedByte();
+            int marker = in.readUnsignedByte();
+            if (prefix != 0xff) {
+                throw new IOException("Broken JPEG segment");
+            }
+            if (marker == MARKER_SOS) {
+                out.write(prefix);
+                out.write(marker);
+                break;
+            }
+            int length = in.readUnsignedShort();
+            if (marker >= MARKER_APP0 && marker <= MARKER_APP15) {
+                skipFully(in, length - 2);
+                continue;
+            }
+            out.write(prefix);
+            out.write(marker);
+            out.write(length >> 8);
+            out.write(length);
+            copy(in, out, length - 2);
+        }
+        copy(in, out, Long.MAX_VALUE);
+    }
+
+    private static boolean hasHeader(byte[] segment, String header) {
+        return segment.length >= 4 + header.length()
+                && new String(segment, 4, header.length(), StandardCharsets.ISO_8859_1).equals(header);
+    }
+
+    private static byte[] resizeXmp(byte[] segment, double scaleX, double scaleY) {
+        int start = 4 + XMP_HEADER.length();
+        String xmp = new String(segment, start, segment.length - start, StandardCharsets.UTF_8);
+        Matcher matcher = GPANO_PATTERN.matcher(xmp);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String name = matcher.group(2);
+            double scale = name.contains("Width") || name.contains("Left") ? scaleX : scaleY;
+            long value = Math.round(Long.parseLong(matcher.group(3)) * scale);
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(matcher.group(1) + value));
+        }
+        matcher.appendTail(sb);
+
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        int length = 2 + XMP_HEADER.length() + body.length;
+        if (length > MAX_SEGMENT_LENGTH) {
+            // The numbers only get shorter when resized, so this does not happen for a valid segment
+            return segment;
+        }
+        byte[] resized = new byte[length + 2];
+        System.arraycopy(segment, 0, resized, 0, start);
+        resized[2] = (byte) (length >> 8);
+        resized[3] = (byte) length;
+        System.arraycopy(body, 0, resized, start, body.length);
+        return resized;
+    }
+
+    /**
+     * Write PixelXDimension and PixelYDimension of the EXIF IFD in place
+     */
+    private static void updateExifDimensions(byte[] data, int tiffStart, int width, int height) {
+        if (tiffStart + 8 > data.length) {
+            return;
+        }
+        boolean isBigEndian = data[tiffStart] == 'M';
+        int exifIfd = -1;
+        int ifd = tiffStart + (int) Math.min(readInt(data, tiffStart + 4, isBigEndian), data.length);
+        for (int pass = 0; pass < 2 && ifd + 2 <= data.length; pass++) {
+            int entryCount = readShort(data, ifd, isBigEndian);
+            for (int i = 0; i < entryCount; i++) {
+                int entry = ifd + 2 + i * 12;
+                if (entry + 12 > data.length) {
+                    return;
+                }
+                int tag = readShort(data, entry, isBigEndian);
+                int type = readShort(data, entry + 2, isBigEndian);
+                if (pass == 0 && tag == TAG_EXIF_IFD) {
+                    exifIfd = tiffStart + (int) Math.min(readInt(data, entry + 8, isBigEndian), data.length);
+                } else if (pass == 1 && (tag == TAG_PIXEL_X_DIMENSION || tag == TAG_PIXEL_Y_DIMENSION)) {
+                    int value = tag == TAG_PIXEL_X_DIMENSION ? width : height;
+                    if (type == TYPE_SHORT) {
+                        writeShort(data, entry + 8, value, isBigEndian);
+                    } else if (type == TYPE_LONG) {
+                        writeInt(data, entry + 8, value, isBigEndian);
+                    }
+                }
+            }
+            if (exifIfd == -1) {
+                return;
+            }
+            ifd = exifIfd;
+        }
+    }
+
+    private static int readShort(byte[] data, int offset, boolean isBigEndian) {
+        int b0 = data[offset] & 0xff;
+        int b1 = data[offset + 1] & 0xff;
+        return isBigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readInt(byte[] data, int offset, boolean isBigEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[isBigEndian ? offset + i : offset + 3 - i] & 0xff;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value, boolean isBigEndian) {
+        data[offset] = (byte) (isBigEndian ? value >> 8 : value);
+        data[offset + 1] = (byte) (isBigEndian ? value : value >> 8);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value, boolean isBigEndian) {
+        for (int i = 0; i < 4; i++) {
+            data[isBigEndian ? offset + 3 - i : offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        BufferPool bufferPool = BufferPool.getSharedPool();
+        byte[] buffer = bufferPool.acquire(BufferPool.COPY_BUFFER_SIZE);
+        boolean isToEnd = length == Long.MAX_VALUE;
+        try {
+            while (length > 0) {
+                int readLength = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (readLength == -1) {
+                    if (isToEnd) {
+                        return;
+                    }
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, readLength);
+                length -= readLength;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Budget of the memory held by the upload pipeline
+ *
+ * Every stage reserves the bytes it is going to buffer and releases them when the buffer is
+ * no longer used. When the budget is exhausted, reserve() waits until other stages release,
+ * which slows reading down to the speed of the network. A single reservation larger than the
+ * budget is granted when nothing else is reserved, so that one large file always proceeds.
+ *
+ * The buffers kept by the buffer pool while not in use are counted in the budget too, and
+ * are dropped when a reservation needs their memory.
+ *
+ * To avoid deadlock, only a caller that holds no reservation may wait. A caller that already
+ * holds one uses tryReserve() or reserveNow(), and a caller that other stages may wait for
+ * uses reserveWithoutWaiting().
+ */
+public class MemoryGovernor {
+    /**
+     * Pipeline stage that holds memory
+     */
+    public enum Stage {
+        READ("read"),
+        PREFETCH("prefetch"),
+        FAN_OUT("fanOut"),
+        TRANSFORM("transform");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name shown in the status
+         *
+         * @return Stage name
+         */
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    private final long budget;
+    private final BufferPool bufferPool;
+    private final Map<Stage, Long> reservedMap = new EnumMap<>(Stage.class);
+    private long reservedBytes = 0;
+    private long maxReservedBytes = 0;
+    private int waitingCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param budget Maximum number of bytes reserved at once
+     */
+    public MemoryGovernor(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param budget Maximum number of bytes reserved or pooled at once
+     * @param bufferPool Pool whose buffers not in use are counted in the budget, or null
+     */
+    public MemoryGovernor(long budget, BufferPool bufferPool) {
+        this.budget = budget;
+        this.bufferPool = bufferPool;
+        for (Stage stage : Stage.values()) {
+            reservedMap.put(stage, 0L);
+        }
+    }
+
+    /**
+     * Reserve memory, waiting until it is available
+     *
+     * @param stage Stage that buffers the bytes
+     * @param bytes Number of bytes
+     * @return Reservation to close when the buffer is released
+     */
+    public synchronized Reservation reserve(Stage stage, long bytes) throws InterruptedException {
+        waitingCount++;
+        try {
+            while (!isAvailable(bytes)) {
+                wait();
+            }
+        } finally {
+            waitingCount--;
+        }
+        return add(stage, bytes);
+    }
+
+    /**
+     * Reserve memory if it is available now
+     *
+     * @param stage Stage that buffers the bytes
+     * @param bytes Number of bytes
+     * @return Reservation, or null if the budget is exhausted
+     */
+    public synchronized Reservation tryReserve(Stage stage, long bytes) {
+        return isAvailable(bytes) ? add(stage, bytes) : null;
+    }
+
+    /**
+     * Reserve memory without waiting, even over the budget. Only for a small amount needed
+     * to finish work that already holds a reservation.
+     *
+     * @param stage Stage that buffers the bytes
+     * @param bytes Number of bytes
+     * @return Reservation to close when the buffer is released
+     */
+    public synchronized Reservation reserveNow(Stage stage, long bytes) {
+        return add(stage, bytes);
+    }
+
+    /**
+     * Reserve memory without waiting. Over the budget, the memory is granted only if no other
+     * caller is waiting for memory, so that a stage the others wait for does not wait for them.
+     *
+     * @param stage Stage that buffers the bytes
+     * @param bytes Number of bytes
+     * @return Reservation, or null if the budget is exhausted and another caller is waiting
+     */
+    public synchronized Reservation reserveWithoutWaiting(Stage stage, long bytes) {
+        return isAvailable(bytes) || waitingCount == 0 ? add(stage, bytes) : null;
+    }
+
+    /**
+     * Get the budget
+     *
+     * @return Number of bytes
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Get the number of bytes reserved
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Get the number of bytes reserved by a stage
+     *
+     * @param stage Stage
+     * @return Number of bytes
+     */
+    public synchronized long getReservedBytes(Stage stage) {
+        return reservedMap.get(stage);
+    }
+
+    /**
+     * Get the largest number of bytes reserved at once
+     *
+     * @return Number of bytes
+     */
+    public synchronized long getMaxReservedBytes() {
+        return maxReservedBytes;
+    }
+
+    /**
+     * Get the number of callers waiting for memory
+     *
+     * @return Number of callers
+     */
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    private boolean isAvailable(long bytes) {
+        long pooledBytes = bufferPool == null ? 0 : bufferPool.trim(Math.max(0, budget - reservedBytes - bytes));
+        return reservedBytes == 0 || reservedBytes + pooledBytes + bytes <= budget;
+    }
+
+    private Reservation add(Stage stage, long bytes) {
+        reservedMap.put(stage, reservedMap.get(stage) + bytes);
+        reservedBytes += bytes;
+        maxReservedBytes = Math.max(maxReservedBytes, reservedBytes);
+        return new Reservation(stage, bytes);
+    }
+
+    private synchronized void release(Stage stage, long bytes) {
+        reservedMap.put(stage, reservedMap.get(stage) - bytes);
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Memory reserved by a stage. Closing it more than once releases the memory once.
+     */
+    public class Reservation implements Closeable {
+        private final Stage stage;
+        private final long bytes;
+        private boolean isReleased = false;
+
+        private Reservation(Stage stage, long bytes) {
+            this.stage = stage;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get the number of bytes reserved
+         *
+         * @return Number of bytes
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (isReleased) {
+                    return;
+                }
+                isReleased = true;
+            }
+            release(stage, bytes);
+        }
+    }
+}
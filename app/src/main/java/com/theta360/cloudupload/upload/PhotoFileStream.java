@@ -0,0 +1,325 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.theta360.cloudupload.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Single pass over a photo file
+ *
+ * The head of the file is read first and the EXIF date time is parsed from it, then those bytes
+ * are replayed followed by the rest of the file. The content hash is updated as the data is read
+ * from storage, and the same buffers are passed to the network, so each byte is read once.
+ * The head can be read ahead on another thread while the previous file is uploaded.
+ */
+public class PhotoFileStream extends FilterInputStream {
+    /**
+     * EXIF is in the APP1 segment, which is at most 64KB and follows SOI
+     */
+    private static final int HEADER_SIZE = 68 * 1024;
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TYPE_ASCII = 2;
+
+    private static final BufferPool bufferPool = BufferPool.getSharedPool();
+
+    private final ContentHashInputStream storage;
+    private final String datetime;
+    private final byte[] head;
+    private final int headSize;
+    private final MemoryGovernor.Reservation reservation;
+    private Runnable closeListener;
+    private boolean isClosed = false;
+
+    private PhotoFileStream(ContentHashInputStream storage, byte[] head, int headSize, MemoryGovernor.Reservation reservation, File file) {
+        super(new SequenceInputStream(new ByteArrayInputStream(head, 0, headSize), storage));
+        this.storage = storage;
+        // Videos have no EXIF, so their modification time is used in the same format
+        this.datetime = isJpeg(head, headSize) ? parseDatetime(head, headSize) : getModifiedDatetime(file);
+        this.head = head;
+        this.headSize = headSize;
+        this.reservation = reservation;
+    }
+
+    /**
+     * Open a photo file and parse its EXIF
+     *
+     * @param file Photo file
+     * @return Stream of the whole file
+     */
+    public static PhotoFileStream open(File file) throws IOException {
+        return open(file, HEADER_SIZE);
+    }
+
+    /**
+     * Open a photo file, read its head into memory and parse its EXIF
+     *
+     * @param file Photo file
+     * @param readAheadSize Number of bytes to read into memory. At least the EXIF header is read.
+     * @return Stream of the whole file
+     */
+    public static PhotoFileStream open(File file, int readAheadSize) throws IOException {
+        return open(file, readAheadSize, null, null);
+    }
+
+    /**
+     * Open a photo file, reserving the memory of its head before reading it.
+     * The reservation is released when the stream is closed.
+     *
+     * @param file Photo file
+     * @param readAheadSize Number of bytes to read into memory. At least the EXIF header is read.
+     * @param governor Memory budget, or null not to reserve
+     * @param stage Stage that reads the file
+     * @return Stream of the whole file
+     */
+    public static PhotoFileStream open(File file, int readAheadSize, MemoryGovernor governor, MemoryGovernor.Stage stage) throws IOException {
+        int size = (int) Math.min(file.length(), Math.max(HEADER_SIZE, readAheadSize));
+        MemoryGovernor.Reservation reservation = null;
+        if (governor != null) {
+            try {
+                // The pool hands out a buffer of the size class, which may be larger
+                reservation = governor.reserve(stage, BufferPool.getClassSize(size));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            }
+        }
+
+        byte[] head = null;
+        ContentHashInputStream storage = null;
+        try {
+            storage = new ContentHashInputStream(new FileInputStream(file), file.length());
+            head = bufferPool.acquire(size);
+            return new PhotoFileStream(storage, head, readHead(storage, head, size), reservation, file);
+        } catch (IOException ex) {
+            if (head != null) {
+                bufferPool.release(head);
+            }
+            if (storage != null) {
+                storage.close();
+            }
+            if (reservation != null) {
+                reservation.close();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Read a whole photo file
+     *
+     * @param file Photo file
+     * @return Stream read to the end, to get the hash and the date time
+     */
+    public static PhotoFileStream readAll(File file) throws IOException {
+        byte[] buffer = bufferPool.acquire(BufferPool.COPY_BUFFER_SIZE);
+        try (PhotoFileStream in = open(file)) {
+            while (in.read(buffer) != -1) {
+                // Read to the end
+            }
+            return in;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Get the date time in EXIF, or the modification time of a file that is not JPEG
+     *
+     * @return Date time, or null if the JPEG file has no EXIF date time
+     */
+    public String getDatetime() {
+        return this.datetime;
+    }
+
+    /**
+     * Get the content hash
+     *
+     * @return Hash in hexadecimal, or null if the file has not been read to the end
+     */
+    public String getHash() {
+        return storage.getHash();
+    }
+
+    /**
+     * Get the number of bytes read from storage
+     *
+     * @return Number of bytes
+     */
+    public long getStorageReadBytes() {
+        return storage.getReadBytes();
+    }
+
+    /**
+     * Get the number of bytes read into memory when the file was opened
+     *
+     * @return Number of bytes
+     */
+    public int getHeadSize() {
+        return this.headSize;
+    }
+
+    /**
+     * Set the listener called once when the stream is closed
+     *
+     * @param closeListener Listener
+     */
+    void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped data cannot be hashed
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Runnable listener;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            listener = closeListener;
+        }
+        try {
+            super.close();
+        } finally {
+            bufferPool.release(head);
+            if (reservation != null) {
+                reservation.close();
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    private static int readHead(InputStream in, byte[] head, int size) throws IOException {
+        int readSize = 0;
+        int count;
+        while (readSize < size && (count = in.read(head, readSize, size - readSize)) != -1) {
+            readSize += count;
+        }
+        return readSize;
+    }
+
+    /**
+     * Get the modification time of a file in the EXIF date time format
+     *
+     * @param file File
+     * @return Date time such as "2018:07:20 12:34:56"
+     */
+    public static String getModifiedDatetime(File file) {
+        return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(file.lastModified()));
+    }
+
+    private static boolean isJpeg(byte[] header, int headerLength) {
+        return headerLength >= 2 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == MARKER_SOI;
+    }
+
+    /**
+     * Get DateTime of IFD0 from the EXIF segment, the same value as ExifInterface.TAG_DATETIME
+     */
+    private static String parseDatetime(byte[] header, int headerLength) {
+        if (headerLength < 4 || (header[0] & 0xff) != 0xff || (header[1] & 0xff) != MARKER_SOI) {
+            return null;
+        }
+        int offset = 2;
+        while (offset + 4 <= headerLength && (header[offset] & 0xff) == 0xff) {
+            int marker = header[offset + 1] & 0xff;
+            int length = readShort(header, offset + 2, true);
+            if (marker == MARKER_SOS) {
+                break;
+            }
+            int start = offset + 4;
+            if (marker == MARKER_APP1 && start + 6 <= headerLength
+                    && new String(header, start, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")) {
+                return parseTiffDatetime(header, start + 6, Math.min(headerLength, offset + 2 + length));
+            }
+            offset += 2 + length;
+        }
+        return null;
+    }
+
+    private static String parseTiffDatetime(byte[] data, int tiffStart, int end) {
+        if (tiffStart + 8 > end) {
+            return null;
+        }
+        boolean isBigEndian = data[tiffStart] == 'M';
+        long ifdOffset = readInt(data, tiffStart + 4, isBigEndian);
+        int entryStart = tiffStart + (int) Math.min(ifdOffset, Integer.MAX_VALUE - tiffStart);
+        if (ifdOffset < 8 || entryStart + 2 > end) {
+            return null;
+        }
+        int entryCount = readShort(data, entryStart, isBigEndian);
+        for (int i = 0; i < entryCount; i++) {
+            int entry = entryStart + 2 + i * 12;
+            if (entry + 12 > end) {
+                return null;
+            }
+            if (readShort(data, entry, isBigEndian) != TAG_DATETIME || readShort(data, entry + 2, isBigEndian) != TYPE_ASCII) {
+                continue;
+            }
+            long count = readInt(data, entry + 4, isBigEndian);
+            long valueOffset = count <= 4 ? entry + 8 - tiffStart : readInt(data, entry + 8, isBigEndian);
+            if (tiffStart + valueOffset + count > end) {
+                return null;
+            }
+            String value = new String(data, (int) (tiffStart + valueOffset), (int) count, StandardCharsets.US_ASCII);
+            int nul = value.indexOf('\0');
+            return nul == -1 ? value : value.substring(0, nul);
+        }
+        return null;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean isBigEndian) {
+        int b0 = data[offset] & 0xff;
+        int b1 = data[offset + 1] & 0xff;
+        return isBigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readInt(byte[] data, int offset, boolean isBigEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[isBigEndian ? offset + i : offset + 3 - i] & 0xff;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.upload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Make small JPEG previews of photos for the settings page
+ *
+ * The thumbnail embedded in the EXIF is used when the photo has one. Otherwise the photo is
+ * decoded at a power of two reduction, so that a large equirectangular photo is never decoded
+ * at full size, and then scaled to the final size.
+ */
+public class ThumbnailMaker {
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int maxDimension;
+    private final int quality;
+    private final MemoryGovernor governor;
+
+    /**
+     * Constructor
+     *
+     * @param maxDimension Maximum width and height
+     * @param quality JPEG quality from 1 to 100
+     * @param governor Memory budget of the whole pipeline
+     */
+    public ThumbnailMaker(int maxDimension, int quality, MemoryGovernor governor) {
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.governor = governor;
+    }
+
+    /**
+     * Make the thumbnail of a photo
+     *
+     * @param file Photo
+     * @return JPEG data
+     * @throws IOException The file is not a photo that can be decoded
+     * @throws InterruptedException Interrupted while waiting for memory
+     */
+    public byte[] make(File file) throws IOException, InterruptedException {
+        ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
+        if (exifInterface.hasThumbnail()) {
+            byte[] thumbnail = exifInterface.getThumbnail();
+            if (thumbnail != null && thumbnail.length > 0) {
+                return thumbnail;
+            }
+        }
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("not a photo : " + file.getName());
+        }
+        double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        int newWidth = Math.max(1, (int) Math.round(width * scale));
+        int newHeight = Math.max(1, (int) Math.round(height * scale));
+        int sampleSize = ImageTransformer.getSampleSize(width, height, newWidth, newHeight);
+        long decodeBytes = (long) (width / sampleSize) * (height / sampleSize) * BYTES_PER_PIXEL;
+        long scaleBytes = (long) newWidth * newHeight * BYTES_PER_PIXEL;
+
+        MemoryGovernor.Reservation reservation = governor.reserve(MemoryGovernor.Stage.TRANSFORM, decodeBytes + scaleBytes);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (decoded == null) {
+                throw new IOException("failed to decode : " + file.getName());
+            }
+            Bitmap scaled = decoded;
+            if (decoded.getWidth() != newWidth || decoded.getHeight() != newHeight) {
+                scaled = Bitmap.createScaledBitmap(decoded, newWidth, newHeight, true);
+                decoded.recycle();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                scaled.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            } finally {
+                scaled.recycle();
+            }
+            return out.toByteArray();
+        } finally {
+            reservation.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.upload;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Order in which files are uploaded, followed by the stages that work ahead of the uploads.
+ * The order may change while the stages run, so a stage asks for its next file each time.
+ */
+public interface UploadOrder {
+
+    /**
+     * Get the first file in the upload order that the caller has not handled, waiting until one is added
+     *
+     * @param handledPathSet Absolute paths of the files the caller has handled
+     * @return File, or null if no more files will be uploaded
+     * @throws InterruptedException Interrupted while waiting
+     */
+    File next(Set<String> handledPathSet) throws InterruptedException;
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.cloudupload.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of an upload session in bytes, counted as the transports take the data to send.
+ * The transports write the data to buffered connections, so the count runs ahead of the
+ * network by those buffers.
+ * The throughput is sampled when the progress is read, and smoothed with an exponentially
+ * weighted moving average (EWMA) for the estimated time remaining.
+ */
+public class UploadProgress {
+    private static final long MIN_SAMPLE_INTERVAL_MSEC = 500;
+    private static final double EWMA_TIME_CONSTANT_MSEC = 5000;
+
+    private final Set<FileProgress> fileSet = new LinkedHashSet<>();
+    private final AtomicLong finishedBytes = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private volatile long allBytes;
+
+    private long sampleMSec;
+    private long sampleSentBytes;
+    private double bytesPerSec;
+    private double ewmaBytesPerSec;
+    private boolean hasSample;
+
+    /**
+     * Start a session
+     *
+     * @param allBytes Total size of the files to upload
+     * @param nowMSec Current time
+     */
+    public synchronized void start(long allBytes, long nowMSec) {
+        this.allBytes = allBytes;
+        fileSet.clear();
+        finishedBytes.set(0);
+        sentBytes.set(0);
+        sampleMSec = nowMSec;
+        sampleSentBytes = 0;
+        bytesPerSec = 0;
+        ewmaBytesPerSec = 0;
+        hasSample = false;
+    }
+
+    /**
+     * Start a file
+     *
+     * @param name File name
+     * @param size Size of the file, counted in the session total
+     * @return Progress of the file
+     */
+    public synchronized FileProgress startFile(String name, long size) {
+        FileProgress fileProgress = new FileProgress(name, size);
+        fileSet.add(fileProgress);
+        return fileProgress;
+    }
+
+    /**
+     * Finish a file, uploaded or not
+     *
+     * @param fileProgress Progress of the file
+     */
+    public synchronized void finishFile(FileProgress fileProgress) {
+        if (fileSet.remove(fileProgress)) {
+            finishedBytes.addAndGet(fileProgress.size);
+        }
+    }
+
+    /**
+     * Change the total size when files are added to or removed from the session
+     *
+     * @param bytes Number of bytes added, or negative if removed
+     */
+    public synchronized void addAllBytes(long bytes) {
+        allBytes += bytes;
+    }
+
+    /**
+     * Get the total size of the files to upload
+     *
+     * @return Number of bytes
+     */
+    public long getAllBytes() {
+        return allBytes;
+    }
+
+    /**
+     * Get the number of bytes uploaded in the session. A file being uploaded counts the part sent.
+     *
+     * @return Number of bytes, in the sizes of the files
+     */
+    public synchronized long getUploadedBytes() {
+        long uploadedBytes = finishedBytes.get();
+        for (FileProgress fileProgress : fileSet) {
+            uploadedBytes += fileProgress.getUploadedBytes();
+        }
+        return Math.min(uploadedBytes, allBytes);
+    }
+
+    /**
+     * Get the number of bytes sent to the transports, including retries
+     *
+     * @return Number of bytes
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Get the files being uploaded
+     *
+     * @return Files in the order started
+     */
+    public synchronized List<FileProgress> getFileList() {
+        return new ArrayList<>(fileSet);
+    }
+
+    /**
+     * Update the throughput with the bytes sent since the last sample.
+     * Samples closer than 500 milliseconds keep the previous values.
+     *
+     * @param nowMSec Current time
+     */
+    public synchronized void sample(long nowMSec) {
+        long intervalMSec = nowMSec - sampleMSec;
+        if (intervalMSec < MIN_SAMPLE_INTERVAL_MSEC) {
+            return;
+        }
+        long bytes = sentBytes.get();
+        bytesPerSec = (bytes - sampleSentBytes) * 1000.0 / intervalMSec;
+        if (hasSample) {
+            // The weight depends on the interval, so that irregular polling gives the same average
+            double weight = 1 - Math.exp(-intervalMSec / EWMA_TIME_CONSTANT_MSEC);
+            ewmaBytesPerSec += weight * (bytesPerSec - ewmaBytesPerSec);
+        } else {
+            ewmaBytesPerSec = bytesPerSec;
+            hasSample = true;
+        }
+        sampleMSec = nowMSec;
+        sampleSentBytes = bytes;
+    }
+
+    /**
+     * Get the throughput between the last two samples
+     *
+     * @return Bytes per second
+     */
+    public synchronized long getBytesPerSec() {
+        return Math.round(bytesPerSec);
+    }
+
+    /**
+     * Get the average throughput
+     *
+     * @return Bytes per second
+     */
+    public synchronized long getEwmaBytesPerSec() {
+        return Math.round(ewmaBytesPerSec);
+    }
+
+    /**
+     * Get the estimated time until the session ends at the average throughput
+     *
+     * @return Seconds, or -1 if not known yet
+     */
+    public synchronized long getEtaSec() {
+        if (ewmaBytesPerSec < 1) {
+            return -1;
+        }
+        return (long) Math.ceil((allBytes - getUploadedBytes()) / ewmaBytesPerSec);
+    }
+
+    /**
+     * Progress of a file
+     */
+    public class FileProgress {
+        private final String name;
+        private final long size;
+        private volatile long transferBytes;
+        private final AtomicLong fileSentBytes = new AtomicLong();
+
+        private FileProgress(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * Set the number of bytes expected to be sent for the file
+         *
+         * @param transferBytes Length of the data times the number of destinations
+         */
+        public void setTransferBytes(long transferBytes) {
+            this.transferBytes = transferBytes;
+        }
+
+        /**
+         * Count the data that a transport reads from the stream
+         *
+         * @param in Data to send
+         * @return Stream to pass to the transport
+         */
+        public InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        add(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int length = super.read(b, off, len);
+                    if (length > 0) {
+                        add(length);
+                    }
+                    return length;
+                }
+            };
+        }
+
+        private void add(long bytes) {
+            fileSentBytes.addAndGet(bytes);
+            sentBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Get the file name
+         *
+         * @return File name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the size of the file
+         *
+         * @return Number of bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the number of bytes sent for the file
+         *
+         * @return Number of bytes, including retries
+         */
+        public long getSentBytes() {
+            return fileSentBytes.get();
+        }
+
+        /**
+         * Get the uploaded part of the file in its size. A smaller copy or several destinations are scaled to the size.
+         *
+         * @return Number of bytes
+         */
+        public long getUploadedBytes() {
+            long bytes = transferBytes;
+            if (bytes <= 0) {
+                return 0;
+            }
+            return Math.min(size, (long) (size * ((double) fileSentBytes.get() / bytes)));
+        }
+    }
+}
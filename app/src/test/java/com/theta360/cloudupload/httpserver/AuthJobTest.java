@@ -0,0 +1,77 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test AuthJob.
+ */
+public class AuthJobTest {
+
+    @Test
+    public void await_returnsWhenCodeArrives() throws Exception {
+        AuthJob job = new AuthJob("job", 10000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<AuthJob.State> future = executor.submit(() -> job.await(5000));
+            Thread.sleep(50);
+            assertFalse(future.isDone());
+            assertTrue(job.complete("ABCD-EFGH", "https://example.com/device"));
+
+            assertEquals(AuthJob.State.CODE_READY, future.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Map<String, Object> map = job.toMap();
+        assertEquals("job", map.get("job_id"));
+        assertEquals("code_ready", map.get("state"));
+        assertEquals("ABCD-EFGH", map.get("user_code"));
+        assertEquals("https://example.com/device", map.get("google_auth_url"));
+    }
+
+    @Test
+    public void await_returnsRunningAfterWait() throws Exception {
+        AuthJob job = new AuthJob("job", 10000);
+        long startMSec = System.currentTimeMillis();
+        assertEquals(AuthJob.State.RUNNING, job.await(100));
+        assertTrue(System.currentTimeMillis() - startMSec >= 100);
+    }
+
+    @Test
+    public void await_failsAfterTimeout() throws Exception {
+        AuthJob job = new AuthJob("job", 100);
+        assertEquals(AuthJob.State.FAILED, job.await(5000));
+        assertEquals("timeout", job.toMap().get("error"));
+        assertFalse("late result is ignored", job.complete("ABCD-EFGH", "https://example.com/device"));
+        assertNull(job.getUserCode());
+    }
+
+    @Test
+    public void succeed_endsJobWithoutCode() throws Exception {
+        AuthJob job = new AuthJob("job", 10000);
+        assertTrue(job.succeed());
+        assertEquals(AuthJob.State.SUCCEEDED, job.await(5000));
+        assertFalse(job.fail("cancelled"));
+        Map<String, Object> map = job.toMap();
+        assertEquals("succeeded", map.get("state"));
+        assertNull(map.get("user_code"));
+        assertNull(map.get("error"));
+    }
+
+    @Test
+    public void fail_endsJobOnce() {
+        AuthJob job = new AuthJob("job", 10000);
+        assertTrue(job.fail("cancelled"));
+        assertFalse(job.fail("other"));
+        assertFalse(job.complete("ABCD-EFGH", "https://example.com/device"));
+        assertEquals(AuthJob.State.FAILED, job.getState());
+        assertEquals("cancelled", job.toMap().get("error"));
+    }
+}
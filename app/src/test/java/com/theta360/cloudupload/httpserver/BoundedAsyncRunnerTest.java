@@ -0,0 +1,85 @@
+package com.theta360.cloudupload.httpserver;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test BoundedAsyncRunner.
+ */
+public class BoundedAsyncRunnerTest {
+
+    @Test
+    public void exec_queuesThenRejectsConnectionsOverLimit() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        BoundedAsyncRunner runner = new BoundedAsyncRunner("http", 1, 1, 1000, Thread.MIN_PRIORITY);
+        NanoHTTPD server = new NanoHTTPD(0) {
+            @Override
+            public Response serve(IHTTPSession session) {
+                threadName.set(Thread.currentThread().getName() + ":" + Thread.currentThread().getPriority());
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return newFixedLengthResponse("ok");
+            }
+        };
+        server.setAsyncRunner(runner);
+        server.start(5000);
+        try (Socket first = request(server); Socket second = request(server); Socket third = request(server)) {
+            waitFor(() -> runner.getRejectedCount() == 1 && threadName.get() != null);
+            assertEquals(1, runner.getActiveCount());
+            assertEquals(1, runner.getQueuedCount());
+            assertEquals(-1, third.getInputStream().read());
+            assertEquals("http-1:" + Thread.MIN_PRIORITY, threadName.get());
+
+            release.countDown();
+            assertTrue(readAll(first.getInputStream()).endsWith("ok"));
+            assertTrue(readAll(second.getInputStream()).endsWith("ok"));
+        } finally {
+            server.stop();
+            runner.shutdown();
+        }
+    }
+
+    private static Socket request(NanoHTTPD server) throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+        OutputStream os = socket.getOutputStream();
+        os.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        return socket;
+    }
+
+    private static String readAll(InputStream is) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            sb.append(new String(buffer, 0, length, StandardCharsets.US_ASCII));
+        }
+        return sb.toString();
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
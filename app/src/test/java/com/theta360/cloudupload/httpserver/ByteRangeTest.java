@@ -0,0 +1,67 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test ByteRange.
+ */
+public class ByteRangeTest {
+    @Test
+    public void parse_closedRange() {
+        ByteRange range = ByteRange.parse("bytes=0-499", 1000);
+        assertTrue(range.isSatisfiable());
+        assertEquals(0, range.getStart());
+        assertEquals(499, range.getEnd());
+        assertEquals(500, range.getLength());
+        assertEquals("bytes 0-499/1000", range.getContentRange());
+    }
+
+    @Test
+    public void parse_openRangeAndEndAfterFileAreClamped() {
+        ByteRange open = ByteRange.parse("bytes=900-", 1000);
+        assertEquals(900, open.getStart());
+        assertEquals(999, open.getEnd());
+
+        ByteRange clamped = ByteRange.parse("bytes=900-5000", 1000);
+        assertEquals("bytes 900-999/1000", clamped.getContentRange());
+    }
+
+    @Test
+    public void parse_suffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-100", 1000);
+        assertEquals(900, range.getStart());
+        assertEquals(999, range.getEnd());
+
+        ByteRange whole = ByteRange.parse("bytes=-5000", 1000);
+        assertEquals(0, whole.getStart());
+        assertEquals(1000, whole.getLength());
+    }
+
+    @Test
+    public void parse_rangeAfterFileIsNotSatisfiable() {
+        ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */1000", range.getContentRange());
+        assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=-10", 0).isSatisfiable());
+    }
+
+    @Test
+    public void parse_ignoresAbsentMalformedAndMultipleRanges() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc-", 1000));
+        assertNull(ByteRange.parse("bytes=500-100", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+    }
+
+    @Test
+    public void parse_largeVideoOffsets() {
+        long length = 3L * 1024 * 1024 * 1024 + 12345;
+        ByteRange range = ByteRange.parse("bytes=3221225472-", length);
+        assertEquals(12345, range.getLength());
+    }
+}
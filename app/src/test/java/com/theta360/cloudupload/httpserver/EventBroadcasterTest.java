@@ -0,0 +1,77 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test EventBroadcaster.
+ */
+public class EventBroadcasterTest {
+
+    @Test
+    public void subscribe_sendsCurrentStatusThenChanges() throws Exception {
+        final AtomicInteger value = new AtomicInteger(1);
+        EventBroadcaster broadcaster = new EventBroadcaster(() -> "{\"current\":" + value.get() + "}", 50, 60000);
+        InputStream first = broadcaster.subscribe();
+        InputStream second = broadcaster.subscribe();
+        assertEquals(2, broadcaster.getSubscriberCount());
+        assertEquals("data: {\"current\":1}\n\n", readEvent(first));
+        assertEquals("data: {\"current\":1}\n\n", readEvent(second));
+
+        value.set(2);
+        broadcaster.notifyChanged();
+        assertEquals("data: {\"current\":2}\n\n", readEvent(first));
+        assertEquals("data: {\"current\":2}\n\n", readEvent(second));
+
+        first.close();
+        assertEquals(1, broadcaster.getSubscriberCount());
+        assertEquals(-1, first.read());
+        broadcaster.close();
+        assertEquals(-1, second.read());
+    }
+
+    @Test
+    public void broadcast_coalescesChangesWithinInterval() throws Exception {
+        final AtomicInteger value = new AtomicInteger(0);
+        final AtomicInteger buildCount = new AtomicInteger(0);
+        EventBroadcaster broadcaster = new EventBroadcaster(() -> {
+            buildCount.incrementAndGet();
+            return String.valueOf(value.get());
+        }, 200, 60000);
+        InputStream stream = broadcaster.subscribe();
+        assertEquals("data: 0\n\n", readEvent(stream));
+        for (int i = 1; i <= 100; i++) {
+            value.set(i);
+            broadcaster.notifyChanged();
+        }
+        // Only the latest status waits for a slow viewer
+        Thread.sleep(500);
+        assertEquals("data: 100\n\n", readEvent(stream));
+        assertTrue("built " + buildCount.get() + " times", buildCount.get() < 10);
+        broadcaster.close();
+    }
+
+    @Test
+    public void broadcast_sendsHeartbeatWhenUnchanged() throws Exception {
+        EventBroadcaster broadcaster = new EventBroadcaster(() -> "{}", 20, 100);
+        InputStream stream = broadcaster.subscribe();
+        assertEquals("data: {}\n\n", readEvent(stream));
+        assertEquals(":\n\n", readEvent(stream));
+        broadcaster.close();
+    }
+
+    private static String readEvent(InputStream stream) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[1];
+        while (!sb.toString().endsWith("\n\n")) {
+            assertEquals(1, stream.read(buffer, 0, 1));
+            sb.append(new String(buffer, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+}
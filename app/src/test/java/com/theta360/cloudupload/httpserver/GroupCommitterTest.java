@@ -0,0 +1,146 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test GroupCommitter.
+ */
+public class GroupCommitterTest {
+    private final List<List<Integer>> groupList = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    @Test
+    public void add_writesFullGroupsAtOnce() throws Exception {
+        final Semaphore written = new Semaphore(0);
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> {
+            groupList.add(new ArrayList<>(group));
+            written.release();
+        }, 3, 60 * 1000);
+        for (int i = 0; i < 6; i++) {
+            committer.add(i);
+            if (i % 3 == 2) {
+                assertTrue(written.tryAcquire(5, TimeUnit.SECONDS));
+            }
+        }
+        committer.add(6);
+        assertEquals(Arrays.asList(0, 1, 2), groupList.get(0));
+        assertEquals(Arrays.asList(3, 4, 5), groupList.get(1));
+
+        committer.close();
+        assertEquals(Arrays.asList(6), groupList.get(2));
+        assertEquals(7, committer.getCommittedCount());
+        assertEquals(3, committer.getGroupCount());
+    }
+
+    @Test
+    public void add_writesAfterTheDelay() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> {
+            groupList.add(new ArrayList<>(group));
+            latch.countDown();
+        }, 100, 50);
+        long startMSec = System.currentTimeMillis();
+        committer.add(1);
+        committer.add(2);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - startMSec >= 40);
+        assertEquals(Arrays.asList(1, 2), groupList.get(0));
+        committer.close();
+    }
+
+    @Test
+    public void flush_waitsForPendingItems() {
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> groupList.add(new ArrayList<>(group)), 100, 60 * 1000);
+        committer.add(1);
+        committer.add(2);
+        committer.flush();
+        assertEquals(1, groupList.size());
+        assertEquals(Arrays.asList(1, 2), groupList.get(0));
+
+        committer.flush();
+        assertEquals("nothing to write", 1, groupList.size());
+        committer.close();
+    }
+
+    @Test
+    public void add_afterCloseWritesAtOnce() {
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> groupList.add(new ArrayList<>(group)), 100, 60 * 1000);
+        committer.close();
+        committer.add(1);
+        assertEquals(Arrays.asList(1), groupList.get(0));
+        committer.flush();
+        assertEquals(1, committer.getCommittedCount());
+    }
+
+    @Test
+    public void add_retriesFailedGroupWithNextItems() throws Exception {
+        final AtomicInteger failCount = new AtomicInteger(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> {
+            groupList.add(new ArrayList<>(group));
+            if (failCount.getAndDecrement() > 0) {
+                throw new IllegalStateException("database is locked");
+            }
+            latch.countDown();
+        }, 100, 50);
+        committer.add(1);
+        committer.add(2);
+        while (groupList.isEmpty()) {
+            Thread.sleep(10);
+        }
+        committer.add(3);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        committer.close();
+
+        assertEquals(Arrays.asList(1, 2), groupList.get(0));
+        assertEquals(Arrays.asList(1, 2, 3), groupList.get(1));
+        assertEquals(2, groupList.size());
+        assertEquals(3, committer.getCommittedCount());
+    }
+
+    @Test
+    public void close_writesItemsOneByOneWhenRetryFails() {
+        final List<Integer> writtenList = Collections.synchronizedList(new ArrayList<Integer>());
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> {
+            if (group.contains(2)) {
+                throw new IllegalStateException("constraint failed");
+            }
+            writtenList.addAll(group);
+        }, 100, 60 * 1000);
+        committer.add(1);
+        committer.add(2);
+        committer.add(3);
+        committer.close();
+
+        // Only the item that fails alone is dropped
+        assertEquals(Arrays.asList(1, 3), writtenList);
+        assertEquals(2, committer.getCommittedCount());
+    }
+
+    @Test
+    public void add_continuesAfterFailedGroup() {
+        final List<Integer> writtenList = new ArrayList<>();
+        GroupCommitter<Integer> committer = new GroupCommitter<>(group -> {
+            if (group.contains(1)) {
+                throw new IllegalStateException("disk full");
+            }
+            writtenList.addAll(group);
+        }, 100, 60 * 1000);
+        committer.add(1);
+        committer.flush();
+        committer.add(2);
+        committer.close();
+        assertEquals(Arrays.asList(2), writtenList);
+        assertEquals(1, committer.getCommittedCount());
+    }
+}
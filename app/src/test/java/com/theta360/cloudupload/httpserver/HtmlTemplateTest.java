@@ -0,0 +1,44 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test HtmlTemplate.
+ */
+public class HtmlTemplateTest {
+
+    @Test
+    public void render_fillsSlotsWithoutRegexEscaping() {
+        HtmlTemplate template = new HtmlTemplate("<p>#A#</p><script>#B#</script>#A#", "A", "B");
+        assertEquals(3, template.getSlotCount());
+
+        Map<String, String> values = new HashMap<>();
+        values.put("A", "é");
+        values.put("B", "$('#x').text('$1\\n');");
+        byte[] page = template.render(values);
+
+        assertEquals("<p>é</p><script>$('#x').text('$1\\n');</script>é",
+                new String(page, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void render_leavesMissingAndUnknownSlots() {
+        HtmlTemplate template = new HtmlTemplate("#A# #OTHER# color: #fff", "A");
+        assertEquals(" #OTHER# color: #fff", new String(template.render(new HashMap<>()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void read_withoutSlotsKeepsPage() throws Exception {
+        byte[] source = "<html>\r\n</html>".getBytes(StandardCharsets.UTF_8);
+        HtmlTemplate template = HtmlTemplate.read(new ByteArrayInputStream(source), "JS_INJECTION");
+        assertEquals(0, template.getSlotCount());
+        assertArrayEquals(source, template.render(new HashMap<>()));
+    }
+}
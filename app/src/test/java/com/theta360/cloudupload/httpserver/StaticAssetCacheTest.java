@@ -0,0 +1,86 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test StaticAssetCache.
+ */
+public class StaticAssetCacheTest {
+    private static final String SCRIPT = new String(new char[200]).replace("\0", "function f() { return 1; }\n");
+    // 2018-07-20 00:00:00.500 GMT
+    private static final long INSTALLED_MSEC = 1532044800500L;
+
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final StaticAssetCache cache = new StaticAssetCache(name -> {
+        openCount.incrementAndGet();
+        if (name.equals("js/jquery.js") || name.equals("css/design.css")) {
+            return new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8));
+        } else if (name.equals("img/101.png")) {
+            return new ByteArrayInputStream(new byte[]{(byte) 0x89, 'P', 'N', 'G'});
+        }
+        throw new FileNotFoundException(name);
+    }, INSTALLED_MSEC);
+
+    @Test
+    public void get_readsAssetOnceAndCompressesText() throws Exception {
+        StaticAssetCache.Asset asset = cache.get("js/jquery.js");
+        assertSame(asset, cache.get("js/jquery.js"));
+        assertEquals(1, openCount.get());
+        assertEquals(SCRIPT, new String(asset.getData(), StandardCharsets.UTF_8));
+        assertTrue(asset.getGzipData().length < asset.getData().length / 10);
+        assertEquals(SCRIPT, gunzip(asset.getGzipData()));
+        assertNull(cache.get("img/101.png").getGzipData());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void get_throwsForMissingAsset() throws Exception {
+        cache.get("js/missing.js");
+    }
+
+    @Test
+    public void getMimeType_sendsCssAsCss() {
+        assertEquals("text/css; charset=UTF-8", StaticAssetCache.getMimeType("css/design.css"));
+        assertEquals("application/javascript; charset=UTF-8", StaticAssetCache.getMimeType("js/jquery.js"));
+        assertEquals("image/png", StaticAssetCache.getMimeType("img/101.PNG"));
+        assertEquals("text/plain; charset=UTF-8", StaticAssetCache.getMimeType("i18n/Messages.properties"));
+    }
+
+    @Test
+    public void isNotModified_matchesEtagThenDate() throws Exception {
+        StaticAssetCache.Asset asset = cache.get("js/jquery.js");
+        assertEquals(asset.getEtag(), cache.get("css/design.css").getEtag());
+        assertTrue(asset.getEtag().startsWith("\""));
+        assertEquals("Fri, 20 Jul 2018 00:00:00 GMT", asset.getLastModified());
+
+        assertTrue(asset.isNotModified(asset.getEtag(), null));
+        assertTrue(asset.isNotModified("\"other\", " + asset.getEtag(), null));
+        assertTrue(asset.isNotModified("W/" + asset.getEtag(), null));
+        assertFalse(asset.isNotModified("\"other\"", asset.getLastModified()));
+        assertTrue(asset.isNotModified(null, asset.getLastModified()));
+        assertFalse(asset.isNotModified(null, "Thu, 19 Jul 2018 23:59:59 GMT"));
+        assertFalse(asset.isNotModified(null, "invalid"));
+        assertFalse(asset.isNotModified(null, null));
+    }
+
+    private static String gunzip(byte[] data) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+        }
+        return new String(os.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,177 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test ThumbnailCache.
+ */
+public class ThumbnailCacheTest {
+    private static final int THUMBNAIL_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final AtomicInteger makeCount = new AtomicInteger();
+
+    @Test
+    public void get_makesOnceAndEvictsLeastRecentlyUsed() throws Exception {
+        File directory = temporaryFolder.newFolder("cache");
+        ThumbnailCache cache = new ThumbnailCache(directory, 2 * THUMBNAIL_SIZE, this::make);
+        File first = writePhoto("R0010001.JPG", 1);
+        File second = writePhoto("R0010002.JPG", 2);
+        File third = writePhoto("R0010003.JPG", 3);
+
+        assertEquals(1, cache.get(first)[0]);
+        assertEquals(2, cache.get(second)[0]);
+        assertEquals(1, cache.get(first)[0]);
+        assertEquals(2, makeCount.get());
+        assertEquals(1, cache.getHitCount());
+
+        // The second is the least recently used
+        cache.get(third);
+        assertEquals(2 * THUMBNAIL_SIZE, cache.getTotalBytes());
+        assertEquals(2, directory.listFiles().length);
+        cache.get(first);
+        assertEquals(3, makeCount.get());
+        cache.get(second);
+        assertEquals(4, makeCount.get());
+    }
+
+    @Test
+    public void get_makesAgainWhenPhotoChanges() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(temporaryFolder.newFolder("cache"), 10 * THUMBNAIL_SIZE, this::make);
+        File photo = writePhoto("R0010001.JPG", 1);
+        String etag = cache.getEtag(photo);
+        cache.get(photo);
+
+        try (OutputStream os = new FileOutputStream(photo, true)) {
+            os.write(7);
+        }
+        assertNotEquals(etag, cache.getEtag(photo));
+        cache.get(photo);
+        assertEquals(2, makeCount.get());
+    }
+
+    @Test
+    public void constructor_keepsFilesOfPreviousRunInUseOrder() throws Exception {
+        File directory = temporaryFolder.newFolder("cache");
+        File first = writePhoto("R0010001.JPG", 1);
+        File second = writePhoto("R0010002.JPG", 2);
+        ThumbnailCache cache = new ThumbnailCache(directory, 2 * THUMBNAIL_SIZE, this::make);
+        cache.get(first);
+        cache.get(second);
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            file.setLastModified(file.getName().equals(cache.getEtag(first).replace("\"", "") + ".jpg") ? 2000000000000L : 1000000000000L);
+        }
+        new File(directory, "left.jpg.tmp").createNewFile();
+
+        ThumbnailCache reopened = new ThumbnailCache(directory, 2 * THUMBNAIL_SIZE, this::make);
+        assertEquals(2 * THUMBNAIL_SIZE, reopened.getTotalBytes());
+        assertEquals(2, directory.listFiles().length);
+        reopened.get(writePhoto("R0010003.JPG", 3));
+        // The second was used before the first
+        reopened.get(first);
+        assertEquals(3, makeCount.get());
+        reopened.get(second);
+        assertEquals(4, makeCount.get());
+    }
+
+    @Test
+    public void get_mergesConcurrentRequests() throws Exception {
+        CountDownLatch makingLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        ThumbnailCache cache = new ThumbnailCache(temporaryFolder.newFolder("cache"), 10 * THUMBNAIL_SIZE, file -> {
+            makingLatch.countDown();
+            releaseLatch.await();
+            return make(file);
+        });
+        File photo = writePhoto("R0010001.JPG", 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> futureList = new ArrayList<>();
+            futureList.add(executor.submit(() -> cache.get(photo)));
+            assertTrue(makingLatch.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                futureList.add(executor.submit(() -> cache.get(photo)));
+            }
+            while (cache.getMergedCount() < 3) {
+                Thread.sleep(10);
+            }
+            releaseLatch.countDown();
+            for (Future<byte[]> future : futureList) {
+                assertEquals(THUMBNAIL_SIZE, future.get(5, TimeUnit.SECONDS).length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, makeCount.get());
+        assertEquals(1, cache.getMakeCount());
+    }
+
+    @Test
+    public void get_makesAgainWhenCacheFileIsMissing() throws Exception {
+        File directory = temporaryFolder.newFolder("cache");
+        ThumbnailCache cache = new ThumbnailCache(directory, 10 * THUMBNAIL_SIZE, this::make);
+        File photo = writePhoto("R0010001.JPG", 1);
+        cache.get(photo);
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+
+        assertEquals(1, cache.get(photo)[0]);
+        assertEquals(2, makeCount.get());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(THUMBNAIL_SIZE, cache.getTotalBytes());
+        assertEquals(1, cache.get(photo)[0]);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void get_reportsErrorToAllWaiters() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(temporaryFolder.newFolder("cache"), 10 * THUMBNAIL_SIZE, file -> {
+            throw new IOException("broken");
+        });
+        try {
+            cache.get(writePhoto("R0010001.JPG", 1));
+            fail();
+        } catch (IOException ex) {
+            assertEquals("broken", ex.getMessage());
+        }
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    private byte[] make(File file) throws IOException {
+        makeCount.incrementAndGet();
+        byte[] data = new byte[THUMBNAIL_SIZE];
+        data[0] = (byte) file.getName().charAt(file.getName().length() - 5);
+        data[0] -= '0';
+        return data;
+    }
+
+    private File writePhoto(String name, int value) throws IOException {
+        File file = temporaryFolder.newFile(name);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[]{(byte) value, 1, 2, 3});
+        }
+        return file;
+    }
+}
@@ -0,0 +1,77 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test UploadQueuePolicy.
+ */
+public class UploadQueuePolicyTest {
+    private final List<PhotoInformation> photoList = Arrays.asList(
+            createPhoto("/DCIM/R0010001.JPG", "2018:07:20 10:00:00", 4000),
+            createPhoto("/DCIM/R0010002.MP4", "2018:07:20 12:00:00", 90000),
+            createPhoto("/DCIM/R0010003.JPG", "2018:07:20 11:00:00", 3000),
+            createPhoto("/DCIM/R0010004.JPG", "2018:07:19 09:00:00", 5000));
+
+    @Test
+    public void fifo_keepsOrderFound() {
+        assertEquals(Arrays.asList("R0010001", "R0010002", "R0010003", "R0010004"), getNames(UploadQueuePolicy.FIFO, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void newestFirst_ordersByShootingDate() {
+        assertEquals(Arrays.asList("R0010002", "R0010003", "R0010001", "R0010004"), getNames(UploadQueuePolicy.NEWEST_FIRST, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void smallestFirst_ordersBySize() {
+        assertEquals(Arrays.asList("R0010003", "R0010001", "R0010004", "R0010002"), getNames(UploadQueuePolicy.SMALLEST_FIRST, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void specifiedFirst_movesSpecifiedPhotosAhead() {
+        List<PhotoInformation> orderedList = UploadQueuePolicy.SPECIFIED_FIRST.order(photoList,
+                new HashSet<>(Collections.singletonList("/DCIM/R0010004.JPG")), Long.MAX_VALUE);
+        assertEquals("/DCIM/R0010004.JPG", orderedList.get(0).getPath());
+        assertEquals("/DCIM/R0010001.JPG", orderedList.get(1).getPath());
+        assertEquals(4, orderedList.size());
+    }
+
+    @Test
+    public void deadline_putsFilesThatDoNotFitLast() {
+        // The video does not fit before the deadline, so the photos go first, newest first
+        assertEquals(Arrays.asList("R0010003", "R0010001", "R0010004", "R0010002"), getNames(UploadQueuePolicy.DEADLINE, 20000));
+        assertEquals(Arrays.asList("R0010002", "R0010003", "R0010001", "R0010004"), getNames(UploadQueuePolicy.DEADLINE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void getPolicy_fallsBackToFifo() {
+        assertEquals(UploadQueuePolicy.NEWEST_FIRST, UploadQueuePolicy.getPolicy("newest"));
+        assertEquals(UploadQueuePolicy.FIFO, UploadQueuePolicy.getPolicy("unknown"));
+        assertEquals(UploadQueuePolicy.FIFO, UploadQueuePolicy.getPolicy(null));
+    }
+
+    private List<String> getNames(UploadQueuePolicy policy, long deadlineBytes) {
+        List<String> nameList = new ArrayList<>();
+        for (PhotoInformation photoInformation : policy.order(photoList, Collections.<String>emptySet(), deadlineBytes)) {
+            String path = photoInformation.getPath();
+            nameList.add(path.substring(path.lastIndexOf('/') + 1, path.lastIndexOf('.')));
+        }
+        return nameList;
+    }
+
+    private static PhotoInformation createPhoto(String path, String datetime, long size) {
+        PhotoInformation photoInformation = new PhotoInformation();
+        photoInformation.setPath(path);
+        photoInformation.setDatetime(datetime);
+        photoInformation.setSize(size);
+        return photoInformation;
+    }
+}
@@ -0,0 +1,229 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test UploadQueue.
+ */
+public class UploadQueueTest {
+
+    @Test
+    public void list_pagesByIdWithState() {
+        UploadQueue queue = new UploadQueue(createPhotoList(50000));
+        for (int i = 0; i < 10; i++) {
+            UploadQueue.Item item = takeNow(queue);
+            queue.finish(item, i % 2 == 0);
+        }
+
+        List<UploadQueue.Item> page = queue.list(null, 0, 3);
+        assertEquals(Arrays.asList(1L, 2L, 3L), getIdList(page));
+        assertEquals(Arrays.asList(4L, 5L, 6L), getIdList(queue.list(null, 3, 3)));
+        assertEquals(Arrays.asList(2L, 4L, 6L, 8L, 10L), getIdList(queue.list(UploadQueue.State.FAILED, 0, 100)));
+        assertEquals(Arrays.asList(8L, 10L), getIdList(queue.list(UploadQueue.State.FAILED, 6, 100)));
+        assertEquals(Arrays.asList(49999L, 50000L), getIdList(queue.list(UploadQueue.State.PENDING, 49998, 100)));
+        assertEquals(UploadQueue.MAX_PAGE_SIZE, queue.list(UploadQueue.State.PENDING, 0, 100000).size());
+        assertEquals(49990, queue.getCount(UploadQueue.State.PENDING));
+        assertEquals(5, queue.getCount(UploadQueue.State.UPLOADED));
+    }
+
+    @Test
+    public void moveToFront_changesTakeOrderAndNextFile() throws Exception {
+        UploadQueue queue = new UploadQueue(createPhotoList(5));
+        assertEquals(2, queue.moveToFront(Arrays.asList(4L, 2L, 4L)));
+
+        assertEquals("/photo/R0000004.JPG", queue.next(new HashSet<String>()).getPath());
+        assertEquals(4L, takeNow(queue).getId());
+        Set<String> handledPathSet = new HashSet<>();
+        handledPathSet.add(new File("/photo/R0000004.JPG").getAbsolutePath());
+        assertEquals("uploading item comes first, then the front", "/photo/R0000002.JPG", queue.next(handledPathSet).getPath());
+        assertEquals(2L, takeNow(queue).getId());
+        assertEquals(1L, takeNow(queue).getId());
+        assertEquals(0, queue.moveToFront(Arrays.asList(1L, 99L)));
+    }
+
+    @Test
+    public void cancel_stopsUploadingItemOnly() throws Exception {
+        UploadQueue queue = new UploadQueue(createPhotoList(3));
+        List<Long> cancelledList = new ArrayList<>();
+        queue.setListener(new UploadQueue.Listener() {
+            @Override
+            public void onCancelled(UploadQueue.Item item, boolean wasPending) {
+                // The listener may wait for the workers
+                assertFalse(Thread.holdsLock(queue));
+                cancelledList.add(wasPending ? item.getId() : -item.getId());
+            }
+
+            @Override
+            public void onRetried(UploadQueue.Item item) {
+            }
+        });
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Long>> future = executor.submit(() -> {
+                List<Long> uploadedList = new ArrayList<>();
+                UploadQueue.Item item;
+                while ((item = queue.take()) != null) {
+                    boolean isUploaded = false;
+                    try {
+                        if (item.getId() == 1) {
+                            startedLatch.countDown();
+                            InputStream is = item.wrap(new ByteArrayInputStream(new byte[16]));
+                            while (true) {
+                                is.read();
+                                Thread.sleep(10);
+                            }
+                        }
+                        isUploaded = true;
+                        uploadedList.add(item.getId());
+                    } catch (InterruptedException | InterruptedIOException ex) {
+                        assertTrue(item.isCancelled());
+                    } finally {
+                        queue.finish(item, isUploaded);
+                    }
+                    assertFalse("worker goes on", Thread.currentThread().isInterrupted());
+                }
+                return uploadedList;
+            });
+            assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+            assertEquals(2, queue.cancel(Arrays.asList(1L, 3L)));
+
+            assertEquals(Arrays.asList(2L), future.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(Arrays.asList(-1L, 3L), cancelledList);
+        assertEquals(UploadQueue.State.CANCELLED, queue.list(null, 0, 1).get(0).getState());
+        assertTrue("finished when nothing is left", queue.isClosed());
+        assertNull(queue.next(new HashSet<String>()));
+    }
+
+    @Test
+    public void retry_requeuesFailedItemsWhileOpen() throws Exception {
+        UploadQueue queue = new UploadQueue(createPhotoList(3));
+        List<Long> retriedList = new ArrayList<>();
+        queue.setListener(new UploadQueue.Listener() {
+            @Override
+            public void onCancelled(UploadQueue.Item item, boolean wasPending) {
+            }
+
+            @Override
+            public void onRetried(UploadQueue.Item item) {
+                retriedList.add(item.getId());
+            }
+        });
+        UploadQueue.Item first = takeNow(queue);
+        UploadQueue.Item second = takeNow(queue);
+        queue.finish(first, false);
+        queue.finish(second, false);
+
+        assertEquals(1, queue.retry(Arrays.asList(2L, 3L)));
+        assertEquals(Arrays.asList(2L), retriedList);
+        assertEquals(3L, takeNow(queue).getId());
+        assertEquals(2L, takeNow(queue).getId());
+        assertEquals(1, queue.retry(null));
+        assertEquals(1L, takeNow(queue).getId());
+
+        queue.close();
+        assertEquals(0, queue.retry(null));
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void take_waitsWhileOtherItemsUpload() throws Exception {
+        UploadQueue queue = new UploadQueue(createPhotoList(2));
+        UploadQueue.Item first = takeNow(queue);
+        UploadQueue.Item second = takeNow(queue);
+        queue.finish(first, false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<UploadQueue.Item> future = executor.submit(queue::take);
+            Thread.sleep(50);
+            assertFalse(future.isDone());
+            queue.retry(null);
+
+            assertEquals(1L, future.get(5, TimeUnit.SECONDS).getId());
+            queue.finish(second, true);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(queue.isClosed());
+    }
+
+    @Test
+    public void finish_keepsItemCommittingUntilBatchIsCommitted() {
+        UploadQueue queue = new UploadQueue(createPhotoList(3));
+        UploadQueue.Item first = takeNow(queue);
+        first.addPendingCommit();
+        queue.finish(first, true);
+        assertEquals(UploadQueue.State.COMMITTING, first.getState());
+        first.finishCommit(true);
+        assertEquals(UploadQueue.State.UPLOADED, first.getState());
+
+        // Two destinations, and one rejects the file
+        UploadQueue.Item second = takeNow(queue);
+        second.addPendingCommit();
+        second.addPendingCommit();
+        queue.finish(second, true);
+        second.finishCommit(false);
+        assertEquals(UploadQueue.State.COMMITTING, second.getState());
+        second.finishCommit(true);
+        assertEquals(UploadQueue.State.FAILED, second.getState());
+
+        // The batch is committed before the worker finishes the item
+        UploadQueue.Item third = takeNow(queue);
+        third.addPendingCommit();
+        third.finishCommit(false);
+        queue.finish(third, true);
+        assertEquals(UploadQueue.State.FAILED, third.getState());
+
+        assertEquals(2, queue.retry(null));
+        assertEquals(2L, takeNow(queue).getId());
+    }
+
+    private static UploadQueue.Item takeNow(UploadQueue queue) {
+        try {
+            UploadQueue.Item item = queue.take();
+            assertNotNull(item);
+            return item;
+        } catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static List<PhotoInformation> createPhotoList(int count) {
+        List<PhotoInformation> photoList = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            PhotoInformation photoInformation = new PhotoInformation();
+            photoInformation.setPath(String.format("/photo/R%07d.JPG", i));
+            photoInformation.setSize(i);
+            photoList.add(photoInformation);
+        }
+        return photoList;
+    }
+
+    private static List<Long> getIdList(List<UploadQueue.Item> itemList) {
+        List<Long> idList = new ArrayList<>();
+        for (UploadQueue.Item item : itemList) {
+            idList.add(item.getId());
+        }
+        return idList;
+    }
+}
@@ -0,0 +1,118 @@
+package com.theta360.cloudupload.httpserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test ZipExportStream.
+ */
+public class ZipExportStreamTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void read_createsStoredArchive() throws Exception {
+        Map<String, File> fileMap = new LinkedHashMap<>();
+        fileMap.put("DCIM/100RICOH/R0010001.JPG", createFile("a.jpg", 100000));
+        fileMap.put("DCIM/100RICOH/R0010002.JPG", createFile("b.jpg", 0));
+        fileMap.put("Pictures/写真.jpg", createFile("c.jpg", 1234));
+
+        File zip = writeArchive(new ZipExportStream(fileMap, 4096));
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(3, zipFile.size());
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            for (Map.Entry<String, File> fileEntry : fileMap.entrySet()) {
+                ZipEntry entry = entries.nextElement();
+                assertEquals(fileEntry.getKey(), entry.getName());
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                byte[] expected = readAll(new FileInputStream(fileEntry.getValue()));
+                assertEquals(expected.length, entry.getSize());
+                assertEquals(crc(expected), entry.getCrc());
+                assertArrayEquals(expected, readAll(zipFile.getInputStream(entry)));
+            }
+        }
+    }
+
+    @Test
+    public void read_usesZip64RecordsPastTheLimit() throws Exception {
+        Map<String, File> fileMap = new LinkedHashMap<>();
+        fileMap.put("small.jpg", createFile("small.jpg", 50));
+        fileMap.put("large.mp4", createFile("large.mp4", 3000));
+        fileMap.put("after.jpg", createFile("after.jpg", 70));
+
+        // Sizes and offsets of 1000 bytes or more are written as in an archive of 4 GB or more
+        File zip = writeArchive(new ZipExportStream(fileMap, 1024, 1000));
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(3, zipFile.size());
+            for (Map.Entry<String, File> fileEntry : fileMap.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(fileEntry.getKey());
+                assertEquals(fileEntry.getValue().length(), entry.getSize());
+                assertArrayEquals(readAll(new FileInputStream(fileEntry.getValue())),
+                        readAll(zipFile.getInputStream(entry)));
+            }
+        }
+    }
+
+    @Test
+    public void read_emptyArchive() throws Exception {
+        File zip = writeArchive(new ZipExportStream(new LinkedHashMap<String, File>(), 1024));
+        assertEquals(22, zip.length());
+    }
+
+    private File createFile(String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = temporaryFolder.newFile(name);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(data);
+        }
+        return file;
+    }
+
+    private File writeArchive(InputStream inputStream) throws Exception {
+        File zip = temporaryFolder.newFile();
+        byte[] buffer = new byte[777];
+        int length;
+        try (InputStream is = inputStream; OutputStream os = new FileOutputStream(zip)) {
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+        }
+        return zip;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        try (InputStream is = inputStream) {
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+        }
+        return os.toByteArray();
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,430 @@
+package com.theta360.cloudupload.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test WebDavClient against an in-process WebDAV server.
+ */
+public class WebDavClientTest {
+    private static final String AUTHORIZATION = "Basic " + Base64.getEncoder().encodeToString("theta:secret".getBytes(StandardCharsets.UTF_8));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private TestWebDavServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestWebDavServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void propfind_returnsMultiStatus() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        assertEquals(WebDavClient.HTTP_MULTI_STATUS, client.propfind());
+        client.close();
+    }
+
+    @Test
+    public void propfind_rejectsWrongCredentials() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), "Basic invalid", 5000);
+        assertEquals(401, client.propfind());
+        client.close();
+    }
+
+    @Test
+    public void parallelPut_createsEachCollectionOnceAndReusesConnections() throws Exception {
+        final WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        final String[] collections = {"2018-07-20", "2018-07-21", "2018-07-22"};
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            fileList.add(createFile("R00100" + i + ".JPG", 100 * 1024 + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> futureList = new ArrayList<>();
+        for (int i = 0; i < fileList.size(); i++) {
+            final File file = fileList.get(i);
+            final String collection = collections[i % collections.length];
+            futureList.add(executor.submit(() -> {
+                client.makeCollection(collection);
+                return client.put(collection + "/" + file.getName(), file);
+            }));
+        }
+        for (Future<Integer> future : futureList) {
+            assertEquals(201, (int) future.get());
+        }
+        executor.shutdown();
+        client.close();
+
+        for (String collection : collections) {
+            assertEquals(1, server.getMkcolCount("/dav/" + collection + "/"));
+        }
+        for (int i = 0; i < fileList.size(); i++) {
+            File file = fileList.get(i);
+            byte[] stored = server.getResource("/dav/" + collections[i % collections.length] + "/" + file.getName());
+            assertNotNull(stored);
+            assertEquals(file.length(), stored.length);
+        }
+        assertTrue("connections: " + server.getConnectionCount(), server.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void makeCollection_existingCollectionIsAccepted() throws Exception {
+        server.addCollection("/dav/2018-07-20/");
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        client.makeCollection("2018-07-20");
+        client.makeCollection("2018-07-20");
+        assertEquals(1, server.getMkcolCount("/dav/2018-07-20/"));
+        client.close();
+    }
+
+    @Test
+    public void makeCollection_requestedAgainAfterClearingCache() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        client.makeCollection("2018/07/20");
+        assertEquals(1, server.getMkcolCount("/dav/2018/"));
+        assertEquals(1, server.getMkcolCount("/dav/2018/07/20/"));
+        client.clearCollectionCache();
+        client.makeCollection("2018/07/20");
+        assertEquals(2, server.getMkcolCount("/dav/2018/07/20/"));
+        client.close();
+    }
+
+    @Test
+    public void put_reconnectsWhenIdleConnectionWasClosed() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        File file = createFile("R0010001.JPG", 1024);
+        assertEquals(WebDavClient.HTTP_MULTI_STATUS, client.propfind());
+        server.closeConnections();
+        assertEquals(201, client.put(file.getName(), file));
+        assertArrayEquals(readFile(file), server.getResource("/dav/" + file.getName()));
+        client.close();
+    }
+
+    @Test
+    public void put_encodesPathSegments() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        File file = createFile("photo 1.JPG", 10);
+        assertEquals(201, client.put(file.getName(), file));
+        assertNotNull(server.getResource("/dav/photo%201.JPG"));
+        client.close();
+    }
+
+    @Test
+    public void putResumable_continuesFromPartialResource() throws Exception {
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        final byte[] data = new byte[10 * 1024 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 13);
+        }
+        int segmentSize = 4 * 1024;
+
+        // The connection fails in the third segment
+        InputStream failingStream = new FilterInputStream(new ByteArrayInputStream(data)) {
+            private int position = 0;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= 9 * 1024) {
+                    throw new IOException("Disconnected");
+                }
+                int length = super.read(b, off, Math.min(len, 9 * 1024 - position));
+                position += length;
+                return length;
+            }
+        };
+        try {
+            client.putResumable("R0010001.MP4", "R0010001.MP4.part", failingStream, data.length, segmentSize);
+            fail("Upload did not fail");
+        } catch (IOException ex) {
+            // Retried below
+        }
+        client.close();
+        assertEquals(2 * segmentSize, server.getResource("/dav/R0010001.MP4.part").length);
+        assertNull(server.getResource("/dav/R0010001.MP4"));
+
+        long receivedBytes = server.getReceivedBytes();
+        client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        assertEquals(201, client.putResumable("R0010001.MP4", "R0010001.MP4.part", new ByteArrayInputStream(data), data.length, segmentSize));
+        client.close();
+        assertArrayEquals(data, server.getResource("/dav/R0010001.MP4"));
+        assertNull(server.getResource("/dav/R0010001.MP4.part"));
+        // Only the segments that were not stored are sent again
+        assertEquals(data.length - 2 * segmentSize, server.getReceivedBytes() - receivedBytes);
+    }
+
+    @Test
+    public void putResumable_putsWholeFileWhenServerIgnoresContentRange() throws Exception {
+        server.setIgnoreContentRange(true);
+        WebDavClient client = new WebDavClient(server.getUrl(), AUTHORIZATION, 5000);
+        byte[] data = new byte[10 * 1024 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        assertEquals(201, client.putResumable("R0010001.MP4", "R0010001.MP4.part", new ByteArrayInputStream(data), data.length, 4 * 1024));
+        assertArrayEquals(data, server.getResource("/dav/R0010001.MP4"));
+        assertNull(server.getResource("/dav/R0010001.MP4.part"));
+
+        // Later uploads skip the check
+        long receivedBytes = server.getReceivedBytes();
+        assertEquals(201, client.putResumable("R0010002.MP4", "R0010002.MP4.part", new ByteArrayInputStream(data), data.length, 4 * 1024));
+        assertEquals(data.length, server.getReceivedBytes() - receivedBytes);
+        assertArrayEquals(data, server.getResource("/dav/R0010002.MP4"));
+        client.close();
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        File file = temporaryFolder.newFile(name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + size);
+        }
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return java.nio.file.Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Minimal WebDAV server supporting PROPFIND, MKCOL, PUT, HEAD, MOVE and DELETE with keep-alive
+     */
+    private static class TestWebDavServer {
+        private final ServerSocket serverSocket;
+        private final Thread acceptThread;
+        private final Map<String, byte[]> resourceMap = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> mkcolCountMap = new ConcurrentHashMap<>();
+        private final List<Socket> socketList = new ArrayList<>();
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final AtomicLong receivedBytes = new AtomicLong();
+        private volatile boolean isIgnoreContentRange = false;
+
+        TestWebDavServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            addCollection("/dav/");
+            acceptThread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connectionCount.incrementAndGet();
+                        synchronized (socketList) {
+                            socketList.add(socket);
+                        }
+                        new Thread(() -> handle(socket)).start();
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            });
+            acceptThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/dav";
+        }
+
+        void addCollection(String path) {
+            resourceMap.put(path, new byte[0]);
+        }
+
+        byte[] getResource(String path) {
+            return resourceMap.get(path);
+        }
+
+        int getMkcolCount(String path) {
+            AtomicInteger count = mkcolCountMap.get(path);
+            return count == null ? 0 : count.get();
+        }
+
+        void setIgnoreContentRange(boolean isIgnoreContentRange) {
+            this.isIgnoreContentRange = isIgnoreContentRange;
+        }
+
+        int getConnectionCount() {
+            return connectionCount.get();
+        }
+
+        long getReceivedBytes() {
+            return receivedBytes.get();
+        }
+
+        void closeConnections() throws IOException {
+            synchronized (socketList) {
+                for (Socket socket : socketList) {
+                    socket.close();
+                }
+                socketList.clear();
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            closeConnections();
+        }
+
+        private void handle(Socket socket) {
+            try (InputStream in = new BufferedInputStream(socket.getInputStream());
+                 OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    String[] request = requestLine.split(" ");
+                    int contentLength = 0;
+                    String authorization = null;
+                    String contentRange = null;
+                    String destination = null;
+                    String line;
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        String[] header = line.split(":", 2);
+                        if (header[0].equalsIgnoreCase("Content-Length")) {
+                            contentLength = Integer.parseInt(header[1].trim());
+                        } else if (header[0].equalsIgnoreCase("Authorization")) {
+                            authorization = header[1].trim();
+                        } else if (header[0].equalsIgnoreCase("Content-Range")) {
+                            contentRange = header[1].trim();
+                        } else if (header[0].equalsIgnoreCase("Destination")) {
+                            destination = header[1].trim();
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    int offset = 0;
+                    while (offset < contentLength) {
+                        int length = in.read(body, offset, contentLength - offset);
+                        if (length == -1) {
+                            return;
+                        }
+                        offset += length;
+                    }
+                    receivedBytes.addAndGet(contentLength);
+
+                    String status;
+                    String responseBody = "";
+                    String responseLength = null;
+                    String path = request[1];
+                    if (!AUTHORIZATION.equals(authorization)) {
+                        status = "401 Unauthorized";
+                    } else if (request[0].equals("PROPFIND")) {
+                        status = resourceMap.containsKey(path) ? "207 Multi-Status" : "404 Not Found";
+                        responseBody = "<?xml version=\"1.0\"?><d:multistatus xmlns:d=\"DAV:\"/>";
+                    } else if (request[0].equals("MKCOL")) {
+                        mkcolCountMap.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+                        if (resourceMap.containsKey(path)) {
+                            status = "405 Method Not Allowed";
+                        } else if (!resourceMap.containsKey(getParent(path))) {
+                            status = "409 Conflict";
+                        } else {
+                            addCollection(path);
+                            status = "201 Created";
+                        }
+                    } else if (request[0].equals("PUT") && contentRange != null && !isIgnoreContentRange) {
+                        // Append to the resource: "bytes first-last/total"
+                        long first = Long.parseLong(contentRange.substring(6, contentRange.indexOf('-')));
+                        byte[] current = resourceMap.get(path);
+                        if (current == null || current.length != first) {
+                            status = "416 Range Not Satisfiable";
+                        } else {
+                            byte[] appended = Arrays.copyOf(current, current.length + body.length);
+                            System.arraycopy(body, 0, appended, current.length, body.length);
+                            resourceMap.put(path, appended);
+                            status = "204 No Content";
+                        }
+                    } else if (request[0].equals("PUT")) {
+                        if (!resourceMap.containsKey(getParent(path))) {
+                            status = "409 Conflict";
+                        } else {
+                            resourceMap.put(path, body);
+                            status = "201 Created";
+                        }
+                    } else if (request[0].equals("DELETE")) {
+                        status = resourceMap.remove(path) == null ? "404 Not Found" : "204 No Content";
+                    } else if (request[0].equals("HEAD")) {
+                        byte[] resource = resourceMap.get(path);
+                        status = resource == null ? "404 Not Found" : "200 OK";
+                        responseLength = resource == null ? null : String.valueOf(resource.length);
+                    } else if (request[0].equals("MOVE")) {
+                        String toPath = new URL(destination).getPath();
+                        byte[] resource = resourceMap.remove(path);
+                        if (resource == null) {
+                            status = "404 Not Found";
+                        } else {
+                            status = resourceMap.put(toPath, resource) == null ? "201 Created" : "204 No Content";
+                        }
+                    } else {
+                        status = "501 Not Implemented";
+                    }
+
+                    byte[] responseBytes = responseBody.getBytes(StandardCharsets.UTF_8);
+                    if (request[0].equals("HEAD")) {
+                        out.write(("HTTP/1.1 " + status + "\r\n" + (responseLength == null ? "" : "Content-Length: " + responseLength + "\r\n")
+                                + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                        out.flush();
+                        continue;
+                    }
+                    out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + responseBytes.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(responseBytes);
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                // Connection closed
+            }
+        }
+
+        private static String getParent(String path) {
+            String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            return trimmed.substring(0, trimmed.lastIndexOf('/') + 1);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    String result = line.toString("ISO-8859-1");
+                    return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+                }
+                line.write(c);
+            }
+            return line.size() == 0 ? null : line.toString("ISO-8859-1");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test BufferPool.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertEquals(64 * 1024, pool.acquire(1).length);
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).length);
+        assertEquals(128 * 1024, pool.acquire(64 * 1024 + 1).length);
+        assertEquals(4 * 1024 * 1024, pool.acquire(4 * 1024 * 1024).length);
+    }
+
+    @Test
+    public void release_reusesBufferOfSameClass() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] buffer = pool.acquire(100 * 1024);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(120 * 1024));
+        assertNotSame(buffer, pool.acquire(120 * 1024));
+        assertEquals(1.0 / 3, pool.getHitRate(), 0.001);
+        assertEquals(256 * 1024, pool.getHighWaterBytes());
+    }
+
+    @Test
+    public void release_dropsBuffersOverLimit() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        byte[] first = pool.acquire(1);
+        byte[] second = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(64 * 1024, pool.getPooledBytes());
+        assertEquals(0, pool.getInUseBytes());
+    }
+
+    @Test
+    public void getClassSize_matchesAcquiredBuffer() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertEquals(128 * 1024, BufferPool.getClassSize(68 * 1024));
+        assertEquals(pool.acquire(68 * 1024).length, BufferPool.getClassSize(68 * 1024));
+        assertEquals(1024 * 1024, BufferPool.getClassSize(1024 * 1024));
+    }
+
+    @Test
+    public void trim_dropsLargestBuffersFirst() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] small = pool.acquire(1);
+        byte[] large = pool.acquire(256 * 1024);
+        pool.release(small);
+        pool.release(large);
+        assertEquals(64 * 1024, pool.trim(100 * 1024));
+        assertSame(small, pool.acquire(1));
+        assertEquals(0, pool.trim(0));
+    }
+
+    @Test
+    public void release_ignoresForeignBuffer() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        pool.release(new byte[1000]);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getInUseBytes());
+    }
+
+    @Test
+    public void fanOutReader_returnsBufferWhenAllConsumersClosed() throws Exception {
+        BufferPool pool = BufferPool.getSharedPool();
+        long inUseBytes = pool.getInUseBytes();
+        FanOutReader reader = new FanOutReader(new ByteArrayInputStream(new byte[1000]), 2, 64 * 1024);
+        assertEquals(inUseBytes + 64 * 1024, pool.getInUseBytes());
+        reader.getInputStream(0).close();
+        assertEquals(inUseBytes + 64 * 1024, pool.getInUseBytes());
+        reader.getInputStream(1).close();
+        assertEquals(inUseBytes, pool.getInUseBytes());
+        reader.close();
+        assertEquals(inUseBytes, pool.getInUseBytes());
+    }
+}
@@ -0,0 +1,28 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test ContentHashInputStream.
+ */
+public class ContentHashInputStreamTest {
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    public void hashIsAvailableAfterAllDataIsRead() throws Exception {
+        byte[] data = "abc".getBytes(StandardCharsets.US_ASCII);
+        ContentHashInputStream in = new ContentHashInputStream(new ByteArrayInputStream(data), data.length);
+        assertEquals('a', in.read());
+        assertNull(in.getHash());
+        byte[] buffer = new byte[10];
+        assertEquals(2, in.read(buffer));
+        assertEquals(ABC_SHA256, in.getHash());
+        assertEquals(3, in.getReadBytes());
+        in.close();
+    }
+}
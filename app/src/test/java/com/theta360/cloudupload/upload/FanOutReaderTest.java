@@ -0,0 +1,133 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test FanOutReader.
+ */
+public class FanOutReaderTest {
+
+    @Test
+    public void everyConsumerReadsAllData() throws Exception {
+        final byte[] data = createData(1024 * 1024 + 17);
+        CountingInputStream source = new CountingInputStream(new ByteArrayInputStream(data));
+        FanOutReader reader = new FanOutReader(source, 3, 128 * 1024);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<byte[]>> futureList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final InputStream inputStream = reader.getInputStream(i);
+            futureList.add(executor.submit(() -> readAll(inputStream)));
+        }
+        for (Future<byte[]> future : futureList) {
+            assertArrayEquals(data, future.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        reader.close();
+
+        // The source is read only once
+        assertEquals(data.length, source.count);
+        assertEquals(data.length, reader.getReadBytes());
+    }
+
+    @Test
+    public void fastConsumerWaitsForSlowOneBeyondBuffer() throws Exception {
+        final int bufferSize = 64 * 1024;
+        byte[] data = createData(bufferSize * 4);
+        FanOutReader reader = new FanOutReader(new ByteArrayInputStream(data), 2, bufferSize);
+        final InputStream fast = reader.getInputStream(0);
+        InputStream slow = reader.getInputStream(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<byte[]> future = executor.submit(() -> readAll(fast));
+        try {
+            future.get(500, TimeUnit.MILLISECONDS);
+            fail("fast consumer must wait for the slow one");
+        } catch (TimeoutException ex) {
+            // The fast consumer is blocked on the full buffer
+        }
+        assertEquals(bufferSize, reader.getReadBytes());
+
+        // Once the slow consumer reads, the fast one can finish
+        assertArrayEquals(data, readAll(slow));
+        assertArrayEquals(data, future.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        reader.close();
+    }
+
+    @Test
+    public void closedConsumerDoesNotHoldBackOthers() throws Exception {
+        byte[] data = createData(512 * 1024);
+        FanOutReader reader = new FanOutReader(new ByteArrayInputStream(data), 2, 64 * 1024);
+        InputStream failed = reader.getInputStream(1);
+        failed.close();
+
+        assertArrayEquals(data, readAll(reader.getInputStream(0)));
+        try {
+            failed.read();
+            fail("closed consumer must not read");
+        } catch (IOException ex) {
+            // Expected
+        }
+        reader.close();
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[10000];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length = in.read(b, off, len);
+            if (length > 0) {
+                count += length;
+            }
+            return length;
+        }
+    }
+}
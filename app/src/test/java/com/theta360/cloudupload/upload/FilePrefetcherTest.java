@@ -0,0 +1,150 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test FilePrefetcher.
+ */
+public class FilePrefetcherTest {
+    private static final int READ_AHEAD_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsAheadWithinMemoryBudget() throws Exception {
+        List<File> fileList = new ArrayList<>();
+        List<byte[]> dataList = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            byte[] data = createData(1024 * 1024 + i);
+            dataList.add(data);
+            fileList.add(writeFile("R001000" + i + ".JPG", data));
+        }
+
+        long memoryBudget = 3 * READ_AHEAD_SIZE;
+        FilePrefetcher prefetcher = new FilePrefetcher(fileList, READ_AHEAD_SIZE, memoryBudget, null);
+        prefetcher.start();
+        for (int i = 0; i < fileList.size(); i++) {
+            // Give the read ahead time to fill the budget
+            Thread.sleep(50);
+            assertTrue(prefetcher.getMaxUsedBytes() <= memoryBudget);
+
+            PhotoFileStream stream = prefetcher.take(fileList.get(i));
+            assertNotNull(stream);
+            assertEquals(READ_AHEAD_SIZE, stream.getStorageReadBytes());
+            assertArrayEquals(dataList.get(i), readAll(stream));
+            stream.close();
+            assertEquals(dataList.get(i).length, stream.getStorageReadBytes());
+            assertNotNull(stream.getHash());
+        }
+        prefetcher.close();
+
+        assertEquals(fileList.size(), prefetcher.getHitCount());
+        assertEquals(0, prefetcher.getMissCount());
+        assertEquals(memoryBudget, prefetcher.getMaxUsedBytes());
+    }
+
+    @Test
+    public void fileTakenBeforeReadAheadIsSkipped() throws Exception {
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            fileList.add(writeFile("R001010" + i + ".JPG", createData(512 * 1024)));
+        }
+
+        FilePrefetcher prefetcher = new FilePrefetcher(fileList, READ_AHEAD_SIZE, READ_AHEAD_SIZE, null);
+        assertNull(prefetcher.take(fileList.get(1)));
+        prefetcher.start();
+        Thread.sleep(100);
+
+        PhotoFileStream stream = prefetcher.take(fileList.get(0));
+        assertNotNull(stream);
+        stream.close();
+        Thread.sleep(100);
+        // The second file is skipped, and the budget allows one file at a time
+        stream = prefetcher.take(fileList.get(2));
+        assertNotNull(stream);
+        stream.close();
+        prefetcher.close();
+
+        assertEquals(2, prefetcher.getHitCount());
+        assertEquals(1, prefetcher.getMissCount());
+        assertEquals(READ_AHEAD_SIZE, prefetcher.getMaxUsedBytes());
+    }
+
+    @Test
+    public void discardedFileReleasesBudgetForNextInOrder() throws Exception {
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            fileList.add(writeFile("R001020" + i + ".JPG", createData(512 * 1024)));
+        }
+        // The order changes after the prefetcher is started
+        List<File> orderList = new ArrayList<>(fileList);
+        UploadOrder order = handledPathSet -> {
+            synchronized (orderList) {
+                for (File file : orderList) {
+                    if (!handledPathSet.contains(file.getAbsolutePath())) {
+                        return file;
+                    }
+                }
+                return null;
+            }
+        };
+
+        FilePrefetcher prefetcher = new FilePrefetcher(order, READ_AHEAD_SIZE, READ_AHEAD_SIZE, null);
+        prefetcher.start();
+        Thread.sleep(100);
+        synchronized (orderList) {
+            orderList.remove(fileList.get(2));
+            orderList.add(1, fileList.get(2));
+        }
+        // The budget allows one file, so the next file is read only after the first is discarded
+        prefetcher.discard(fileList.get(0));
+        Thread.sleep(100);
+
+        PhotoFileStream stream = prefetcher.take(fileList.get(2));
+        assertNotNull(stream);
+        stream.close();
+        assertNull(prefetcher.take(fileList.get(0)));
+        prefetcher.close();
+
+        assertEquals(1, prefetcher.getHitCount());
+        assertEquals(1, prefetcher.getMissCount());
+    }
+
+    private static byte[] createData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 17 + size);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(PhotoFileStream stream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private File writeFile(String name, byte[] data) throws Exception {
+        File file = temporaryFolder.newFile(name);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,120 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test JpegMetadata.
+ */
+public class JpegMetadataTest {
+    private static final String XMP = "http://ns.adobe.com/xap/1.0/\0"
+            + "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF><rdf:Description"
+            + " GPano:ProjectionType=\"equirectangular\" GPano:FullPanoWidthPixels=\"5376\" GPano:FullPanoHeightPixels=\"2688\""
+            + " GPano:CroppedAreaLeftPixels=\"0\"><GPano:CroppedAreaImageWidthPixels>5376</GPano:CroppedAreaImageWidthPixels>"
+            + "<GPano:CroppedAreaImageHeightPixels>2688</GPano:CroppedAreaImageHeightPixels>"
+            + "</rdf:Description></rdf:RDF></x:xmpmeta>";
+
+    @Test
+    public void write_copiesResizedMetadataIntoEncodedImage() throws Exception {
+        JpegMetadata metadata = JpegMetadata.read(new ByteArrayInputStream(createOriginal()));
+        assertFalse(metadata.isEmpty());
+        metadata.resize(5376, 2688, 2048, 1024);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metadata.write(new ByteArrayInputStream(createEncoded()), out);
+        byte[] result = out.toByteArray();
+        String text = new String(result, StandardCharsets.ISO_8859_1);
+
+        // SOI, then EXIF first
+        assertEquals(0xff, result[0] & 0xff);
+        assertEquals(0xd8, result[1] & 0xff);
+        assertEquals(0xe1, result[3] & 0xff);
+        assertEquals("Exif", text.substring(6, 10));
+        assertFalse("JFIF segment of the encoder is dropped", text.contains("JFIF"));
+        assertTrue(text.contains("GPano:FullPanoWidthPixels=\"2048\""));
+        assertTrue(text.contains("GPano:FullPanoHeightPixels=\"1024\""));
+        assertTrue(text.contains("GPano:CroppedAreaLeftPixels=\"0\""));
+        assertTrue(text.contains("<GPano:CroppedAreaImageWidthPixels>2048<"));
+        assertTrue(text.contains("<GPano:CroppedAreaImageHeightPixels>1024<"));
+        assertTrue(text.contains("equirectangular"));
+        assertTrue("image data follows", text.endsWith("QUANTIZATION\u00ff\u00daSCAN"));
+
+        // PixelXDimension (LONG) and PixelYDimension (SHORT) in the EXIF IFD
+        JpegMetadata reread = JpegMetadata.read(new ByteArrayInputStream(result));
+        assertFalse(reread.isEmpty());
+        int tiff = 12;
+        assertEquals(2048, readInt(result, tiff + 26 + 2 + 8));
+        assertEquals(1024, readShort(result, tiff + 26 + 2 + 12 + 8));
+    }
+
+    @Test
+    public void read_returnsEmptyForNonJpeg() throws Exception {
+        assertTrue(JpegMetadata.read(new ByteArrayInputStream(new byte[]{0, 0, 0, 0})).isEmpty());
+    }
+
+    /**
+     * JPEG with EXIF (IFD0 pointing to the EXIF IFD that has the pixel dimensions) and XMP
+     */
+    private static byte[] createOriginal() {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        // Big endian, IFD0 at 8 with one entry: ExifIFDPointer (LONG) = 26
+        write(tiff, 'M', 'M', 0, 42, 0, 0, 0, 8);
+        write(tiff, 0, 1, 0x87, 0x69, 0, 4, 0, 0, 0, 1, 0, 0, 0, 26, 0, 0, 0, 0);
+        // EXIF IFD at 26 with PixelXDimension (LONG) and PixelYDimension (SHORT)
+        write(tiff, 0, 2);
+        write(tiff, 0xa0, 0x02, 0, 4, 0, 0, 0, 1, 0, 0, 0x15, 0);
+        write(tiff, 0xa0, 0x03, 0, 3, 0, 0, 0, 1, 0x0a, 0x80, 0, 0);
+        write(tiff, 0, 0, 0, 0);
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        write(jpeg, 0xff, 0xd8);
+        writeSegment(jpeg, 0xe1, concat("Exif\0\0".getBytes(StandardCharsets.ISO_8859_1), tiff.toByteArray()));
+        writeSegment(jpeg, 0xe1, XMP.getBytes(StandardCharsets.UTF_8));
+        write(jpeg, 0xff, 0xda);
+        jpeg.write(new byte[100], 0, 100);
+        return jpeg.toByteArray();
+    }
+
+    private static byte[] createEncoded() {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        write(jpeg, 0xff, 0xd8);
+        writeSegment(jpeg, 0xe0, "JFIF\0".getBytes(StandardCharsets.ISO_8859_1));
+        writeSegment(jpeg, 0xdb, "QUANTIZATION".getBytes(StandardCharsets.ISO_8859_1));
+        write(jpeg, 0xff, 0xda);
+        byte[] scan = "SCAN".getBytes(StandardCharsets.ISO_8859_1);
+        jpeg.write(scan, 0, scan.length);
+        return jpeg.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] body) {
+        int length = body.length + 2;
+        write(out, 0xff, marker, length >> 8, length & 0xff);
+        out.write(body, 0, body.length);
+    }
+
+    private static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+    }
+}
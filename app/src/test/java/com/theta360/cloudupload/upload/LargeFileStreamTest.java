@@ -0,0 +1,126 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that multi-GB videos are streamed without holding them in memory.
+ */
+public class LargeFileStreamTest {
+    private static final long VIDEO_SIZE = 3L * 1024 * 1024 * 1024 + 12345;
+    private static final int READ_AHEAD_SIZE = 1024 * 1024;
+    private static final long HEAP_GROWTH_LIMIT = 48 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void sparseVideo_fanOutKeepsMemoryFlat() throws Exception {
+        File file = createSparseFile("R0010001.MP4", VIDEO_SIZE);
+        MemoryGovernor governor = new MemoryGovernor(8 * 1024 * 1024);
+        final int fanOutBufferSize = 4 * 1024 * 1024;
+
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        PhotoFileStream stream = PhotoFileStream.open(file, READ_AHEAD_SIZE, governor, MemoryGovernor.Stage.READ);
+        assertEquals(PhotoFileStream.getModifiedDatetime(file), stream.getDatetime());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Long>> futureList = new ArrayList<>();
+        try (MemoryGovernor.Reservation reservation = governor.reserveNow(MemoryGovernor.Stage.FAN_OUT, fanOutBufferSize);
+             FanOutReader reader = new FanOutReader(stream, 2, fanOutBufferSize)) {
+            for (int i = 0; i < 2; i++) {
+                final InputStream inputStream = reader.getInputStream(i);
+                futureList.add(executor.submit(() -> drain(inputStream)));
+            }
+            for (Future<Long> future : futureList) {
+                assertEquals(VIDEO_SIZE, (long) future.get());
+            }
+            assertEquals(READ_AHEAD_SIZE + reservation.getBytes(), governor.getMaxReservedBytes());
+        }
+        stream.close();
+        executor.shutdown();
+        sampler.stop();
+
+        assertEquals(VIDEO_SIZE, stream.getStorageReadBytes());
+        assertNotNull(stream.getHash());
+        assertEquals(0, governor.getReservedBytes());
+        assertTrue("heap grew by " + sampler.getGrowth() + " bytes", sampler.getGrowth() < HEAP_GROWTH_LIMIT);
+    }
+
+    private static long drain(InputStream inputStream) throws Exception {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int length;
+        try (InputStream is = inputStream) {
+            while ((length = is.read(buffer)) != -1) {
+                total += length;
+            }
+        }
+        return total;
+    }
+
+    private File createSparseFile(String name, long size) throws Exception {
+        File file = temporaryFolder.newFile(name);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(size);
+        }
+        return file;
+    }
+
+    /**
+     * Record the largest heap use above the use at the start
+     */
+    private static class HeapSampler {
+        private final AtomicBoolean isRunning = new AtomicBoolean(true);
+        private final AtomicLong maxUsed = new AtomicLong();
+        private long baseline;
+        private Thread thread;
+
+        void start() {
+            baseline = getUsedAfterGc();
+            thread = new Thread(() -> {
+                while (isRunning.get()) {
+                    Runtime runtime = Runtime.getRuntime();
+                    long used = runtime.totalMemory() - runtime.freeMemory();
+                    maxUsed.accumulateAndGet(used, Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            isRunning.set(false);
+            thread.join();
+        }
+
+        long getGrowth() {
+            return maxUsed.get() - baseline;
+        }
+
+        private static long getUsedAfterGc() {
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
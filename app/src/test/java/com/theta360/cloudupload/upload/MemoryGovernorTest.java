@@ -0,0 +1,161 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test MemoryGovernor.
+ */
+public class MemoryGovernorTest {
+    private static final int READ_AHEAD_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void reserve_waitsUntilReleased() throws Exception {
+        final MemoryGovernor governor = new MemoryGovernor(1000);
+        MemoryGovernor.Reservation first = governor.reserve(MemoryGovernor.Stage.READ, 600);
+        assertNull(governor.tryReserve(MemoryGovernor.Stage.FAN_OUT, 600));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<MemoryGovernor.Reservation> future = executor.submit(() -> governor.reserve(MemoryGovernor.Stage.FAN_OUT, 600));
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Reserved over the budget");
+        } catch (TimeoutException ex) {
+            // Back-pressure
+        }
+        assertEquals(1, governor.getWaitingCount());
+
+        first.close();
+        MemoryGovernor.Reservation second = future.get(1, TimeUnit.SECONDS);
+        assertEquals(0, governor.getReservedBytes(MemoryGovernor.Stage.READ));
+        assertEquals(600, governor.getReservedBytes(MemoryGovernor.Stage.FAN_OUT));
+        second.close();
+        second.close();
+        assertEquals(0, governor.getReservedBytes());
+        assertEquals(600, governor.getMaxReservedBytes());
+        executor.shutdown();
+    }
+
+    @Test
+    public void reserve_grantsLargeReservationAlone() throws Exception {
+        MemoryGovernor governor = new MemoryGovernor(1000);
+        MemoryGovernor.Reservation reservation = governor.reserve(MemoryGovernor.Stage.TRANSFORM, 5000);
+        assertEquals(5000, governor.getReservedBytes());
+        assertNull(governor.tryReserve(MemoryGovernor.Stage.READ, 1));
+        assertNotNull(governor.reserveNow(MemoryGovernor.Stage.READ, 1));
+        reservation.close();
+        assertEquals(1, governor.getReservedBytes());
+    }
+
+    @Test
+    public void reserveWithoutWaiting_grantsOverBudgetUnlessOthersWait() throws Exception {
+        final MemoryGovernor governor = new MemoryGovernor(1000);
+        MemoryGovernor.Reservation prefetch = governor.reserve(MemoryGovernor.Stage.PREFETCH, 100);
+        // A prefetched file does not keep the transform waiting
+        MemoryGovernor.Reservation transform = governor.reserveWithoutWaiting(MemoryGovernor.Stage.TRANSFORM, 1000);
+        assertNotNull(transform);
+        assertEquals(1100, governor.getReservedBytes());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<MemoryGovernor.Reservation> future = executor.submit(() -> governor.reserve(MemoryGovernor.Stage.READ, 600));
+        while (governor.getWaitingCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertNull(governor.reserveWithoutWaiting(MemoryGovernor.Stage.TRANSFORM, 1000));
+
+        transform.close();
+        future.get(1, TimeUnit.SECONDS).close();
+        prefetch.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void reserve_dropsPooledBuffersToFitBudget() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        MemoryGovernor governor = new MemoryGovernor(512 * 1024, pool);
+        pool.release(pool.acquire(256 * 1024));
+        pool.release(pool.acquire(128 * 1024));
+
+        MemoryGovernor.Reservation first = governor.tryReserve(MemoryGovernor.Stage.READ, 128 * 1024);
+        assertNotNull(first);
+        assertEquals(384 * 1024, pool.getPooledBytes());
+        // The largest idle buffer makes room
+        MemoryGovernor.Reservation second = governor.tryReserve(MemoryGovernor.Stage.READ, 256 * 1024);
+        assertNotNull(second);
+        assertEquals(128 * 1024, pool.getPooledBytes());
+        assertNull(governor.tryReserve(MemoryGovernor.Stage.READ, 256 * 1024));
+        assertEquals(0, pool.getPooledBytes());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void photoFileStream_reservesSizeClassOfHead() throws Exception {
+        File file = temporaryFolder.newFile("R0010300.JPG");
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[200 * 1024]);
+        }
+        MemoryGovernor governor = new MemoryGovernor(1024 * 1024);
+        try (PhotoFileStream stream = PhotoFileStream.open(file, 0, governor, MemoryGovernor.Stage.READ)) {
+            // The 68KB header is read into a 128KB buffer
+            assertEquals(128 * 1024, governor.getReservedBytes(MemoryGovernor.Stage.READ));
+        }
+        assertEquals(0, governor.getReservedBytes());
+    }
+
+    @Test
+    public void prefetcher_waitsForPipelineBudget() throws Exception {
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File file = temporaryFolder.newFile("R001020" + i + ".JPG");
+            try (OutputStream os = new FileOutputStream(file)) {
+                os.write(new byte[1024 * 1024]);
+            }
+            fileList.add(file);
+        }
+
+        MemoryGovernor governor = new MemoryGovernor(2 * READ_AHEAD_SIZE);
+        MemoryGovernor.Reservation upload = governor.reserve(MemoryGovernor.Stage.FAN_OUT, READ_AHEAD_SIZE);
+        FilePrefetcher prefetcher = new FilePrefetcher(fileList, READ_AHEAD_SIZE, 4 * READ_AHEAD_SIZE, governor);
+        prefetcher.start();
+        for (int i = 0; i < 100 && governor.getWaitingCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        // Only one file fits beside the upload
+        assertEquals(READ_AHEAD_SIZE, governor.getReservedBytes(MemoryGovernor.Stage.PREFETCH));
+        assertEquals(1, governor.getWaitingCount());
+
+        upload.close();
+        for (int i = 0; i < 100 && governor.getReservedBytes(MemoryGovernor.Stage.PREFETCH) < 2 * READ_AHEAD_SIZE; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2 * READ_AHEAD_SIZE, governor.getReservedBytes(MemoryGovernor.Stage.PREFETCH));
+
+        PhotoFileStream stream = prefetcher.take(fileList.get(0));
+        assertNotNull(stream);
+        stream.close();
+        prefetcher.close();
+        // A file being read when closed is released when its read ends
+        for (int i = 0; i < 100 && governor.getReservedBytes() != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, governor.getReservedBytes());
+    }
+}
@@ -0,0 +1,136 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test PhotoFileStream.
+ */
+public class PhotoFileStreamTest {
+    private static final String DATETIME = "2018:07:20 12:34:56";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsEachByteFromStorageOnce() throws Exception {
+        byte[] data = createJpeg(20 * 1024 * 1024);
+        File file = writeFile("R0010001.JPG", data);
+
+        PhotoFileStream stream = PhotoFileStream.open(file);
+        assertEquals(DATETIME, stream.getDatetime());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = stream.read(buffer)) != -1) {
+            sent.write(buffer, 0, length);
+        }
+        stream.close();
+
+        assertArrayEquals(data, sent.toByteArray());
+        assertEquals(data.length, stream.getStorageReadBytes());
+        assertEquals(PhotoFileStream.readAll(writeFile("copy.JPG", data)).getHash(), stream.getHash());
+    }
+
+    @Test
+    public void sharedByFanOutReaderStillReadsOnce() throws Exception {
+        byte[] data = createJpeg(3 * 1024 * 1024 + 5);
+        File file = writeFile("R0010002.JPG", data);
+
+        PhotoFileStream stream = PhotoFileStream.open(file);
+        FanOutReader reader = new FanOutReader(stream, 2, 256 * 1024);
+        Thread other = new Thread(() -> {
+            try (InputStream in = reader.getInputStream(1)) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // Discard
+                }
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        other.start();
+        try (InputStream in = reader.getInputStream(0)) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Discard
+            }
+        }
+        other.join();
+        reader.close();
+
+        assertEquals(data.length, stream.getStorageReadBytes());
+        assertNotNull(stream.getHash());
+    }
+
+    @Test
+    public void parsesLittleEndianExif() throws Exception {
+        PhotoFileStream stream = PhotoFileStream.readAll(writeFile("R0010003.JPG", createJpeg(100 * 1024, false)));
+        assertEquals(DATETIME, stream.getDatetime());
+    }
+
+    @Test
+    public void fileWithoutExifHasNoDatetime() throws Exception {
+        byte[] data = new byte[1000];
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xd8;
+        PhotoFileStream stream = PhotoFileStream.readAll(writeFile("no_exif.JPG", data));
+        assertNull(stream.getDatetime());
+        assertEquals(data.length, stream.getStorageReadBytes());
+    }
+
+    /**
+     * Create a JPEG-like file with an EXIF segment that has only DateTime in IFD0
+     */
+    private static byte[] createJpeg(int size) {
+        return createJpeg(size, true);
+    }
+
+    private static byte[] createJpeg(int size, boolean isBigEndian) {
+        byte[] datetime = (DATETIME + "\0").getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        // TIFF header, IFD0 at offset 8, and one entry: DateTime (0x0132), ASCII, count 20, value at offset 26
+        if (isBigEndian) {
+            tiff.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8}, 0, 8);
+            tiff.write(new byte[]{0, 1, 0x01, 0x32, 0, 2, 0, 0, 0, 20, 0, 0, 0, 26, 0, 0, 0, 0}, 0, 18);
+        } else {
+            tiff.write(new byte[]{'I', 'I', 42, 0, 8, 0, 0, 0}, 0, 8);
+            tiff.write(new byte[]{1, 0, 0x32, 0x01, 2, 0, 20, 0, 0, 0, 26, 0, 0, 0, 0, 0, 0, 0}, 0, 18);
+        }
+        tiff.write(datetime, 0, datetime.length);
+
+        byte[] tiffBytes = tiff.toByteArray();
+        int segmentLength = 2 + 6 + tiffBytes.length;
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1,
+                (byte) (segmentLength >> 8), (byte) segmentLength, 'E', 'x', 'i', 'f', 0, 0}, 0, 12);
+        jpeg.write(tiffBytes, 0, tiffBytes.length);
+        // Start of scan followed by image data
+        jpeg.write(new byte[]{(byte) 0xff, (byte) 0xda, 0, 2}, 0, 4);
+
+        byte[] data = Arrays.copyOf(jpeg.toByteArray(), size);
+        for (int i = jpeg.size(); i < size; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+    private File writeFile(String name, byte[] data) throws Exception {
+        File file = temporaryFolder.newFile(name);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(data);
+        }
+        return file;
+    }
+}
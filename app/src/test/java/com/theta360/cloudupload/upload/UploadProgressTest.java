@@ -0,0 +1,71 @@
+package com.theta360.cloudupload.upload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test UploadProgress.
+ */
+public class UploadProgressTest {
+
+    @Test
+    public void wrap_countsBytesReadByTransport() throws Exception {
+        UploadProgress progress = new UploadProgress();
+        progress.start(3000, 0);
+        UploadProgress.FileProgress file = progress.startFile("R0010001.JPG", 1000);
+        // Two destinations
+        file.setTransferBytes(2000);
+        read(file.wrap(new ByteArrayInputStream(new byte[1000])), 1000);
+        read(file.wrap(new ByteArrayInputStream(new byte[1000])), 500);
+        assertEquals(1500, file.getSentBytes());
+        assertEquals(750, file.getUploadedBytes());
+        assertEquals(750, progress.getUploadedBytes());
+        assertEquals(1, progress.getFileList().size());
+
+        progress.finishFile(file);
+        progress.finishFile(file);
+        assertEquals(1000, progress.getUploadedBytes());
+        assertEquals(1500, progress.getSentBytes());
+        assertTrue(progress.getFileList().isEmpty());
+    }
+
+    @Test
+    public void sample_smoothsThroughputAndEstimatesRemainingTime() throws Exception {
+        UploadProgress progress = new UploadProgress();
+        progress.start(100000, 0);
+        UploadProgress.FileProgress file = progress.startFile("R0010002.MP4", 100000);
+        file.setTransferBytes(100000);
+        InputStream is = file.wrap(new ByteArrayInputStream(new byte[100000]));
+        assertEquals(-1, progress.getEtaSec());
+
+        read(is, 10000);
+        progress.sample(1000);
+        assertEquals(10000, progress.getBytesPerSec());
+        assertEquals(10000, progress.getEwmaBytesPerSec());
+        assertEquals(9, progress.getEtaSec());
+
+        // Too close to the last sample
+        read(is, 10000);
+        progress.sample(1100);
+        assertEquals(10000, progress.getBytesPerSec());
+
+        read(is, 20000);
+        progress.sample(2000);
+        assertEquals(30000, progress.getBytesPerSec());
+        long ewma = progress.getEwmaBytesPerSec();
+        assertTrue("EWMA " + ewma, ewma > 10000 && ewma < 30000);
+        assertEquals((long) Math.ceil(60000.0 / ewma), progress.getEtaSec());
+    }
+
+    private static void read(InputStream is, int length) throws Exception {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            offset += is.read(buffer, offset, length - offset);
+        }
+    }
+}